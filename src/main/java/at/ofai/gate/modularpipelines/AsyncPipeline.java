@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.LanguageAnalyser;
+import gate.Resource;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.metadata.CreoleResource;
+import gate.util.GateRuntimeException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/**
+ * A Pipeline PR which runs its pipeline in the background.
+ * 
+ * When this PR is executed for a document, it starts the pipeline on a
+ * {@link DocumentProjection} of the document and returns right away, so the
+ * following PRs of the controller can run while the pipeline is still 
+ * working. An {@link AsyncPipelineJoin} PR later in the same controller 
+ * waits for the pipeline to finish and copies the output annotation sets
+ * and features to the document. The PRs between this PR and the join PR
+ * must not use anything the pipeline writes: the join overwrites changes 
+ * they make to the written features and annotation sets, and logs a 
+ * warning if it detects such changes.
+ * <p>
+ * The pipelines run in virtual threads if the JVM supports them, otherwise
+ * in a pool of ordinary threads. The result cache, skipping of unchanged 
+ * documents, fan-out and the time budget are not used by this PR, and 
+ * shared instances are not supported. 
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(name = "Async Pipeline",
+        comment = "Runs a pipeline loaded from a xgapp/gapp file in the background until an Async Pipeline Join PR")
+public class AsyncPipeline extends Pipeline {
+  private static final long serialVersionUID = 1L;
+  
+  protected static final Logger LOGGER = Logger.getLogger(AsyncPipeline.class);
+  
+  // The runs started for a document which have not been joined yet. 
+  // The documents are only weakly referenced, also by the projections of
+  // the runs, so that runs which never get joined do not keep their 
+  // documents alive.
+  private static final Map<Document, List<Run>> PENDING = new WeakHashMap<>();
+  
+  private static final ExecutorService EXECUTOR = createExecutor();
+  
+  // the last run started by this PR
+  private transient Run lastRun = null;
+  
+  /**
+   * A run of the pipeline on the projection of a document.
+   */
+  static class Run {
+    final AsyncPipeline source;
+    final DocumentProjection projection;
+    Future<Object> future;
+    Run(AsyncPipeline source, DocumentProjection projection) {
+      this.source = source;
+      this.projection = projection;
+    }
+  }
+  
+  /**
+   * Use virtual threads if this JVM has them, otherwise daemon platform 
+   * threads. This is done by reflection so the plugin still works on 
+   * older Java versions.
+   */
+  private static ExecutorService createExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)m.invoke(null);
+    } catch(ReflectiveOperationException ex) {
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "AsyncPipeline");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+  
+  @Override
+  public Resource init() throws ResourceInstantiationException {
+    // each duplicate runs its own controller in the background, a pool of 
+    // shared controllers would be bypassed
+    if(getSharedInstances() != null && getSharedInstances() > 0) {
+      throw new ResourceInstantiationException("Async pipeline "+getName()+
+              ": sharedInstances is not supported");
+    }
+    return super.init();
+  }
+  
+  @Override
+  public void execute() {
+    if(document == null) {
+      super.execute();
+      return;
+    }
+    // our controller can only run one document at a time
+    finishLastRun();
+    if(pendingController.get() != null) {
+      switchToPendingController();
+    }
+    final Run run = new Run(this, new DocumentProjection(document, projectionIo()));
+    run.projection.trackChanges();
+    final Controller ctl = controller;
+    final Corpus theCorpus = corpus;
+    final Document doc = run.projection.getDocument();
+    Tracer.begin(Tracer.PIPELINE, getName());
+    try {
+      run.future = EXECUTOR.submit(() -> {
+        if(ctl instanceof CorpusController) {
+          ((CorpusController)ctl).setCorpus(theCorpus);
+        }
+        ((LanguageAnalyser)ctl).setDocument(doc);
+        try {
+          ctl.execute();
+        } finally {
+          ((LanguageAnalyser)ctl).setDocument(null);
+        }
+        return null;
+      });
+    } finally {
+      Tracer.end(Tracer.PIPELINE, getName());
+    }
+    synchronized(PENDING) {
+      PENDING.computeIfAbsent(document, k -> new ArrayList<>()).add(run);
+    }
+    lastRun = run;
+  }
+  
+  /**
+   * Wait for the run started last and discard its result if it has not 
+   * been joined. 
+   */
+  private void finishLastRun() {
+    Run run = lastRun;
+    lastRun = null;
+    if(run == null) {
+      return;
+    }
+    boolean joined = true;
+    synchronized(PENDING) {
+      for(List<Run> runs : PENDING.values()) {
+        if(runs.remove(run)) {
+          joined = false;
+          break;
+        }
+      }
+    }
+    if(!joined) {
+      LOGGER.warn("Async pipeline "+getName()+" was not joined for document "+
+              run.projection.getDocument().getName()+", result discarded");
+      try {
+        run.future.get();
+      } catch(Exception ex) {
+        LOGGER.debug("Error in async pipeline "+getName()+" which was not joined", ex);
+      } finally {
+        run.projection.discard();
+      }
+    }
+  }
+  
+  /**
+   * Remove the runs which have been started for the document and not 
+   * joined yet.
+   * 
+   * @param doc the document
+   * @param name the name of the async pipeline PR or null or empty for all
+   * @return the runs, possibly empty
+   */
+  static List<Run> takeRuns(Document doc, String name) {
+    List<Run> ret = new ArrayList<>();
+    synchronized(PENDING) {
+      List<Run> runs = PENDING.get(doc);
+      if(runs == null) {
+        return ret;
+      }
+      for(Iterator<Run> it = runs.iterator(); it.hasNext(); ) {
+        Run run = it.next();
+        if(name == null || name.isEmpty() || name.equals(run.source.getName())) {
+          ret.add(run);
+          it.remove();
+        }
+      }
+      if(runs.isEmpty()) {
+        PENDING.remove(doc);
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Wait for a run to finish and copy its output to the document.
+   * 
+   * @param run the run
+   * @throws ExecutionException if the pipeline failed
+   */
+  static void join(Run run) throws ExecutionException {
+    try {
+      run.future.get();
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      run.projection.discard();
+      throw new ExecutionException("Interrupted while waiting for async pipeline "+run.source.getName(), ex);
+    } catch(java.util.concurrent.ExecutionException ex) {
+      run.projection.discard();
+      throw new ExecutionException("Error running async pipeline "+run.source.getName(), ex.getCause());
+    }
+    run.projection.merge();
+  }
+  
+  @Override
+  public void controllerExecutionFinished(Controller c) throws ExecutionException {
+    finishLastRun();
+    super.controllerExecutionFinished(c);
+  }
+  
+  @Override
+  public void controllerExecutionAborted(Controller c, Throwable t) throws ExecutionException {
+    finishLastRun();
+    super.controllerExecutionAborted(c, t);
+  }
+  
+  @Override
+  public void cleanup() {
+    try {
+      finishLastRun();
+    } catch(GateRuntimeException ex) {
+      LOGGER.debug("Error finishing async pipeline "+getName(), ex);
+    }
+    super.cleanup();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import java.util.List;
+
+/**
+ * Wait for the {@link AsyncPipeline} PRs started for the current document
+ * and add their results to the document.
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(name = "Async Pipeline Join",
+        comment = "Waits for Async Pipeline PRs running on the document and adds their results")
+public class AsyncPipelineJoin extends AbstractLanguageAnalyser {
+  private static final long serialVersionUID = 1L;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="The name of the Async Pipeline PR to wait for, if not set, wait for all")
+  public void setAsyncPipelineName(String value) {
+    asyncPipelineName = value;
+  }
+  public String getAsyncPipelineName() {
+    return asyncPipelineName;
+  }
+  protected String asyncPipelineName = null;
+  
+  @Override
+  public void execute() throws ExecutionException {
+    if(document == null) {
+      return;
+    }
+    List<AsyncPipeline.Run> runs = AsyncPipeline.takeRuns(document, asyncPipelineName);
+    ExecutionException failure = null;
+    // join all of them even if one fails, so no run is left behind
+    for(AsyncPipeline.Run run : runs) {
+      try {
+        AsyncPipeline.join(run);
+      } catch(ExecutionException ex) {
+        if(failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    if(failure != null) {
+      throw failure;
+    }
+  }
+}
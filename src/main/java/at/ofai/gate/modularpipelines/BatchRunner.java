@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.LanguageAnalyser;
+import gate.creole.AbstractController;
+import gate.creole.ExecutionException;
+import gate.corpora.DocumentJsonUtils;
+import gate.util.GateException;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import gate.util.persistence.PersistenceManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+/**
+ * Run a pipeline over many documents from the command line.
+ * 
+ * The pipeline is loaded once and duplicated for each worker thread. The
+ * input files are read from a directory tree or a manifest file with one 
+ * path per line, or the documents are read from a single file with one
+ * document per line, either plain text or JSON (see {@link DocumentSource}).
+ * The inputs are handed to the workers through a bounded queue, so only
+ * a few documents per worker are in memory at any time. Each worker runs
+ * its pipeline over the stream of documents it gets from the queue without
+ * a corpus, so the controller callbacks are invoked only once per worker.
+ * Each processed document gets written to the output directory, using the 
+ * path of the input file relative to the input directory or the name of 
+ * the document for documents read from lines. If a worker aborts, e.g. 
+ * because a controller callback fails, the other workers take over its 
+ * share of the inputs. Only once all workers have aborted, the remaining 
+ * inputs are counted as failed.
+ * <p>
+ * Usage: 
+ * <pre>
+ * BatchRunner -p pipeline.xgapp (-i indir | -m manifest | -l linesfile | 
+ *   -j jsonlfile [-T textfield]) [-o outdir] 
+ *   [-c config.yaml] [-t threads] [-f xml|json|none] [-s suffix] 
+ *   [-e encoding] [-M mimetype] [-r reportSeconds]
+ * </pre>
+ * If a config file is given, it is used as the config file of the pipeline,
+ * which must be a Parametrized Corpus Controller then.
+ * <p>
+ * Progress and errors are logged through log4j. If log4j has not been 
+ * configured, e.g. with the log4j.configuration system property, messages
+ * of level INFO and above get logged to standard error.
+ * 
+ * @author Johann Petrak
+ */
+public class BatchRunner {
+  
+  protected static final Logger LOGGER = Logger.getLogger(BatchRunner.class);
+  
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  
+  // put into the queue to tell a worker that there is nothing more to do
+  private static final Input END = new Input(null, null, null);
+  
+  private File pipelineFile;
+  private URL configFileUrl = null;
+  private File inputDir = null;
+  private File manifestFile = null;
+  private File linesFile = null;
+  private File jsonLinesFile = null;
+  private String textField = "text";
+  private File outputDir = null;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private String format = "xml";
+  private String suffix = null;
+  private String encoding = "UTF-8";
+  private String mimeType = null;
+  private int reportSeconds = 10;
+  
+  private final AtomicLong docsDone = new AtomicLong();
+  private final AtomicLong docsFailed = new AtomicLong();
+  private final AtomicLong charsDone = new AtomicLong();
+  // the workers which have not aborted yet
+  private final AtomicInteger liveWorkers = new AtomicInteger();
+  
+  public static void main(String[] args) {
+    configureLogging();
+    BatchRunner runner = new BatchRunner();
+    try {
+      runner.parseArgs(args);
+    } catch(IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      usage();
+      System.exit(2);
+    }
+    int exitCode;
+    try {
+      Gate.runInSandbox(true);
+      Gate.init();
+      exitCode = runner.run() ? 0 : 1;
+    } catch(Exception ex) {
+      LOGGER.error("Batch run failed", ex);
+      exitCode = 1;
+    }
+    System.exit(exitCode);
+  }
+  
+  // log to stderr unless log4j got configured already
+  private static void configureLogging() {
+    Logger root = Logger.getRootLogger();
+    if(!root.getAllAppenders().hasMoreElements()) {
+      root.addAppender(new ConsoleAppender(
+              new PatternLayout("%d{HH:mm:ss} %-5p %c{1} - %m%n"), ConsoleAppender.SYSTEM_ERR));
+      root.setLevel(Level.INFO);
+    }
+  }
+  
+  private static void usage() {
+    System.err.println("Usage: BatchRunner -p pipeline.xgapp (-i indir | -m manifest | -l linesfile |");
+    System.err.println("  -j jsonlfile [-T textfield]) [-o outdir]");
+    System.err.println("  [-c config.yaml] [-t threads] [-f xml|json|none] [-s suffix]");
+    System.err.println("  [-e encoding] [-M mimetype] [-r reportSeconds]");
+  }
+  
+  /**
+   * Set the options from command line arguments.
+   * 
+   * @param args the arguments
+   * @throws IllegalArgumentException if an option is missing or not valid
+   */
+  public void parseArgs(String[] args) {
+    for(int i = 0; i < args.length; i++) {
+      String opt = args[i];
+      if(i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for option "+opt);
+      }
+      String value = args[++i];
+      switch(opt) {
+        case "-p": pipelineFile = new File(value); break;
+        case "-c": 
+          try {
+            configFileUrl = new File(value).toURI().toURL();
+          } catch(IOException ex) {
+            throw new IllegalArgumentException("Not a valid config file: "+value);
+          }
+          break;
+        case "-i": inputDir = new File(value); break;
+        case "-m": manifestFile = new File(value); break;
+        case "-l": linesFile = new File(value); break;
+        case "-j": jsonLinesFile = new File(value); break;
+        case "-T": textField = value; break;
+        case "-o": outputDir = new File(value); break;
+        case "-t": threads = Integer.parseInt(value); break;
+        case "-f": format = value; break;
+        case "-s": suffix = value; break;
+        case "-e": encoding = value; break;
+        case "-M": mimeType = value; break;
+        case "-r": reportSeconds = Integer.parseInt(value); break;
+        default:
+          throw new IllegalArgumentException("Unknown option: "+opt);
+      }
+    }
+    if(pipelineFile == null) {
+      throw new IllegalArgumentException("No pipeline file given");
+    }
+    int nInputs = (inputDir == null ? 0 : 1) + (manifestFile == null ? 0 : 1) +
+            (linesFile == null ? 0 : 1) + (jsonLinesFile == null ? 0 : 1);
+    if(nInputs != 1) {
+      throw new IllegalArgumentException("Exactly one of input directory, manifest file, lines file or JSON lines file must be given");
+    }
+    if(!format.equals("xml") && !format.equals("json") && !format.equals("none")) {
+      throw new IllegalArgumentException("Output format must be xml, json or none");
+    }
+    if(outputDir == null && !format.equals("none")) {
+      throw new IllegalArgumentException("No output directory given");
+    }
+    if(threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread");
+    }
+  }
+  
+  /**
+   * Process all the input files.
+   * 
+   * @return true if all documents were processed without an error
+   * @throws Exception if the pipeline cannot be loaded or the input cannot
+   * be read
+   */
+  public boolean run() throws Exception {
+    CorpusController controller = (CorpusController)PersistenceManager.loadObjectFromFile(pipelineFile);
+    if(configFileUrl != null) {
+      if(!(controller instanceof ParametrizedCorpusController)) {
+        throw new GateException("A config file can only be used with a Parametrized Corpus Controller");
+      }
+      ((ParametrizedCorpusController)controller).setConfigFileUrl(configFileUrl);
+    }
+    if(!(controller instanceof AbstractController && controller instanceof LanguageAnalyser)) {
+      throw new GateException("The pipeline must be a controller which can process single documents");
+    }
+    List<CorpusController> workers = new ArrayList<>(threads);
+    workers.add(controller);
+    if(threads > 1) {
+      ParallelDuplicator.Report<CorpusController> report = 
+              ParallelDuplicator.duplicate(controller, threads - 1);
+      LOGGER.info(report);
+      // the loaded controller already ran its warm-up
+      Utils.warmUpDuplicates(report.getDuplicates());
+      workers.addAll(report.getDuplicates());
+    }
+    BlockingQueue<Input> queue = new ArrayBlockingQueue<>(threads * 4);
+    liveWorkers.set(threads);
+    List<Thread> workerThreads = new ArrayList<>(threads);
+    for(int i = 0; i < threads; i++) {
+      final CorpusController worker = workers.get(i);
+      Thread thread = new Thread(() -> work(worker, queue), "BatchRunner-worker-"+i);
+      thread.start();
+      workerThreads.add(thread);
+    }
+    long start = System.nanoTime();
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    if(reportSeconds > 0) {
+      reporter.scheduleAtFixedRate(() -> report(start), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+    }
+    try {
+      if(linesFile != null || jsonLinesFile != null) {
+        queueDocuments(queue);
+      } else {
+        try (Stream<File> inputs = inputFiles()) {
+          Iterator<File> it = inputs.iterator();
+          while(it.hasNext()) {
+            File file = it.next();
+            queue.put(new Input(file, null, relativeName(file)));
+          }
+        }
+      }
+    } finally {
+      for(int i = 0; i < threads; i++) {
+        queue.put(END);
+      }
+      for(Thread thread : workerThreads) {
+        thread.join();
+      }
+      reporter.shutdownNow();
+    }
+    report(start);
+    for(CorpusController worker : workers) {
+      Factory.deleteResource(worker);
+    }
+    return docsFailed.get() == 0;
+  }
+  
+  private void report(long start) {
+    double secs = (System.nanoTime() - start) / 1e9;
+    long done = docsDone.get();
+    LOGGER.info(String.format("Processed %d documents (%d failed) in %.1fs, %.1f docs/s, %.0f chars/s", 
+            done, docsFailed.get(), secs, done / secs, charsDone.get() / secs));
+  }
+  
+  /**
+   * Return a stream of the input files, which reads the directory
+   * or manifest lazily.
+   */
+  protected Stream<File> inputFiles() throws IOException {
+    Stream<Path> paths;
+    if(inputDir != null) {
+      paths = Files.walk(inputDir.toPath()).filter(Files::isRegularFile);
+      if(suffix != null) {
+        paths = paths.filter(p -> p.toString().endsWith(suffix));
+      }
+    } else {
+      BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8);
+      File base = manifestFile.getAbsoluteFile().getParentFile();
+      paths = reader.lines().onClose(() -> {
+        try {
+          reader.close();
+        } catch(IOException ex) {
+          // ignore
+        }
+      }).map(String::trim).filter(l -> !l.isEmpty() && !l.startsWith("#"))
+              .map(l -> {
+                File f = new File(l);
+                return f.isAbsolute() ? f.toPath() : new File(base, l).toPath();
+              });
+    }
+    return paths.map(Path::toFile);
+  }
+  
+  /**
+   * Read the documents from the lines or JSON lines file and put them into
+   * the queue. Lines which cannot be converted to a document are counted as
+   * failed.
+   */
+  private void queueDocuments(BlockingQueue<Input> queue) throws IOException, InterruptedException {
+    try (DocumentSource source = linesFile != null ? 
+            DocumentSource.fromLines(linesFile, encoding) : 
+            DocumentSource.fromJsonLines(jsonLinesFile, textField)) {
+      while(source.hasNext()) {
+        Document doc;
+        try {
+          doc = source.next();
+        } catch(GateRuntimeException ex) {
+          LOGGER.error("Could not create document", ex);
+          docsFailed.incrementAndGet();
+          continue;
+        }
+        queue.put(new Input(null, doc, doc.getName().replace(':', '-')));
+      }
+    }
+  }
+  
+  private void work(CorpusController controller, BlockingQueue<Input> queue) {
+    InputIterator documents = new InputIterator(queue);
+    boolean aborted = false;
+    try {
+      Utils.executeStream((AbstractController & LanguageAnalyser)controller, documents, 
+              doc -> processed(doc, documents.current),
+              (doc, ex) -> {
+                LOGGER.error("Error processing "+documents.current.outputName, ex);
+                docsFailed.incrementAndGet();
+              });
+    } catch(ExecutionException | RuntimeException ex) {
+      LOGGER.error("Worker "+Thread.currentThread().getName()+" aborted", ex);
+      aborted = true;
+    } finally {
+      if(liveWorkers.decrementAndGet() > 0 && aborted) {
+        // the other workers process the rest
+        documents.handBack();
+      } else {
+        // make sure the queue keeps getting emptied so the reader does not block
+        documents.drain();
+      }
+    }
+  }
+  
+  private void processed(Document doc, Input input) {
+    try {
+      write(doc, input);
+      charsDone.addAndGet(doc.getContent().size());
+      docsDone.incrementAndGet();
+    } catch(IOException ex) {
+      LOGGER.error("Error writing "+input.outputName, ex);
+      docsFailed.incrementAndGet();
+    }
+  }
+  
+  private Document load(Input input) {
+    if(input.document != null) {
+      return input.document;
+    }
+    try {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put(Document.DOCUMENT_URL_PARAMETER_NAME, input.file.toURI().toURL());
+      parms.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, encoding);
+      if(mimeType != null) {
+        parms.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
+      }
+      return (Document)Factory.createResource("gate.corpora.DocumentImpl", parms, null, input.file.getName());
+    } catch(Exception ex) {
+      LOGGER.error("Error loading "+input.file, ex);
+      docsFailed.incrementAndGet();
+      return null;
+    }
+  }
+  
+  private String relativeName(File input) {
+    if(inputDir != null) {
+      return inputDir.getAbsoluteFile().toPath().relativize(input.getAbsoluteFile().toPath()).toString();
+    } else {
+      return input.getName();
+    }
+  }
+  
+  private File outputFile(Input input, String extension) {
+    File out = new File(outputDir, input.outputName + extension);
+    out.getParentFile().mkdirs();
+    return out;
+  }
+  
+  private void write(Document doc, Input input) throws IOException {
+    switch(format) {
+      case "xml":
+        try (Writer out = new OutputStreamWriter(
+                new FileOutputStream(outputFile(input, ".xml")), StandardCharsets.UTF_8)) {
+          out.write(doc.toXml());
+        }
+        break;
+      case "json":
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(outputFile(input, ".json"), JsonEncoding.UTF8)) {
+          DocumentJsonUtils.writeDocument(doc, 0L, doc.getContent().size(), 
+                  annotationsByType(doc), doc.getFeatures(), json);
+        } catch(InvalidOffsetException ex) {
+          throw new IOException("Could not write document "+doc.getName(), ex);
+        }
+        break;
+      default:
+        // nothing to write
+    }
+  }
+  
+  /**
+   * Map all annotations to the JSON annotation keys: the type for the 
+   * default set and "setname:type" for other sets.
+   */
+  private static Map<String, Collection<Annotation>> annotationsByType(Document doc) {
+    Map<String, Collection<Annotation>> ret = new HashMap<>();
+    addAnnotations(ret, "", doc.getAnnotations());
+    for(String setName : doc.getAnnotationSetNames()) {
+      if(setName != null && !setName.isEmpty()) {
+        addAnnotations(ret, setName + ":", doc.getAnnotations(setName));
+      }
+    }
+    return ret;
+  }
+  
+  private static void addAnnotations(Map<String, Collection<Annotation>> map, String prefix, AnnotationSet set) {
+    for(String type : set.getAllTypes()) {
+      map.put(prefix + type, set.get(type));
+    }
+  }
+  
+  /**
+   * One item of work: either a file to load or an already created document,
+   * together with the name to use for the output file.
+   */
+  private static class Input {
+    final File file;
+    final Document document;
+    final String outputName;
+    Input(File file, Document document, String outputName) {
+      this.file = file;
+      this.document = document;
+      this.outputName = outputName;
+    }
+  }
+  
+  /**
+   * The documents a worker takes from the queue, loaded when they are 
+   * needed. Inputs which cannot be loaded are skipped.
+   */
+  private class InputIterator implements Iterator<Document> {
+    private final BlockingQueue<Input> queue;
+    private Document next = null;
+    private boolean ended = false;
+    // the input of the document last returned
+    Input current = null;
+    InputIterator(BlockingQueue<Input> queue) {
+      this.queue = queue;
+    }
+    @Override
+    public boolean hasNext() {
+      while(next == null && !ended) {
+        try {
+          Input input = queue.take();
+          if(input == END) {
+            ended = true;
+          } else {
+            current = input;
+            next = load(input);
+          }
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          ended = true;
+        }
+      }
+      return next != null;
+    }
+    @Override
+    public Document next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Document doc = next;
+      next = null;
+      return doc;
+    }
+    // put the input we already took back for the other workers
+    void handBack() {
+      if(next == null) {
+        return;
+      }
+      if(current.document == null) {
+        // gets loaded again by the worker which takes it
+        Factory.deleteResource(next);
+      }
+      next = null;
+      if(!queue.offer(current)) {
+        LOGGER.error("Could not hand back "+current.outputName+" to the other workers");
+        docsFailed.incrementAndGet();
+        if(current.document != null) {
+          Factory.deleteResource(current.document);
+        }
+      }
+    }
+    void drain() {
+      if(next != null) {
+        Factory.deleteResource(next);
+        next = null;
+      }
+      while(!ended) {
+        try {
+          Input input = queue.take();
+          if(input == END) {
+            ended = true;
+          } else {
+            docsFailed.incrementAndGet();
+            if(input.document != null) {
+              Factory.deleteResource(input.document);
+            }
+          }
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          ended = true;
+        }
+      }
+    }
+  }
+}
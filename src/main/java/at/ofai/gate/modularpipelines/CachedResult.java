@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * What a sub-pipeline did to a document: the annotations it added and the
+ * document features it set or removed.
+ * 
+ * A cached result is captured by comparing the document after running 
+ * the sub-pipeline with a snapshot taken before, and can then be replayed
+ * on another document with the same content and inputs instead of running
+ * the sub-pipeline again. 
+ * Only additions of annotations and changes of document features are 
+ * recorded: annotations the sub-pipeline removed or changed are not, and 
+ * feature values which refer to annotation ids will refer to the wrong 
+ * annotations after replaying.
+ * Feature values are copied when the snapshot is taken, when the result is
+ * captured and when it is replayed, so a PR which changes a value in place
+ * neither goes unnoticed nor changes the cached result. A result with a 
+ * value which is neither immutable nor serializable cannot be captured.
+ * 
+ * @author Johann Petrak
+ */
+public class CachedResult implements Serializable {
+  
+  private static final long serialVersionUID = 1L;
+  
+  /**
+   * The state of a document before running the sub-pipeline.
+   */
+  public static class Before {
+    protected int maxAnnotationId;
+    protected Map<Object, Object> features;
+  }
+  
+  protected static class AnnotationEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+    protected String setName;
+    protected String type;
+    protected long start;
+    protected long end;
+    protected HashMap<Object, Object> features;
+  }
+  
+  protected List<AnnotationEntry> annotations = new ArrayList<>();
+  protected HashMap<Object, Object> setFeatures = new HashMap<>();
+  protected ArrayList<Object> removedFeatures = new ArrayList<>();
+  
+  /**
+   * Take a snapshot of what is needed to find out later what was changed.
+   * 
+   * @param doc the document
+   * @return the snapshot
+   */
+  public static Before snapshot(Document doc) {
+    Before before = new Before();
+    before.maxAnnotationId = maxId(doc.getAnnotations(), -1);
+    for (AnnotationSet set : doc.getNamedAnnotationSets().values()) {
+      before.maxAnnotationId = maxId(set, before.maxAnnotationId);
+    }
+    before.features = new HashMap<>();
+    for (Map.Entry<Object, Object> entry : doc.getFeatures().entrySet()) {
+      Object value = entry.getValue();
+      // a value we cannot copy is compared by identity only
+      before.features.put(entry.getKey(), 
+              isImmutable(value) || !(value instanceof Serializable) ? value : copy(value));
+    }
+    return before;
+  }
+  
+  private static int maxId(AnnotationSet set, int max) {
+    for (Annotation ann : set) {
+      if (ann.getId() > max) {
+        max = ann.getId();
+      }
+    }
+    return max;
+  }
+  
+  /**
+   * Record the changes made to the document since the snapshot was taken.
+   * 
+   * @param doc the document
+   * @param before the snapshot taken before running the sub-pipeline
+   * @return the changes
+   * @throws GateRuntimeException if a new feature value cannot be copied
+   */
+  public static CachedResult capture(Document doc, Before before) {
+    CachedResult result = new CachedResult();
+    result.addNew(null, doc.getAnnotations(), before.maxAnnotationId);
+    for (Map.Entry<String, AnnotationSet> entry : doc.getNamedAnnotationSets().entrySet()) {
+      result.addNew(entry.getKey(), entry.getValue(), before.maxAnnotationId);
+    }
+    FeatureMap after = doc.getFeatures();
+    for (Map.Entry<Object, Object> entry : after.entrySet()) {
+      if (!before.features.containsKey(entry.getKey()) || 
+          !Objects.equals(before.features.get(entry.getKey()), entry.getValue())) {
+        result.setFeatures.put(entry.getKey(), copy(entry.getValue()));
+      }
+    }
+    for (Object key : before.features.keySet()) {
+      if (!after.containsKey(key)) {
+        result.removedFeatures.add(key);
+      }
+    }
+    return result;
+  }
+  
+  private void addNew(String setName, AnnotationSet set, int maxIdBefore) {
+    for (Annotation ann : set) {
+      if (ann.getId() > maxIdBefore) {
+        AnnotationEntry entry = new AnnotationEntry();
+        entry.setName = setName;
+        entry.type = ann.getType();
+        entry.start = ann.getStartNode().getOffset();
+        entry.end = ann.getEndNode().getOffset();
+        entry.features = copyFeatures(ann.getFeatures());
+        annotations.add(entry);
+      }
+    }
+  }
+  
+  /**
+   * Apply the recorded changes to a document.
+   * 
+   * @param doc the document
+   */
+  public void replay(Document doc) {
+    for (AnnotationEntry entry : annotations) {
+      AnnotationSet set = entry.setName == null ? doc.getAnnotations() : doc.getAnnotations(entry.setName);
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.putAll(copyFeatures(entry.features));
+      try {
+        set.add(entry.start, entry.end, entry.type, fm);
+      } catch (InvalidOffsetException ex) {
+        throw new GateRuntimeException("Cannot replay cached annotation for document " + doc.getName(), ex);
+      }
+    }
+    doc.getFeatures().putAll(copyFeatures(setFeatures));
+    for (Object key : removedFeatures) {
+      doc.getFeatures().remove(key);
+    }
+  }
+  
+  private static HashMap<Object, Object> copyFeatures(Map<Object, Object> features) {
+    HashMap<Object, Object> ret = new HashMap<>();
+    for (Map.Entry<Object, Object> entry : features.entrySet()) {
+      ret.put(entry.getKey(), copy(entry.getValue()));
+    }
+    return ret;
+  }
+  
+  /**
+   * Return a deep copy of a feature value, or the value itself if it is 
+   * immutable.
+   * 
+   * @param value the value
+   * @return the copy
+   */
+  protected static Object copy(Object value) {
+    if (isImmutable(value)) {
+      return value;
+    }
+    if (!(value instanceof Serializable)) {
+      throw new GateRuntimeException("Cannot cache feature value of type " + 
+              value.getClass().getName() + ", it is neither immutable nor serializable");
+    }
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+        oos.writeObject(value);
+      }
+      try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+        return ois.readObject();
+      }
+    } catch (IOException | ClassNotFoundException ex) {
+      throw new GateRuntimeException("Cannot copy feature value of type " + value.getClass().getName(), ex);
+    }
+  }
+  
+  private static boolean isImmutable(Object value) {
+    return value == null || value instanceof String || value instanceof Boolean || 
+            value instanceof Character || value instanceof Enum ||
+            value instanceof Number && value.getClass().getName().startsWith("java.");
+  }
+  
+  public int getNrAnnotations() {
+    return annotations.size();
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.RunningStrategy;
+
+/**
+ * A running strategy which runs a PR only if a compiled run condition
+ * is true for the document the PR is going to process.
+ * 
+ * These strategies are created from the "prcond" config settings and are
+ * checked by the ParametrizedCorpusController in addition to the running
+ * strategy which is stored with the controller.
+ * 
+ * @author Johann Petrak
+ */
+public class ConditionRunningStrategy implements RunningStrategy {
+  
+  protected LanguageAnalyser pr;
+  protected RunCondition condition;
+  
+  public ConditionRunningStrategy(LanguageAnalyser pr, RunCondition condition) {
+    this.pr = pr;
+    this.condition = condition;
+  }
+
+  @Override
+  public boolean shouldRun() {
+    return condition.test(pr.getDocument());
+  }
+
+  @Override
+  public int getRunMode() {
+    return RUN_CONDITIONAL;
+  }
+
+  @Override
+  public ProcessingResource getPR() {
+    return pr;
+  }
+  
+  public RunCondition getCondition() {
+    return condition;
+  }
+}
@@ -21,6 +21,8 @@
 package at.ofai.gate.modularpipelines;
 
 import gate.FeatureMap;
+import gate.util.GateRuntimeException;
+import java.io.File;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -52,6 +54,155 @@ public class Config {
   public Map<String,Map<String,Object>> prRuntimeParms = new HashMap<>();
   // Same, but for init parms
   public Map<String,Map<String,Object>> prInitParms = new HashMap<>();
+  // Settings where the controller and PR name are glob or regex patterns.
+  // The matchers work on "controllerName\tprName" and return the maps of
+  // parameter name to value of all matching settings, these get resolved
+  // to the entries above for the actual controllers and PRs, where the
+  // settings for the exact names take precedence.
+  public NameMatcher<Map<String,Object>> prRuntimePatterns = new NameMatcher<>();
+  public NameMatcher<Map<String,Object>> prInitPatterns = new NameMatcher<>();
+  // The sample documents to run through the pipeline before it is used,
+  // one document per line, and how often to run them. If the file name
+  // ends in .jsonl, each line is a JSON object with the text in the field
+  // warmupTextField.
+  public File warmupFile = null;
+  public int warmupIterations = 0;
+  public String warmupTextField = "text";
+  // The journal of completed documents for resuming an aborted corpus run
+  // and how often it gets forced to disk, see Journal.
+  public File journalFile = null;
+  public int journalSyncEvery = 1000;
+  public long journalSyncMillis = 1000L;
+  // The slice of a corpus to process when several processes share one 
+  // corpus: documents are assigned to one of shardCount shards either by a 
+  // hash of their id ("hash") or by their position in the corpus ("range"),
+  // and only the documents of shard shardIndex get processed.
+  public int shardIndex = 0;
+  public int shardCount = 1;
+  public String shardMode = "hash";
+  // The annotation sets and document features to delete after a controller
+  // or PR has finished a document. The matcher works on 
+  // "controllerName\tprName", where the PR name is empty for deleting after
+  // the whole controller.
+  public NameMatcher<Deletion> deletions = new NameMatcher<>();
+  
+  // The document features as arrays, so that setting them for each document
+  // does not need to create iterators. These get created on first use from
+  // the maps above and must be reset by calling docFeaturesChanged() whenever
+  // docFeatures or docFeaturesOverridable are modified. The config is used 
+  // by all duplicates of a controller at the same time, so the arrays are 
+  // only ever published together, through the volatile field.
+  private volatile CompiledDocFeatures compiled = null;
+  
+  private static final class CompiledDocFeatures {
+    final FeatureMap from;
+    final String[] names;
+    final Object[] values;
+    final boolean[] overridable;
+    CompiledDocFeatures(FeatureMap from, String[] names, Object[] values, boolean[] overridable) {
+      this.from = from;
+      this.names = names;
+      this.values = values;
+      this.overridable = overridable;
+    }
+  }
+  
+  /**
+   * Create a copy of this config which shares all settings with this one.
+   * 
+   * @return the copy
+   */
+  public Config copy() {
+    Config ret = new Config();
+    ret.globalConfigFileUrl = globalConfigFileUrl;
+    ret.origUrl = origUrl;
+    ret.docFeatures = docFeatures;
+    ret.docFeaturesOverridable = docFeaturesOverridable;
+    ret.prRuntimeParms = prRuntimeParms;
+    ret.prInitParms = prInitParms;
+    ret.prRuntimePatterns = prRuntimePatterns;
+    ret.prInitPatterns = prInitPatterns;
+    ret.warmupFile = warmupFile;
+    ret.warmupIterations = warmupIterations;
+    ret.warmupTextField = warmupTextField;
+    ret.journalFile = journalFile;
+    ret.journalSyncEvery = journalSyncEvery;
+    ret.journalSyncMillis = journalSyncMillis;
+    ret.shardIndex = shardIndex;
+    ret.shardCount = shardCount;
+    ret.shardMode = shardMode;
+    ret.deletions = deletions;
+    return ret;
+  }
+  
+  /**
+   * Check that the shard settings make sense.
+   */
+  public void checkShard() {
+    if(shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+      throw new GateRuntimeException("Shard index "+shardIndex+" is not valid for shard count "+shardCount);
+    }
+    if(!"hash".equals(shardMode) && !"range".equals(shardMode)) {
+      throw new GateRuntimeException("Shard mode must be hash or range, not "+shardMode);
+    }
+  }
+  
+  /**
+   * Signal that the document features have been modified.
+   */
+  public void docFeaturesChanged() {
+    compiled = null;
+  }
+  
+  private synchronized CompiledDocFeatures compileDocFeatures() {
+    CompiledDocFeatures c = compiled;
+    if(c != null && c.from == docFeatures) {
+      return c;
+    }
+    int n = docFeatures == null ? 0 : docFeatures.size();
+    String[] names = new String[n];
+    Object[] values = new Object[n];
+    boolean[] overridable = new boolean[n];
+    int i = 0;
+    if(docFeatures != null) {
+      for(Object key : docFeatures.keySet()) {
+        names[i] = (String)key;
+        values[i] = docFeatures.get(key);
+        // If we do not have any information or if the info is set to true,
+        // override, otherwise do not override.
+        Object flag = docFeaturesOverridable == null ? null : docFeaturesOverridable.get(key);
+        overridable[i] = flag == null || (Boolean)flag;
+        i++;
+      }
+    }
+    c = new CompiledDocFeatures(docFeatures, names, values, overridable);
+    compiled = c;
+    return c;
+  }
+  
+  /**
+   * Set the configured document features in the given feature map.
+   * 
+   * A feature which already has a non-null value only gets overridden 
+   * if the config allows it. 
+   * 
+   * @param theFeatures the feature map to modify
+   */
+  public void setDocumentFeatures(FeatureMap theFeatures) {
+    CompiledDocFeatures c = compiled;
+    if(c == null || c.from != docFeatures) {
+      c = compileDocFeatures();
+    }
+    String[] names = c.names;
+    Object[] values = c.values;
+    boolean[] overridable = c.overridable;
+    for(int i = 0; i < names.length; i++) {
+      if(overridable[i] || theFeatures.get(names[i]) == null) {
+        theFeatures.put(names[i], values[i]);
+      }
+    }
+  }
+  
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
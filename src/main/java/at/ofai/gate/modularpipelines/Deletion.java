@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.AnnotationSet;
+import gate.Document;
+import gate.FeatureMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Annotation sets or document features to delete once a controller or one 
+ * of its PRs has finished a document, declared with the "deleteset" and 
+ * "deletedocfeature" config settings.
+ * 
+ * The names are matched in the same way as the controller and PR names of
+ * the setting, so with "match: glob" or "match: regex" they are patterns.
+ * The empty set name is the default annotation set, which gets cleared.
+ * 
+ * @author Johann Petrak
+ */
+public class Deletion {
+  
+  private final boolean features;
+  private final NameMatcher<Boolean> names = new NameMatcher<>();
+  private final String description;
+  
+  /**
+   * Create the deletion from a config setting.
+   * 
+   * @param features true to delete document features, false for annotation
+   * sets
+   * @param names the names or patterns
+   * @param type how to interpret the names
+   */
+  public Deletion(boolean features, Collection<?> names, NameMatcher.MatchType type) {
+    this.features = features;
+    for(Object name : names) {
+      this.names.add(name == null ? "" : name.toString(), type, Boolean.TRUE);
+    }
+    description = (features ? "features " : "sets ")+type+" "+names;
+  }
+  
+  /**
+   * Delete the matching annotation sets or features from the document.
+   * 
+   * @param doc the document
+   * @return the number of sets or features deleted
+   */
+  public int apply(Document doc) {
+    int n = 0;
+    if(features) {
+      FeatureMap fm = doc.getFeatures();
+      for(Object key : new ArrayList<>(fm.keySet())) {
+        if(key != null && !names.match(key.toString()).isEmpty()) {
+          fm.remove(key);
+          n++;
+        }
+      }
+    } else {
+      if(!names.match("").isEmpty()) {
+        AnnotationSet defaultSet = doc.getAnnotations();
+        if(!defaultSet.isEmpty()) {
+          defaultSet.clear();
+          n++;
+        }
+      }
+      List<String> setNames = new ArrayList<>(doc.getAnnotationSetNames());
+      for(String setName : setNames) {
+        if(setName != null && !setName.isEmpty() && !names.match(setName).isEmpty()) {
+          doc.removeAnnotationSet(setName);
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+  
+  @Override
+  public String toString() {
+    return "Deletion{"+description+"}";
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.corpora.DocumentImpl;
+import gate.creole.ResourceInstantiationException;
+import gate.event.AnnotationSetEvent;
+import gate.event.AnnotationSetListener;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * A separate copy of the parts of a document a PR reads, so that several 
+ * PRs can work on the same document at the same time.
+ * 
+ * The projection has the same text and document features as the original
+ * document and copies of the annotations in the sets the PR reads, with the
+ * same ids. After the PR has run on the projection, the annotation sets and
+ * features it writes are copied back to the original document: a written 
+ * set which was also read replaces the original set, keeping the ids of the 
+ * annotations which were there before, other written sets get added to the 
+ * original set. 
+ * If the projection was created with its own range of annotation ids, the 
+ * annotations the PR created keep their ids, so feature values which refer
+ * to them stay valid, otherwise they get new ids. Changes to the document 
+ * text are not supported.
+ * <p>
+ * The projection is a separate document created eagerly, not a view of the
+ * original: creating it copies the text, all document features and the 
+ * annotations of the read sets, so it costs time and memory proportional to
+ * these, and the merge costs the same for the written sets. It is only 
+ * worth it where running on the original document is not possible, e.g. 
+ * for PRs which run at the same time.
+ * <p>
+ * The projection only holds a weak reference to the original document, so
+ * a projection which never gets merged does not keep the original alive.
+ * If the original changes between creating the projection and merging it,
+ * the merge overwrites these changes for the written sets and features. 
+ * With {@link #trackChanges()}, such changes are detected and logged when
+ * merging.
+ * 
+ * @author Johann Petrak
+ */
+public class DocumentProjection {
+  
+  protected static final Logger LOGGER = Logger.getLogger(DocumentProjection.class);
+  
+  private final WeakReference<Document> original;
+  private final String originalName;
+  private final Document projection;
+  private final PrIo io;
+  // the ids of the annotations copied into the projection for each set
+  private final Map<String,Set<Integer>> copiedIds = new HashMap<>();
+  // the range of ids for new annotations in the projection, firstId is -1
+  // if the projection does not have its own range
+  private final int firstId;
+  // what got changed in the original while tracking changes
+  private Set<String> conflicts = null;
+  private Map<String,Object> trackedFeatures = null;
+  private final AnnotationSetListener tracker = new AnnotationSetListener() {
+    @Override
+    public void annotationAdded(AnnotationSetEvent e) {
+      conflicts.add("annotation set '"+((AnnotationSet)e.getSource()).getName()+"'");
+    }
+    @Override
+    public void annotationRemoved(AnnotationSetEvent e) {
+      conflicts.add("annotation set '"+((AnnotationSet)e.getSource()).getName()+"'");
+    }
+  };
+  
+  /**
+   * The number of annotation ids reserved for each projection which has
+   * its own range.
+   */
+  public static final int ID_RANGE = 1 << 20;
+  
+  /**
+   * Create the projection of the document for a PR.
+   * 
+   * @param original the document
+   * @param io what the PR reads and writes
+   */
+  public DocumentProjection(Document original, PrIo io) {
+    this(original, io, -1);
+  }
+  
+  /**
+   * Create the projection of the document for a PR which creates its 
+   * annotations with ids from its own range.
+   * 
+   * The range starts at firstId and has {@link #ID_RANGE} ids, the ranges
+   * of projections which get merged into the same document must not 
+   * overlap and must not contain ids which are already used in the 
+   * document.
+   * 
+   * @param original the document
+   * @param io what the PR reads and writes
+   * @param firstId the first id of the range or -1 for no range
+   */
+  public DocumentProjection(Document original, PrIo io, int firstId) {
+    this.original = new WeakReference<>(original);
+    this.originalName = original.getName();
+    this.io = io;
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, original.getContent().toString());
+    parms.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, false);
+    FeatureMap features = Factory.newFeatureMap();
+    Gate.setHiddenAttribute(features, true);
+    try {
+      projection = (Document)Factory.createResource("gate.corpora.DocumentImpl", parms, features, original.getName());
+    } catch(ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Could not create a projection of document "+original.getName(), ex);
+    }
+    projection.getFeatures().putAll(original.getFeatures());
+    for(String setName : io.getReadSets()) {
+      AnnotationSet to = set(projection, setName);
+      to.clear();
+      Set<Integer> ids = new HashSet<>();
+      for(Annotation ann : set(original, setName)) {
+        add(to, ann.getId(), ann);
+        ids.add(ann.getId());
+      }
+      copiedIds.put(setName, ids);
+    }
+    if(firstId >= 0 && projection instanceof DocumentImpl) {
+      ((DocumentImpl)projection).setNextAnnotationId(firstId);
+      this.firstId = firstId;
+    } else {
+      if(original instanceof DocumentImpl && projection instanceof DocumentImpl) {
+        ((DocumentImpl)projection).setNextAnnotationId(((DocumentImpl)original).peakAtNextAnnotationId());
+      }
+      this.firstId = -1;
+    }
+  }
+  
+  /**
+   * Return the id the next annotation created in the document will get.
+   * 
+   * @param doc the document
+   * @return the id
+   */
+  public static int nextAnnotationId(Document doc) {
+    if(doc instanceof DocumentImpl) {
+      return ((DocumentImpl)doc).peakAtNextAnnotationId();
+    }
+    int max = -1;
+    for(Annotation ann : doc.getAnnotations()) {
+      max = Math.max(max, ann.getId());
+    }
+    for(AnnotationSet set : doc.getNamedAnnotationSets().values()) {
+      for(Annotation ann : set) {
+        max = Math.max(max, ann.getId());
+      }
+    }
+    return max + 1;
+  }
+  
+  /**
+   * The document the PR should process.
+   * 
+   * @return the projection
+   */
+  public Document getDocument() {
+    return projection;
+  }
+  
+  /**
+   * Record annotations added to or removed from the written sets and 
+   * changes of the written features of the original document until the 
+   * projection gets merged or discarded. 
+   * 
+   * Changes of the features of existing annotations are not detected.
+   */
+  public void trackChanges() {
+    Document doc = original.get();
+    if(doc == null || conflicts != null) {
+      return;
+    }
+    conflicts = new LinkedHashSet<>();
+    for(String setName : io.getWriteSets()) {
+      set(doc, setName).addAnnotationSetListener(tracker);
+    }
+    trackedFeatures = new HashMap<>();
+    for(String name : io.getWriteFeatures()) {
+      trackedFeatures.put(name, doc.getFeatures().get(name));
+    }
+  }
+  
+  /**
+   * Stop tracking changes of the original and return what was changed.
+   */
+  private Set<String> stopTracking(Document doc) {
+    if(conflicts == null) {
+      return null;
+    }
+    Set<String> ret = conflicts;
+    // the listeners are only referenced by the original document
+    if(doc != null) {
+      for(String setName : io.getWriteSets()) {
+        set(doc, setName).removeAnnotationSetListener(tracker);
+      }
+      for(Map.Entry<String,Object> entry : trackedFeatures.entrySet()) {
+        if(doc.getFeatures().get(entry.getKey()) != entry.getValue()) {
+          ret.add("feature '"+entry.getKey()+"'");
+        }
+      }
+    }
+    conflicts = null;
+    trackedFeatures = null;
+    return ret;
+  }
+  
+  /**
+   * Copy the written annotation sets and features back to the original 
+   * document and delete the projection.
+   * 
+   * If the original document does not exist any more, the projection is
+   * just deleted.
+   */
+  public void merge() {
+    Document original = this.original.get();
+    Set<String> changed = stopTracking(original);
+    if(original == null) {
+      discard();
+      return;
+    }
+    if(changed != null && !changed.isEmpty()) {
+      LOGGER.warn("Document "+originalName+" was changed while its projection was processed, "+
+              "the changes of "+String.join(", ", changed)+" are overwritten");
+    }
+    boolean keepIds = firstId >= 0;
+    if(keepIds && nextAnnotationId(projection) > firstId + ID_RANGE) {
+      LOGGER.warn("More than "+ID_RANGE+" annotations created for document "+
+              originalName+", annotation ids are not kept");
+      keepIds = false;
+    }
+    int maxId = -1;
+    try {
+      for(String setName : io.getWriteSets()) {
+        AnnotationSet to = set(original, setName);
+        Set<Integer> copied = copiedIds.get(setName);
+        if(copied != null) {
+          List<Annotation> old = new ArrayList<>();
+          for(Integer id : copied) {
+            Annotation ann = to.get(id);
+            if(ann != null) {
+              old.add(ann);
+            }
+          }
+          to.removeAll(old);
+        }
+        for(Annotation ann : gate.Utils.inDocumentOrder(set(projection, setName))) {
+          Integer id = ann.getId();
+          if(copied != null && copied.contains(id)) {
+            add(to, id, ann);
+          } else if(keepIds && id >= firstId) {
+            add(to, id, ann);
+            maxId = Math.max(maxId, id);
+          } else {
+            add(to, null, ann);
+          }
+        }
+      }
+      if(maxId >= 0 && original instanceof DocumentImpl && 
+         ((DocumentImpl)original).peakAtNextAnnotationId() <= maxId) {
+        ((DocumentImpl)original).setNextAnnotationId(maxId + 1);
+      }
+      for(String name : io.getWriteFeatures()) {
+        if(projection.getFeatures().containsKey(name)) {
+          original.getFeatures().put(name, projection.getFeatures().get(name));
+        } else {
+          original.getFeatures().remove(name);
+        }
+      }
+    } finally {
+      discard();
+    }
+  }
+  
+  /**
+   * Delete the projection without changing the original document.
+   */
+  public void discard() {
+    stopTracking(original.get());
+    Factory.deleteResource(projection);
+  }
+  
+  private static AnnotationSet set(Document doc, String name) {
+    return name == null || name.isEmpty() ? doc.getAnnotations() : doc.getAnnotations(name);
+  }
+  
+  private static void add(AnnotationSet to, Integer id, Annotation ann) {
+    FeatureMap fm = Factory.newFeatureMap();
+    fm.putAll(ann.getFeatures());
+    try {
+      if(id == null) {
+        to.add(ann.getStartNode().getOffset(), ann.getEndNode().getOffset(), ann.getType(), fm);
+      } else {
+        to.add(id, ann.getStartNode().getOffset(), ann.getEndNode().getOffset(), ann.getType(), fm);
+      }
+    } catch(InvalidOffsetException ex) {
+      throw new GateRuntimeException("Cannot copy annotation "+ann, ex);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazily read stream of documents from a file with one document per line.
+ * 
+ * Each line is only read and turned into a document when the next document
+ * is requested, so the whole input never has to be in memory. The source 
+ * can either treat each line as the text of a document or parse each line 
+ * as a JSON object, where one field holds the text and all other fields 
+ * become document features. Empty lines are skipped. 
+ * <p>
+ * The documents are named after the source and the line number. Whoever 
+ * consumes the documents is responsible for deleting them.
+ * 
+ * @author Johann Petrak
+ */
+public class DocumentSource implements Iterator<Document>, Closeable {
+  
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  
+  private final BufferedReader reader;
+  private final String name;
+  // the JSON field with the text or null if each line is the text
+  private final String textField;
+  private String nextLine = null;
+  private long lineNumber = 0;
+  private boolean done = false;
+  
+  /**
+   * Create a source which reads documents from the reader.
+   * 
+   * @param reader where to read the lines from
+   * @param name the name of the source, used for naming documents
+   * @param textField if null, each line is the document text, otherwise each
+   * line is a JSON object and this is the field with the document text
+   */
+  public DocumentSource(BufferedReader reader, String name, String textField) {
+    this.reader = reader;
+    this.name = name;
+    this.textField = textField;
+  }
+  
+  /**
+   * Create a source where each line of the file is the text of a document.
+   * 
+   * @param file the file
+   * @param encoding the encoding of the file
+   * @return the source
+   * @throws IOException if the file cannot be opened
+   */
+  public static DocumentSource fromLines(File file, String encoding) throws IOException {
+    return new DocumentSource(Files.newBufferedReader(file.toPath(), Charset.forName(encoding)), 
+            file.getName(), null);
+  }
+  
+  /**
+   * Create a source where each line of the file is a JSON object.
+   * 
+   * @param file the file, encoded in UTF-8
+   * @param textField the field which contains the document text
+   * @return the source
+   * @throws IOException if the file cannot be opened
+   */
+  public static DocumentSource fromJsonLines(File file, String textField) throws IOException {
+    return new DocumentSource(Files.newBufferedReader(file.toPath(), Charset.forName("UTF-8")), 
+            file.getName(), textField);
+  }
+  
+  @Override
+  public boolean hasNext() {
+    if(nextLine != null) {
+      return true;
+    }
+    if(done) {
+      return false;
+    }
+    try {
+      String line;
+      do {
+        line = reader.readLine();
+        lineNumber++;
+      } while(line != null && line.trim().isEmpty());
+      if(line == null) {
+        done = true;
+        return false;
+      }
+      nextLine = line;
+      return true;
+    } catch(IOException ex) {
+      throw new GateRuntimeException("Could not read line "+lineNumber+" of "+name, ex);
+    }
+  }
+  
+  @Override
+  public Document next() {
+    if(!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    String line = nextLine;
+    nextLine = null;
+    String docName = name + ":" + lineNumber;
+    FeatureMap features = Factory.newFeatureMap();
+    String text;
+    if(textField == null) {
+      text = line;
+    } else {
+      JsonNode json;
+      try {
+        json = MAPPER.readTree(line);
+      } catch(IOException ex) {
+        throw new GateRuntimeException("Not valid JSON in line "+lineNumber+" of "+name, ex);
+      }
+      JsonNode textNode = json.get(textField);
+      if(!json.isObject() || textNode == null) {
+        throw new GateRuntimeException("No field "+textField+" in line "+lineNumber+" of "+name);
+      }
+      text = textNode.asText();
+      Iterator<Map.Entry<String,JsonNode>> fields = json.fields();
+      while(fields.hasNext()) {
+        Map.Entry<String,JsonNode> field = fields.next();
+        if(!field.getKey().equals(textField)) {
+          JsonNode value = field.getValue();
+          features.put(field.getKey(), value.isValueNode() ? 
+                  MAPPER.convertValue(value, Object.class) : value.toString());
+        }
+      }
+    }
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, text);
+    parms.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, "text/plain");
+    try {
+      return (Document)Factory.createResource("gate.corpora.DocumentImpl", parms, features, docName);
+    } catch(ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Could not create document for line "+lineNumber+" of "+name, ex);
+    }
+  }
+  
+  @Override
+  public void close() throws IOException {
+    done = true;
+    reader.close();
+  }
+}
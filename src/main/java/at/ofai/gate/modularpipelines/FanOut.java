@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.GateConstants;
+import gate.LanguageAnalyser;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/**
+ * Run a controller over sections of a document in parallel.
+ * 
+ * The document gets split at the annotations of a given type, each section
+ * is copied into a document of its own, and the sections are processed
+ * in parallel by the controller and duplicates of it. Afterwards the 
+ * annotations created in the section documents are added to the original 
+ * document with their offsets shifted to where the section starts. 
+ * The annotations get new ids in the original document. Feature values 
+ * which refer to annotations by id are only changed to the new ids for the 
+ * features given as id features, where the value must be an Integer or a 
+ * collection of Integers.
+ * <p>
+ * This only gives the same result as running the controller on the whole
+ * document if the controller only looks at the text of a section: the 
+ * section documents do not contain any annotations of the original 
+ * document, they only get a copy of its document features, changes to 
+ * the document features are not copied back and text outside of any 
+ * section is not processed at all. Sections which overlap an earlier 
+ * section are ignored. 
+ * 
+ * @author Johann Petrak
+ */
+public class FanOut {
+  
+  protected static final Logger LOGGER = Logger.getLogger(FanOut.class);
+  
+  private final List<Controller> copies;
+  private final BlockingQueue<Controller> idle;
+  private final ExecutorService executor;
+  
+  /**
+   * Create the duplicates of the controller and the threads to run them.
+   * 
+   * @param controller the controller, it is used as one of the parallel 
+   * controllers
+   * @param threads how many sections to process in parallel
+   * @param name the name used for the threads
+   * @throws ResourceInstantiationException if the controller cannot be 
+   * duplicated
+   */
+  public FanOut(Controller controller, int threads, String name) throws ResourceInstantiationException {
+    if(!(controller instanceof LanguageAnalyser)) {
+      throw new GateRuntimeException("Fan-out needs a controller which can process a single document: "+controller.getName());
+    }
+    copies = threads > 1 ? 
+            ParallelDuplicator.duplicate(controller, threads - 1).getDuplicates() : 
+            Collections.<Controller>emptyList();
+    idle = new ArrayBlockingQueue<>(threads);
+    idle.add(controller);
+    idle.addAll(copies);
+    executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "FanOut-"+name);
+      t.setDaemon(true);
+      return t;
+    });
+  }
+  
+  /**
+   * The duplicates created for the fan-out, which need to get the same 
+   * controller callbacks as the original controller.
+   * 
+   * @return the duplicates, not including the original controller
+   */
+  public List<Controller> getCopies() {
+    return copies;
+  }
+  
+  /**
+   * Process the sections of the document in parallel and add the new 
+   * annotations to the document.
+   * 
+   * @param doc the document
+   * @param corpus the corpus to set for the controllers
+   * @param setName the annotation set with the section annotations
+   * @param type the type of the section annotations
+   * @return the number of sections processed
+   */
+  public int run(Document doc, Corpus corpus, String setName, String type) {
+    return run(doc, corpus, setName, type, null);
+  }
+  
+  /**
+   * Process the sections of the document in parallel and add the new 
+   * annotations to the document, changing the annotation ids in the 
+   * given features to the new ids.
+   * 
+   * @param doc the document
+   * @param corpus the corpus to set for the controllers
+   * @param setName the annotation set with the section annotations
+   * @param type the type of the section annotations
+   * @param idFeatures the annotation features which contain annotation ids,
+   * may be null
+   * @return the number of sections processed
+   */
+  public int run(Document doc, Corpus corpus, String setName, String type, List<String> idFeatures) {
+    AnnotationSet set = setName == null || setName.isEmpty() ? 
+            doc.getAnnotations() : doc.getAnnotations(setName);
+    List<Annotation> sections = new ArrayList<>();
+    long end = -1;
+    for(Annotation ann : gate.Utils.inDocumentOrder(set.get(type))) {
+      if(ann.getStartNode().getOffset() < end) {
+        LOGGER.debug("Ignoring overlapping section "+ann+" in "+doc.getName());
+        continue;
+      }
+      sections.add(ann);
+      end = ann.getEndNode().getOffset();
+    }
+    List<Future<Document>> results = new ArrayList<>(sections.size());
+    for(Annotation section : sections) {
+      final String text = gate.Utils.stringFor(doc, section);
+      final String sectionName = doc.getName()+"-"+section.getId();
+      results.add(executor.submit(() -> process(doc, corpus, text, sectionName)));
+    }
+    List<Document> processed = new ArrayList<>(sections.size());
+    Exception failure = null;
+    for(Future<Document> result : results) {
+      try {
+        processed.add(result.get());
+      } catch(Exception ex) {
+        if(failure == null) {
+          failure = ex;
+        }
+        processed.add(null);
+      }
+    }
+    try {
+      if(failure != null) {
+        throw new GateRuntimeException("Could not process a section of document "+doc.getName(), failure);
+      }
+      for(int i = 0; i < sections.size(); i++) {
+        merge(processed.get(i), doc, sections.get(i).getStartNode().getOffset(), idFeatures);
+      }
+    } finally {
+      for(Document sectionDoc : processed) {
+        if(sectionDoc != null) {
+          Factory.deleteResource(sectionDoc);
+        }
+      }
+    }
+    return sections.size();
+  }
+  
+  private Document process(Document doc, Corpus corpus, String text, String name) throws Exception {
+    Controller controller = idle.take();
+    Document sectionDoc = null;
+    try {
+      sectionDoc = Factory.newDocument(text);
+      sectionDoc.setName(name);
+      sectionDoc.getFeatures().putAll(doc.getFeatures());
+      if(controller instanceof CorpusController) {
+        ((CorpusController)controller).setCorpus(corpus);
+      }
+      ((LanguageAnalyser)controller).setDocument(sectionDoc);
+      try {
+        controller.execute();
+      } finally {
+        ((LanguageAnalyser)controller).setDocument(null);
+      }
+      return sectionDoc;
+    } catch(Exception ex) {
+      if(sectionDoc != null) {
+        Factory.deleteResource(sectionDoc);
+      }
+      throw ex;
+    } finally {
+      idle.put(controller);
+    }
+  }
+  
+  private static void merge(Document from, Document to, long offset, List<String> idFeatures) {
+    // the ids in the section document and in the original document
+    Map<Integer,Integer> ids = new HashMap<>();
+    List<FeatureMap> added = new ArrayList<>();
+    addAnnotations(from.getAnnotations(), to.getAnnotations(), offset, ids, added);
+    for(String name : from.getAnnotationSetNames()) {
+      if(name != null && !name.isEmpty() && 
+         !name.equals(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME)) {
+        addAnnotations(from.getAnnotations(name), to.getAnnotations(name), offset, ids, added);
+      }
+    }
+    if(idFeatures != null && !idFeatures.isEmpty()) {
+      for(FeatureMap fm : added) {
+        for(String name : idFeatures) {
+          Object value = fm.get(name);
+          if(value != null) {
+            fm.put(name, mapIds(value, ids));
+          }
+        }
+      }
+    }
+  }
+  
+  private static void addAnnotations(AnnotationSet from, AnnotationSet to, long offset, 
+          Map<Integer,Integer> ids, List<FeatureMap> added) {
+    for(Annotation ann : gate.Utils.inDocumentOrder(from)) {
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.putAll(ann.getFeatures());
+      try {
+        Integer id = to.add(ann.getStartNode().getOffset() + offset, ann.getEndNode().getOffset() + offset, 
+                ann.getType(), fm);
+        ids.put(ann.getId(), id);
+        added.add(fm);
+      } catch(InvalidOffsetException ex) {
+        throw new GateRuntimeException("Cannot add annotation from section at offset "+offset, ex);
+      }
+    }
+  }
+  
+  private static Object mapIds(Object value, Map<Integer,Integer> ids) {
+    if(value instanceof Integer) {
+      Integer id = ids.get(value);
+      return id == null ? value : id;
+    }
+    if(value instanceof Collection) {
+      Collection<Object> ret = value instanceof Set ? new LinkedHashSet<>() : new ArrayList<>();
+      for(Object item : (Collection<?>)value) {
+        ret.add(mapIds(item, ids));
+      }
+      return ret;
+    }
+    return value;
+  }
+  
+  /**
+   * Stop the threads and delete the duplicates of the controller.
+   */
+  public void close() {
+    executor.shutdownNow();
+    for(Controller copy : copies) {
+      Factory.deleteResource(copy);
+    }
+  }
+}
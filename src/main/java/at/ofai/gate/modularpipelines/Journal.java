@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Corpus;
+import gate.Document;
+import gate.corpora.SerialCorpusImpl;
+import gate.util.GateRuntimeException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only journal of the documents a controller has completed.
+ * 
+ * The first line of the file contains the fingerprint of the pipeline and
+ * config, each further line the id of a completed document. When the 
+ * journal gets opened again with the same fingerprint, e.g. after a run 
+ * was aborted, the documents already in the journal can be skipped. If the
+ * fingerprint differs, the old journal is renamed to end in ".old" and a 
+ * new one is started.
+ * <p>
+ * Writes are buffered and the file is only forced to disk after a number 
+ * of documents or a time interval, so a crash may lose the last few entries
+ * and these documents get processed again.
+ * 
+ * @author Johann Petrak
+ */
+public class Journal {
+  
+  protected static final Logger LOGGER = Logger.getLogger(Journal.class);
+  
+  private static final String HEADER = "#fingerprint ";
+  
+  private final File file;
+  private final Set<String> completed = new HashSet<>();
+  private final int syncEvery;
+  private final long syncMillis;
+  private FileOutputStream stream;
+  private Writer writer;
+  private int unsynced = 0;
+  private long lastSync = System.currentTimeMillis();
+  
+  /**
+   * Open the journal, reading the ids already in it if the fingerprint 
+   * matches.
+   * 
+   * @param file the journal file
+   * @param fingerprint the fingerprint of the pipeline and config
+   * @param syncEvery force the file to disk after this many documents
+   * @param syncMillis force the file to disk if this many milliseconds 
+   * have passed since the last time
+   */
+  public Journal(File file, String fingerprint, int syncEvery, long syncMillis) {
+    this.file = file;
+    this.syncEvery = Math.max(1, syncEvery);
+    this.syncMillis = syncMillis;
+    try {
+      boolean resume = false;
+      if(file.exists() && file.length() > 0) {
+        resume = read(fingerprint);
+        if(resume) {
+          LOGGER.info("Journal "+file+": resuming, "+completed.size()+" documents already completed");
+        } else {
+          File old = new File(file.getPath()+".old");
+          old.delete();
+          if(!file.renameTo(old)) {
+            throw new GateRuntimeException("Could not rename the journal with a different fingerprint "+file);
+          }
+          LOGGER.warn("Journal "+file+": pipeline or config changed, starting a new journal, old one renamed to "+old);
+        }
+      }
+      if(resume) {
+        terminateLastLine();
+      }
+      stream = new FileOutputStream(file, true);
+      writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+      if(!resume) {
+        writer.write(HEADER+fingerprint+"\n");
+        sync();
+      }
+    } catch(IOException ex) {
+      throw new GateRuntimeException("Could not open journal "+file, ex);
+    }
+  }
+  
+  private boolean read(String fingerprint) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line = reader.readLine();
+      if(line == null || !line.equals(HEADER+fingerprint)) {
+        return false;
+      }
+      while((line = reader.readLine()) != null) {
+        if(!line.isEmpty()) {
+          completed.add(line);
+        }
+      }
+    }
+    return true;
+  }
+  
+  // after a crash, the last line may be incomplete, make sure the next 
+  // id starts on a line of its own
+  private void terminateLastLine() throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if(raf.length() > 0) {
+        raf.seek(raf.length() - 1);
+        if(raf.read() != '\n') {
+          raf.write('\n');
+        }
+      }
+    }
+  }
+  
+  /**
+   * The id used for a document: its persistence id if it comes from a 
+   * datastore, otherwise its name.
+   * 
+   * @param doc the document
+   * @return the id
+   */
+  public static String documentId(Document doc) {
+    Object id = doc.getLRPersistenceId();
+    String ret = id != null ? id.toString() : doc.getName();
+    if(ret.indexOf('\n') >= 0 || ret.indexOf('\r') >= 0) {
+      ret = ret.replace('\n', ' ').replace('\r', ' ');
+    }
+    return ret;
+  }
+  
+  /**
+   * The id of the document at the given position in a corpus, without 
+   * loading the document if it is in a datastore.
+   * 
+   * @param corpus the corpus
+   * @param index the position of the document in the corpus
+   * @return the same id as documentId returns for the document
+   */
+  public static String documentId(Corpus corpus, int index) {
+    if(corpus.isDocumentLoaded(index)) {
+      return documentId(corpus.get(index));
+    }
+    Object id = corpus instanceof SerialCorpusImpl ? 
+            ((SerialCorpusImpl)corpus).getDocumentPersistentID(index) : null;
+    String ret = id != null ? id.toString() : corpus.getDocumentName(index);
+    if(ret.indexOf('\n') >= 0 || ret.indexOf('\r') >= 0) {
+      ret = ret.replace('\n', ' ').replace('\r', ' ');
+    }
+    return ret;
+  }
+  
+  public synchronized boolean isCompleted(String id) {
+    return completed.contains(id);
+  }
+  
+  public synchronized int size() {
+    return completed.size();
+  }
+  
+  public File getFile() {
+    return file;
+  }
+  
+  /**
+   * Add a completed document to the journal.
+   * 
+   * @param id the document id
+   */
+  public synchronized void record(String id) {
+    if(writer == null || !completed.add(id)) {
+      return;
+    }
+    try {
+      writer.write(id);
+      writer.write('\n');
+      unsynced++;
+      if(unsynced >= syncEvery || System.currentTimeMillis() - lastSync >= syncMillis) {
+        sync();
+      }
+    } catch(IOException ex) {
+      throw new GateRuntimeException("Could not write to journal "+file, ex);
+    }
+  }
+  
+  /**
+   * Force everything recorded so far to disk.
+   */
+  public synchronized void sync() {
+    if(writer == null) {
+      return;
+    }
+    try {
+      writer.flush();
+      stream.getFD().sync();
+    } catch(IOException ex) {
+      throw new GateRuntimeException("Could not sync journal "+file, ex);
+    }
+    unsynced = 0;
+    lastSync = System.currentTimeMillis();
+  }
+  
+  public synchronized void close() {
+    if(writer == null) {
+      return;
+    }
+    sync();
+    try {
+      writer.close();
+    } catch(IOException ex) {
+      LOGGER.warn("Could not close journal "+file, ex);
+    }
+    writer = null;
+    stream = null;
+  }
+}
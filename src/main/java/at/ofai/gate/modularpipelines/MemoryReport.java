@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import gate.Controller;
+import gate.Corpus;
+import gate.DataStore;
+import gate.Document;
+import gate.LanguageResource;
+import gate.ProcessingResource;
+import gate.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An estimate of how much heap the controllers, Pipeline PRs, PRs and 
+ * language resources of a pipeline tree use.
+ * 
+ * The objects reachable from each resource are walked with reflection and
+ * their sizes estimated, assuming a 64 bit JVM with compressed references.
+ * Other GATE resources, documents and corpora are not followed but get 
+ * their own nodes. Every object is counted for the first node which 
+ * reaches it; when another node reaches it too, its size is added to the
+ * shared bytes of that node instead. A language resource used by several
+ * PRs, e.g. a gazetteer list, is flagged as shared and lists the PRs.
+ * <p>
+ * If duplicates of the controller are given, they are walked after the 
+ * controller, so their bytes are what each duplicate copies and their 
+ * shared bytes what they share with the original.
+ * <p>
+ * This is an estimate for finding out where the memory goes, not an exact
+ * measurement. Objects only reachable through JDK internals which cannot
+ * be accessed are estimated from their public contents. While the report 
+ * gets created, it needs one identity map entry for every object reached
+ * and one entry for every class; the report itself only keeps the counters
+ * of its nodes.
+ * 
+ * @author Johann Petrak
+ */
+public class MemoryReport {
+  
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  
+  private static final int HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REF = 4;
+  // what we count per element for collections we cannot look into
+  private static final int ENTRY = 32;
+  
+  /**
+   * A node of the report.
+   */
+  public static class Node {
+    private final String kind;
+    private final String name;
+    private final String className;
+    private long bytes = 0L;
+    private long sharedBytes = 0L;
+    private final List<String> referencedBy = new ArrayList<>();
+    private final List<Node> children = new ArrayList<>();
+    
+    Node(String kind, Resource res) {
+      this.kind = kind;
+      this.name = res.getName();
+      this.className = res.getClass().getName();
+    }
+    
+    /** @return one of controller, pipeline, pr or resource */
+    public String getKind() {
+      return kind;
+    }
+    public String getName() {
+      return name;
+    }
+    public String getClassName() {
+      return className;
+    }
+    /** @return the estimated bytes counted for this node alone */
+    public long getBytes() {
+      return bytes;
+    }
+    /** @return the estimated bytes of objects this node reaches which were 
+     * already counted for another node */
+    public long getSharedBytes() {
+      return sharedBytes;
+    }
+    /** @return the bytes of this node and all its children */
+    public long getTotalBytes() {
+      long total = bytes;
+      for(Node child : children) {
+        total += child.getTotalBytes();
+      }
+      return total;
+    }
+    /** @return true for a resource which is used by more than one PR */
+    public boolean isShared() {
+      return referencedBy.size() > 1;
+    }
+    public List<String> getReferencedBy() {
+      return Collections.unmodifiableList(referencedBy);
+    }
+    public List<Node> getChildren() {
+      return Collections.unmodifiableList(children);
+    }
+  }
+  
+  private final Node root;
+  private final List<Node> duplicates = new ArrayList<>();
+  
+  // The number of the walk which counted each object, only needed while
+  // the report gets created. Each node is walked once, so an object seen
+  // in an earlier walk is shared with another node. Once its shared bytes 
+  // have been added for a walk, an object gets the negated walk number.
+  private Map<Object,Integer> visited = new IdentityHashMap<>();
+  private int walks = 0;
+  private Integer walk = null;
+  private Integer sharedInWalk = null;
+  private Map<Resource,Node> resources = new IdentityHashMap<>();
+  // What we know about the classes reached, only kept while the report 
+  // gets created so we do not keep the classes of unloaded plugins alive.
+  private Map<Class<?>,Field[]> fields = new HashMap<>();
+  private Map<Class<?>,Long> shallow = new HashMap<>();
+  
+  private MemoryReport(Controller controller, Collection<? extends Controller> copies) {
+    root = controllerNode(controller);
+    for(Controller copy : copies) {
+      duplicates.add(controllerNode(copy));
+    }
+    visited = null;
+    resources = null;
+    fields = null;
+    shallow = null;
+  }
+  
+  /**
+   * Create the report for a controller.
+   * 
+   * @param controller the controller
+   * @return the report
+   */
+  public static MemoryReport create(Controller controller) {
+    return new MemoryReport(controller, Collections.<Controller>emptyList());
+  }
+  
+  /**
+   * Create the report for a controller and duplicates of it.
+   * 
+   * @param controller the controller
+   * @param copies the duplicates
+   * @return the report
+   */
+  public static MemoryReport create(Controller controller, Collection<? extends Controller> copies) {
+    return new MemoryReport(controller, copies);
+  }
+  
+  public Node getRoot() {
+    return root;
+  }
+  
+  public List<Node> getDuplicates() {
+    return Collections.unmodifiableList(duplicates);
+  }
+  
+  private Node controllerNode(Controller controller) {
+    Node node = new Node("controller", controller);
+    walk(controller, node);
+    for(Object pr : controller.getPRs()) {
+      node.children.add(prNode((ProcessingResource)pr));
+    }
+    return node;
+  }
+  
+  private Node prNode(ProcessingResource pr) {
+    if(pr instanceof Controller) {
+      return controllerNode((Controller)pr);
+    }
+    Node node = new Node(pr instanceof Pipeline ? "pipeline" : "pr", pr);
+    List<LanguageResource> used = walk(pr, node);
+    if(pr instanceof Pipeline && ((Pipeline)pr).controller != null) {
+      Controller sub = ((Pipeline)pr).controller;
+      Node shared = resources.get(sub);
+      if(shared == null) {
+        Node subNode = controllerNode(sub);
+        resources.put(sub, subNode);
+        node.children.add(subNode);
+      } else {
+        // a shared pool controller we already reported
+        node.sharedBytes += shared.getTotalBytes();
+      }
+    }
+    for(LanguageResource lr : used) {
+      Node res = resources.get(lr);
+      if(res == null) {
+        res = new Node("resource", lr);
+        resources.put(lr, res);
+        walk(lr, res);
+        node.children.add(res);
+      } else {
+        node.sharedBytes += res.getTotalBytes();
+      }
+      res.referencedBy.add(pr.getName());
+    }
+    return node;
+  }
+  
+  /**
+   * Count all the objects reachable from the resource which nobody counted
+   * yet for the node, without following other resources.
+   * 
+   * @return the language resources found
+   */
+  private List<LanguageResource> walk(Resource start, Node node) {
+    List<LanguageResource> found = new ArrayList<>();
+    walks++;
+    walk = walks;
+    sharedInWalk = -walks;
+    Deque<Object> todo = new ArrayDeque<>();
+    todo.push(start);
+    visited.put(start, walk);
+    node.bytes += shallowSize(start);
+    while(!todo.isEmpty()) {
+      Object obj = todo.pop();
+      Class<?> cls = obj.getClass();
+      if(cls.isArray()) {
+        if(!cls.getComponentType().isPrimitive()) {
+          int n = Array.getLength(obj);
+          for(int i = 0; i < n; i++) {
+            reach(Array.get(obj, i), start, node, todo, found);
+          }
+        }
+        continue;
+      }
+      Field[] clsFields = fields(cls);
+      if(clsFields == null) {
+        // JDK internals we cannot access, use what is public
+        if(obj instanceof Collection) {
+          for(Object elem : new ArrayList<>((Collection<?>)obj)) {
+            node.bytes += ENTRY;
+            reach(elem, start, node, todo, found);
+          }
+        } else if(obj instanceof Map) {
+          for(Map.Entry<?,?> entry : new ArrayList<>(((Map<?,?>)obj).entrySet())) {
+            node.bytes += ENTRY;
+            reach(entry.getKey(), start, node, todo, found);
+            reach(entry.getValue(), start, node, todo, found);
+          }
+        }
+        continue;
+      }
+      for(Field field : clsFields) {
+        try {
+          reach(field.get(obj), start, node, todo, found);
+        } catch(IllegalAccessException | RuntimeException ex) {
+          // cannot read it, ignore
+        }
+      }
+    }
+    return found;
+  }
+  
+  private void reach(Object obj, Resource start, Node node, Deque<Object> todo, List<LanguageResource> found) {
+    if(obj == null) {
+      return;
+    }
+    if(obj instanceof Resource) {
+      if(obj instanceof LanguageResource && !(obj instanceof Document) && 
+         !(obj instanceof Corpus) && obj != start && !containsSame(found, obj)) {
+        found.add((LanguageResource)obj);
+      }
+      return;
+    }
+    if(isExcluded(obj)) {
+      return;
+    }
+    Integer counted = visited.get(obj);
+    if(counted != null) {
+      if(!counted.equals(walk) && !counted.equals(sharedInWalk)) {
+        node.sharedBytes += shallowSize(obj);
+        visited.put(obj, sharedInWalk);
+      }
+      return;
+    }
+    visited.put(obj, walk);
+    node.bytes += shallowSize(obj);
+    todo.push(obj);
+  }
+  
+  private static boolean containsSame(List<?> list, Object obj) {
+    for(Object elem : list) {
+      if(elem == obj) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  // things which belong to the JVM or GATE as a whole
+  private static boolean isExcluded(Object obj) {
+    return obj instanceof Class || obj instanceof ClassLoader || 
+           obj instanceof Thread || obj instanceof ThreadGroup ||
+           obj instanceof DataStore || obj instanceof java.lang.ref.Reference ||
+           obj instanceof org.apache.log4j.Category || 
+           obj instanceof gate.CreoleRegister || obj instanceof java.awt.Component;
+  }
+  
+  /**
+   * Estimate the size of the object itself.
+   */
+  private long shallowSize(Object obj) {
+    Class<?> cls = obj.getClass();
+    if(cls.isArray()) {
+      Class<?> comp = cls.getComponentType();
+      long elem = comp.isPrimitive() ? primitiveSize(comp) : REF;
+      return align(ARRAY_HEADER + elem * Array.getLength(obj));
+    }
+    if(obj instanceof String && fields(cls) == null) {
+      // we cannot see the value array
+      return align(HEADER + 12) + align(ARRAY_HEADER + ((String)obj).length());
+    }
+    Long size = shallow.get(cls);
+    if(size == null) {
+      long s = HEADER;
+      for(Class<?> c = cls; c != null; c = c.getSuperclass()) {
+        for(Field f : c.getDeclaredFields()) {
+          if(!Modifier.isStatic(f.getModifiers())) {
+            s += f.getType().isPrimitive() ? primitiveSize(f.getType()) : REF;
+          }
+        }
+      }
+      size = align(s);
+      shallow.put(cls, size);
+    }
+    return size;
+  }
+  
+  /**
+   * The non-static reference fields of the class, null if they cannot be
+   * accessed.
+   */
+  private Field[] fields(Class<?> cls) {
+    if(fields.containsKey(cls)) {
+      return fields.get(cls);
+    }
+    List<Field> list = new ArrayList<>();
+    Field[] ret;
+    try {
+      for(Class<?> c = cls; c != null; c = c.getSuperclass()) {
+        for(Field f : c.getDeclaredFields()) {
+          if(!Modifier.isStatic(f.getModifiers()) && !f.getType().isPrimitive()) {
+            f.setAccessible(true);
+            list.add(f);
+          }
+        }
+      }
+      ret = list.toArray(new Field[list.size()]);
+    } catch(RuntimeException ex) {
+      // the module system does not let us look inside
+      ret = null;
+    }
+    fields.put(cls, ret);
+    return ret;
+  }
+  
+  private static long primitiveSize(Class<?> type) {
+    if(type == long.class || type == double.class) {
+      return 8;
+    } else if(type == int.class || type == float.class) {
+      return 4;
+    } else if(type == short.class || type == char.class) {
+      return 2;
+    } else {
+      return 1;
+    }
+  }
+  
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+  
+  /**
+   * Write the report as JSON: an object with the tree of the controller in
+   * "root" and the trees of the duplicates in "duplicates".
+   * 
+   * @param out where to write to, this does not get closed
+   * @throws IOException if writing fails
+   */
+  public void write(Writer out) throws IOException {
+    try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+      json.useDefaultPrettyPrinter();
+      write(json);
+    }
+  }
+  
+  /**
+   * Write the report as JSON to a file.
+   * 
+   * @param file the file
+   * @throws IOException if writing fails
+   */
+  public void write(File file) throws IOException {
+    try (JsonGenerator json = JSON_FACTORY.createGenerator(file, JsonEncoding.UTF8)) {
+      json.useDefaultPrettyPrinter();
+      write(json);
+    }
+  }
+  
+  private void write(JsonGenerator json) throws IOException {
+    json.writeStartObject();
+    json.writeFieldName("root");
+    write(json, root);
+    json.writeArrayFieldStart("duplicates");
+    for(Node dup : duplicates) {
+      write(json, dup);
+    }
+    json.writeEndArray();
+    json.writeEndObject();
+  }
+  
+  private static void write(JsonGenerator json, Node node) throws IOException {
+    json.writeStartObject();
+    json.writeStringField("kind", node.kind);
+    json.writeStringField("name", node.name);
+    json.writeStringField("class", node.className);
+    json.writeNumberField("bytes", node.bytes);
+    json.writeNumberField("totalBytes", node.getTotalBytes());
+    json.writeNumberField("sharedBytes", node.sharedBytes);
+    if(node.kind.equals("resource")) {
+      json.writeBooleanField("shared", node.isShared());
+      json.writeArrayFieldStart("referencedBy");
+      for(String name : node.referencedBy) {
+        json.writeString(name);
+      }
+      json.writeEndArray();
+    }
+    if(!node.children.isEmpty()) {
+      json.writeArrayFieldStart("children");
+      for(Node child : node.children) {
+        write(json, child);
+      }
+      json.writeEndArray();
+    }
+    json.writeEndObject();
+  }
+  
+  @Override
+  public String toString() {
+    StringWriter out = new StringWriter();
+    try {
+      write(out);
+    } catch(IOException ex) {
+      // cannot happen with a StringWriter
+    }
+    return out.toString();
+  }
+}
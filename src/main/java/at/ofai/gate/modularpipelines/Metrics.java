@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of named counters for a pipeline or controller.
+ * 
+ * Duplicates of a Pipeline PR or ParametrizedCorpusController share the 
+ * metrics instance of the resource they were duplicated from, so the 
+ * counts are always for all duplicates together. 
+ * 
+ * @author Johann Petrak
+ */
+public class Metrics {
+  
+  private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+  
+  protected AtomicLong counter(String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new AtomicLong());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+  
+  public void increment(String name) {
+    counter(name).incrementAndGet();
+  }
+  
+  public void add(String name, long delta) {
+    counter(name).addAndGet(delta);
+  }
+  
+  public long get(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0L : counter.get();
+  }
+  
+  /**
+   * Return the current values of all counters.
+   * 
+   * @return a map from counter name to value, sorted by name
+   */
+  public Map<String, Long> snapshot() {
+    Map<String, Long> ret = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      ret.put(entry.getKey(), entry.getValue().get());
+    }
+    return ret;
+  }
+  
+  public void reset() {
+    for (AtomicLong counter : counters.values()) {
+      counter.set(0L);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Match names against many exact names, glob patterns or regular expressions
+ * at once.
+ * 
+ * This is used for config settings which select controllers and PRs by 
+ * pattern. The patterns are stored in a trie by their literal prefix, so 
+ * matching a name only needs to walk the trie along the name and check 
+ * the few patterns found on the way instead of all of them. Exact names
+ * are matched by the trie alone. Regular expressions have no literal 
+ * prefix and are always checked.
+ * <p>
+ * Every pattern has a value and matching returns the values of all
+ * patterns which match, in the order in which the patterns were added.
+ * 
+ * @param <T> the type of values
+ * @author Johann Petrak
+ */
+public class NameMatcher<T> {
+  
+  /**
+   * How a pattern is interpreted.
+   */
+  public enum MatchType {
+    /** the pattern is the name */
+    EXACT, 
+    /** the pattern is a glob: * matches any number of characters, ? one 
+     * character and [...] one of the characters in the brackets */
+    GLOB, 
+    /** the pattern is a java regular expression which must match the 
+     * whole name */
+    REGEX;
+    
+    /**
+     * Get the match type for the value of a "match" config setting.
+     * 
+     * @param name exact, glob or regex, case is ignored, null means exact
+     * @return the match type
+     */
+    public static MatchType fromSetting(Object name) {
+      if(name == null) {
+        return EXACT;
+      }
+      try {
+        return valueOf(name.toString().toUpperCase());
+      } catch(IllegalArgumentException ex) {
+        throw new GateRuntimeException("Not a valid match type: "+name+", must be exact, glob or regex");
+      }
+    }
+  }
+  
+  private static class Entry<T> {
+    final int order;
+    final String source;
+    // null for exact names, which are matched by the trie
+    final Pattern pattern;
+    final T value;
+    Entry(int order, String source, Pattern pattern, T value) {
+      this.order = order;
+      this.source = source;
+      this.pattern = pattern;
+      this.value = value;
+    }
+  }
+  
+  private static class Node<T> {
+    Map<Character,Node<T>> children = null;
+    // exact names ending at this node
+    List<Entry<T>> exact = null;
+    // patterns whose literal prefix ends at this node
+    List<Entry<T>> patterns = null;
+  }
+  
+  private final Node<T> root = new Node<>();
+  private int size = 0;
+  
+  /**
+   * Add a pattern.
+   * 
+   * @param pattern the pattern
+   * @param type how to interpret the pattern
+   * @param value the value to return when the pattern matches
+   */
+  public synchronized void add(String pattern, MatchType type, T value) {
+    String prefix;
+    Pattern compiled = null;
+    switch(type) {
+      case EXACT:
+        prefix = pattern;
+        break;
+      case GLOB:
+        prefix = literalPrefix(pattern);
+        compiled = Pattern.compile(globToRegex(pattern));
+        break;
+      default:
+        prefix = "";
+        try {
+          compiled = Pattern.compile(pattern);
+        } catch(PatternSyntaxException ex) {
+          throw new GateRuntimeException("Not a valid regular expression: "+pattern, ex);
+        }
+    }
+    Node<T> node = root;
+    for(int i = 0; i < prefix.length(); i++) {
+      if(node.children == null) {
+        node.children = new HashMap<>();
+      }
+      Character c = prefix.charAt(i);
+      Node<T> next = node.children.get(c);
+      if(next == null) {
+        next = new Node<>();
+        node.children.put(c, next);
+      }
+      node = next;
+    }
+    Entry<T> entry = new Entry<>(size++, pattern, compiled, value);
+    if(compiled == null) {
+      if(node.exact == null) {
+        node.exact = new ArrayList<>(1);
+      }
+      node.exact.add(entry);
+    } else {
+      if(node.patterns == null) {
+        node.patterns = new ArrayList<>(1);
+      }
+      node.patterns.add(entry);
+    }
+  }
+  
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+  
+  public synchronized int size() {
+    return size;
+  }
+  
+  /**
+   * Return the values of all patterns which match the name.
+   * 
+   * @param name the name to match
+   * @return the values in the order the patterns were added, empty if 
+   * nothing matches
+   */
+  public synchronized List<T> match(String name) {
+    if(size == 0) {
+      return Collections.emptyList();
+    }
+    List<Entry<T>> found = new ArrayList<>();
+    Node<T> node = root;
+    int i = 0;
+    while(node != null) {
+      if(node.patterns != null) {
+        for(Entry<T> entry : node.patterns) {
+          if(entry.pattern.matcher(name).matches()) {
+            found.add(entry);
+          }
+        }
+      }
+      if(i == name.length()) {
+        if(node.exact != null) {
+          found.addAll(node.exact);
+        }
+        break;
+      }
+      node = node.children == null ? null : node.children.get(name.charAt(i));
+      i++;
+    }
+    if(found.size() > 1) {
+      Collections.sort(found, (a, b) -> Integer.compare(a.order, b.order));
+    }
+    List<T> ret = new ArrayList<>(found.size());
+    for(Entry<T> entry : found) {
+      ret.add(entry.value);
+    }
+    return ret;
+  }
+  
+  /**
+   * Return the patterns and their values, in the order they were added.
+   * 
+   * @return a list of pattern and value pairs
+   */
+  public synchronized List<Map.Entry<String,T>> entries() {
+    List<Entry<T>> all = new ArrayList<>(size);
+    collect(root, all);
+    Collections.sort(all, (a, b) -> Integer.compare(a.order, b.order));
+    List<Map.Entry<String,T>> ret = new ArrayList<>(all.size());
+    for(Entry<T> entry : all) {
+      ret.add(new java.util.AbstractMap.SimpleImmutableEntry<>(entry.source, entry.value));
+    }
+    return ret;
+  }
+  
+  private void collect(Node<T> node, List<Entry<T>> all) {
+    if(node.exact != null) {
+      all.addAll(node.exact);
+    }
+    if(node.patterns != null) {
+      all.addAll(node.patterns);
+    }
+    if(node.children != null) {
+      for(Node<T> child : node.children.values()) {
+        collect(child, all);
+      }
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return entries().toString();
+  }
+  
+  private static boolean isGlobChar(char c) {
+    return c == '*' || c == '?' || c == '[';
+  }
+  
+  private static String literalPrefix(String glob) {
+    int i = 0;
+    while(i < glob.length() && !isGlobChar(glob.charAt(i))) {
+      i++;
+    }
+    return glob.substring(0, i);
+  }
+  
+  /**
+   * Convert a glob pattern to a regular expression.
+   * 
+   * The wildcards never match a tab, so that a glob for a 
+   * "controller\tpr" id cannot match across the two names.
+   * 
+   * @param glob the glob pattern
+   * @return the regular expression
+   */
+  static String globToRegex(String glob) {
+    StringBuilder sb = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while(i < glob.length()) {
+      char c = glob.charAt(i);
+      if(!isGlobChar(c)) {
+        literal.append(c);
+        i++;
+        continue;
+      }
+      if(literal.length() > 0) {
+        sb.append(Pattern.quote(literal.toString()));
+        literal.setLength(0);
+      }
+      if(c == '*') {
+        sb.append("[^\\t]*");
+      } else if(c == '?') {
+        sb.append("[^\\t]");
+      } else {
+        int end = glob.indexOf(']', i + 2);
+        if(end < 0) {
+          throw new GateRuntimeException("Unclosed [ in glob pattern: "+glob);
+        }
+        String chars = glob.substring(i + 1, end);
+        sb.append('[');
+        if(chars.startsWith("!")) {
+          sb.append('^');
+          chars = chars.substring(1);
+        }
+        sb.append(chars.replace("\\", "\\\\").replace("[", "\\["));
+        sb.append(']');
+        i = end;
+      }
+      i++;
+    }
+    if(literal.length() > 0) {
+      sb.append(Pattern.quote(literal.toString()));
+    }
+    return sb.toString();
+  }
+}
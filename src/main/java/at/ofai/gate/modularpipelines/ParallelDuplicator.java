@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Factory;
+import gate.Gate;
+import gate.Resource;
+import gate.creole.ResourceInstantiationException;
+import gate.event.CreoleEvent;
+import gate.event.CreoleListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/**
+ * Create many duplicates of a controller or Pipeline PR in parallel.
+ * 
+ * This is meant for building a pool of worker pipelines, one for each 
+ * thread, as done by GCP. Each duplicate is created with Factory.duplicate
+ * in one of a number of threads, so the duplicates are completely 
+ * independent of each other, except for what the resources share anyway
+ * (e.g. the config of a Parametrized Corpus Controller, the metrics or 
+ * the result cache of a Pipeline PR).
+ * <p>
+ * If a duplicate cannot be created, all the duplicates created so far and
+ * all the resources created for the failed one are deleted again.
+ * <p>
+ * The resource to duplicate must not be used while the duplicates are 
+ * being created. If some PR in the pipeline cannot be initialized 
+ * concurrently, use a single thread.
+ * 
+ * @author Johann Petrak
+ */
+public class ParallelDuplicator {
+  
+  protected static final Logger LOGGER = Logger.getLogger(ParallelDuplicator.class);
+  
+  private ParallelDuplicator() {}
+  
+  /**
+   * Create duplicates of a resource using as many threads as there are
+   * processors, but not more than the number of copies.
+   * 
+   * @param <T> the type of resource
+   * @param resource the resource to duplicate
+   * @param copies how many duplicates to create
+   * @return the report, which also contains the duplicates
+   * @throws ResourceInstantiationException if any duplicate could not be
+   * created, in which case all duplicates already created are deleted
+   */
+  public static <T extends Resource> Report<T> duplicate(T resource, int copies) 
+          throws ResourceInstantiationException {
+    return duplicate(resource, copies, Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * Create duplicates of a resource using the given number of threads.
+   * 
+   * @param <T> the type of resource
+   * @param resource the resource to duplicate
+   * @param copies how many duplicates to create
+   * @param threads the maximum number of threads to use
+   * @return the report, which also contains the duplicates
+   * @throws ResourceInstantiationException if any duplicate could not be
+   * created, in which case all duplicates already created are deleted
+   */
+  public static <T extends Resource> Report<T> duplicate(final T resource, int copies, int threads) 
+          throws ResourceInstantiationException {
+    if(copies < 0 || threads < 1) {
+      throw new IllegalArgumentException("Need at least 0 copies and 1 thread");
+    }
+    long start = System.nanoTime();
+    Report<T> report = new Report<>(copies);
+    if(copies == 0) {
+      return report;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(copies, threads));
+    List<Future<Copy<T>>> futures = new ArrayList<>(copies);
+    final Recorder recorder = new Recorder();
+    Gate.getCreoleRegister().addCreoleListener(recorder);
+    try {
+      for(int i = 0; i < copies; i++) {
+        final int index = i;
+        futures.add(executor.submit(new Callable<Copy<T>>() {
+          @Override
+          public Copy<T> call() throws Exception {
+            return duplicateOne(resource, index, recorder);
+          }
+        }));
+      }
+      Throwable error = null;
+      for(Future<Copy<T>> future : futures) {
+        try {
+          report.copies.add(future.get());
+        } catch(ExecutionException ex) {
+          if(error == null) {
+            error = ex.getCause();
+          }
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          if(error == null) {
+            error = ex;
+          }
+        }
+      }
+      if(error != null) {
+        for(Copy<T> copy : report.copies) {
+          Factory.deleteResource(copy.duplicate);
+        }
+        if(error instanceof ResourceInstantiationException) {
+          throw (ResourceInstantiationException)error;
+        }
+        if(error instanceof Error) {
+          throw (Error)error;
+        }
+        throw new ResourceInstantiationException("Could not duplicate "+resource.getName(), (Exception)error);
+      }
+    } finally {
+      executor.shutdownNow();
+      Gate.getCreoleRegister().removeCreoleListener(recorder);
+    }
+    report.totalMillis = (System.nanoTime() - start) / 1000000L;
+    LOGGER.info("Created "+copies+" duplicates of "+resource.getName()+" in "+report.totalMillis+"ms");
+    return report;
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static <T extends Resource> Copy<T> duplicateOne(T resource, int index, Recorder recorder) 
+          throws ResourceInstantiationException {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean threadBean = null;
+    if(bean instanceof com.sun.management.ThreadMXBean && 
+       ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+      threadBean = (com.sun.management.ThreadMXBean)bean;
+    }
+    long tid = Thread.currentThread().getId();
+    long bytesBefore = threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(tid);
+    long start = System.nanoTime();
+    T dup;
+    List<Resource> created = new ArrayList<>();
+    recorder.created.set(created);
+    try {
+      dup = (T)Factory.duplicate(resource);
+    } catch(ResourceInstantiationException | RuntimeException | Error ex) {
+      // GATE does not delete what it created for a controller before one 
+      // of its PRs failed, newest first so PRs go before their controller
+      for(int i = created.size() - 1; i >= 0; i--) {
+        Factory.deleteResource(created.get(i));
+      }
+      throw ex;
+    } finally {
+      recorder.created.remove();
+    }
+    Copy<T> copy = new Copy<>();
+    copy.index = index;
+    copy.duplicate = dup;
+    copy.millis = (System.nanoTime() - start) / 1000000L;
+    copy.allocatedBytes = threadBean == null ? -1 : threadBean.getThreadAllocatedBytes(tid) - bytesBefore;
+    return copy;
+  }
+  
+  /**
+   * Records the resources created by each thread while it creates a 
+   * duplicate. 
+   */
+  private static class Recorder implements CreoleListener {
+    final ThreadLocal<List<Resource>> created = new ThreadLocal<>();
+    @Override
+    public void resourceLoaded(CreoleEvent e) {
+      List<Resource> list = created.get();
+      if(list != null) {
+        list.add(e.getResource());
+      }
+    }
+    @Override
+    public void resourceUnloaded(CreoleEvent e) { }
+    @Override
+    public void resourceRenamed(Resource resource, String oldName, String newName) { }
+    @Override
+    public void datastoreOpened(CreoleEvent e) { }
+    @Override
+    public void datastoreCreated(CreoleEvent e) { }
+    @Override
+    public void datastoreClosed(CreoleEvent e) { }
+  }
+  
+  /**
+   * Information about one duplicate.
+   * 
+   * @param <T> the type of resource
+   */
+  public static class Copy<T extends Resource> {
+    private int index;
+    private T duplicate;
+    private long millis;
+    private long allocatedBytes;
+    
+    public int getIndex() {
+      return index;
+    }
+    public T getDuplicate() {
+      return duplicate;
+    }
+    /**
+     * @return milliseconds it took to create the duplicate
+     */
+    public long getMillis() {
+      return millis;
+    }
+    /**
+     * @return bytes allocated while creating the duplicate or -1 if the JVM
+     * cannot measure this. This includes garbage, so it is an upper bound 
+     * for the memory used by the duplicate. 
+     */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+    @Override
+    public String toString() {
+      return "copy "+index+": "+millis+"ms, "+allocatedBytes+" bytes allocated";
+    }
+  }
+  
+  /**
+   * The result of creating the duplicates.
+   * 
+   * @param <T> the type of resource
+   */
+  public static class Report<T extends Resource> {
+    private final List<Copy<T>> copies;
+    private long totalMillis = 0;
+    
+    Report(int size) {
+      copies = new ArrayList<>(size);
+    }
+    
+    /**
+     * @return information about each duplicate, in the order they were 
+     * requested
+     */
+    public List<Copy<T>> getCopies() {
+      return Collections.unmodifiableList(copies);
+    }
+    
+    /**
+     * @return the duplicates in the order they were requested
+     */
+    public List<T> getDuplicates() {
+      List<T> ret = new ArrayList<>(copies.size());
+      for(Copy<T> copy : copies) {
+        ret.add(copy.duplicate);
+      }
+      return ret;
+    }
+    
+    /**
+     * @return milliseconds it took to create all duplicates
+     */
+    public long getTotalMillis() {
+      return totalMillis;
+    }
+    
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(copies.size()).append(" duplicates in ").append(totalMillis).append("ms");
+      for(Copy<T> copy : copies) {
+        sb.append("\n  ").append(copy);
+      }
+      return sb.toString();
+    }
+  }
+}
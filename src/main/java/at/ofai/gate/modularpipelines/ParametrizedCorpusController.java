@@ -21,8 +21,10 @@
 package at.ofai.gate.modularpipelines;
 
 import gate.Controller;
+import gate.Corpus;
 import gate.CreoleRegister;
 import gate.Document;
+import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.GateConstants;
@@ -31,19 +33,35 @@ import gate.ProcessingResource;
 import gate.Resource;
 import gate.creole.ConditionalSerialAnalyserController;
 import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
 import gate.creole.ResourceData;
 import gate.creole.ResourceInstantiationException;
+import gate.creole.RunningStrategy;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.gui.ActionsPublisher;
 import gate.gui.MainFrame;
 import gate.gui.NewResourceDialog;
+import gate.util.GateRuntimeException;
 import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import static javax.swing.Action.SHORT_DESCRIPTION;
@@ -130,9 +148,11 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
       } else if(config.origUrl == null && fileUrl != null) {
         logger.debug("Controller: read config in set1 "+fileUrl);
         config = Utils.readConfigFile(fileUrl);      
+        bindConfig();
       } else if(config.origUrl != null && !config.origUrl.toString().equals(fileUrl.toString())) {
         logger.debug("Controller: read config in set2 "+fileUrl);
         config = Utils.readConfigFile(fileUrl);      
+        bindConfig();
       } else {
         logger.debug("doing nothing config.origUrl="+config.origUrl+" fileUrl="+fileUrl);       
       }
@@ -160,6 +180,92 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
     return configFileUrl;
   }
   protected URL configFileUrl = null;
+  
+  // NOTE: controllers do not get their runtime parameters saved, so 
+  // the following are init parameters, but they can be changed at any time.
+  @Optional
+  @CreoleParameter(comment = "If > 0, the maximum time in milliseconds the controller may take for one document")
+  public void setMaxMillisPerDocument(Long value) {
+    maxMillisPerDocument = value;
+  }
+  public Long getMaxMillisPerDocument() {
+    return maxMillisPerDocument;
+  }
+  protected Long maxMillisPerDocument = null;
+  
+  @Optional
+  @CreoleParameter(comment = "What to do if a document exceeds the maximum time",
+          defaultValue = "FAIL")
+  public void setTimeoutPolicy(TimeoutPolicy value) {
+    timeoutPolicy = value;
+  }
+  public TimeoutPolicy getTimeoutPolicy() {
+    return timeoutPolicy;
+  }
+  protected TimeoutPolicy timeoutPolicy = TimeoutPolicy.FAIL;
+  
+  // the metrics are shared between all duplicates of this controller
+  protected Metrics metrics = new Metrics();
+  
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * The document feature which marks the documents processed by the warm-up.
+   */
+  public static final String WARMUP_FEATURE = "modularpipelines.warmup";
+  
+  // true while processing a document of the warm-up, which is not counted
+  // in the metrics
+  private transient boolean warmUpDocument = false;
+  
+  private void count(String name, long delta) {
+    if(!warmUpDocument) {
+      metrics.add(name, delta);
+    }
+  }
+  
+  // the journal of completed documents, if the config has a journal setting,
+  // opened on the first corpus run and shared between all duplicates
+  protected AtomicReference<Journal> journal = new AtomicReference<>();
+  // the number of controllers sharing the journal, the last one to get
+  // cleaned up closes it
+  protected AtomicInteger journalUsers = new AtomicInteger(1);
+  // the journal used for the current run, null if we do not run on a corpus
+  private transient Journal runJournal = null;
+  // if the current run only processes the documents of one shard
+  private transient boolean runSharded = false;
+  private transient int corpusSize = 0;
+  
+  // State for the per-document time budget: the timer sets documentTimedOut
+  // and interrupts the PR which is currently running. Once we have dealt 
+  // with the timeout, timeoutHandled is set and all remaining PRs are skipped
+  // for the document. An exception which is not caused by the interrupt
+  // still fails the document even if the time budget was exceeded.
+  private transient volatile boolean documentTimedOut = false;
+  private transient boolean timeoutHandled = false;
+  private transient volatile ProcessingResource currentPR = null;
+  // the PRs of a concurrent group which are currently running
+  private transient volatile List<ProcessingResource> concurrentPRs = null;
+  private transient TimerWheel.Timeout documentTimeout = null;
+  private transient long documentStartNanos = 0L;
+  private final transient Runnable timeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      documentTimedOut = true;
+      ProcessingResource pr = currentPR;
+      if(pr != null) {
+        pr.interrupt();
+      }
+      List<ProcessingResource> prs = concurrentPRs;
+      if(prs != null) {
+        for(ProcessingResource concurrent : prs) {
+          concurrent.interrupt();
+        }
+      }
+    }
+  };
   transient Config config = new Config();
 
   protected static final Logger logger = Logger
@@ -167,6 +273,65 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
   
   private boolean weAreInitialized = false;
   
+  // The runtime parameter settings which were applied to our PRs the last
+  // time, together with the list of PRs they were applied to. This is used 
+  // to only re-apply those settings which actually changed after the config
+  // got reloaded, since setting a parameter can be expensive for some PRs.
+  private transient Map<String,Map<String,Object>> appliedRuntimeParms = null;
+  private transient List<ProcessingResource> appliedPrs = null;
+  private transient List<String> lastAppliedChanges = Collections.emptyList();
+  // the applied runtime parameter settings, which get compared to the 
+  // current values of the PRs before anything else is done
+  private transient AppliedParm[] appliedParms = new AppliedParm[0];
+  
+  private static class AppliedParm {
+    final int prIndex;
+    final String name;
+    final Object value;
+    AppliedParm(int prIndex, String name, Object value) {
+      this.prIndex = prIndex;
+      this.name = name;
+      this.value = value;
+    }
+  }
+  
+  // The run conditions from the config, indexed by component index. These
+  // are checked in addition to the running strategies of the controller. 
+  private transient RunningStrategy[] runConditions = null;
+  
+  // The read/write declarations from the config, indexed by component index,
+  // and the groups of consecutive PRs which can run concurrently, which get 
+  // computed from the declarations when needed.
+  private transient PrIo[] prIo = null;
+  // The deletions to do after each PR, and at the last index after the 
+  // whole controller, null if there are none
+  private transient Deletion[][] deletionsAfter = null;
+  private transient ConcurrentGroup[] concurrentGroups = null;
+  private transient boolean concurrentGroupsValid = false;
+  
+  // runs the PRs of concurrent groups, shared by all controllers
+  private static final ExecutorService CONCURRENT_PRS = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "ParametrizedCorpusController-concurrent");
+    t.setDaemon(true);
+    return t;
+  });
+  
+  /**
+   * A run of consecutive PRs with read/write declarations, split into
+   * levels: the PRs in one level do not conflict with each other and run 
+   * concurrently, the levels run one after the other.
+   */
+  private static class ConcurrentGroup {
+    final int first;
+    final int last;
+    final int[][] levels;
+    ConcurrentGroup(int first, int last, int[][] levels) {
+      this.first = first;
+      this.last = last;
+      this.levels = levels;
+    }
+  }
+  
   /**
    * Do the necessary initialization.
    * 
@@ -182,7 +347,13 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
    */
   @Override
   public Resource init() throws ResourceInstantiationException {    
-    config = Utils.readConfigFile(getConfigFileUrl()); 
+    Config shared = configForDuplicate.get();
+    if(shared != null && isSameUrl(shared.origUrl, getConfigFileUrl())) {
+      // we are a duplicate, use the already parsed config of the original
+      config = shared;
+    } else {
+      config = Utils.readConfigFile(getConfigFileUrl()); 
+    }
     // TODO: we need to find out somehow if this instance was loaded from
     // a file (in which case the globalConfigFileUrl processing will happen
     // in afterLoadCompleted) or if we got created by custom duplication
@@ -204,8 +375,53 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
       logger.debug("Controller/afterLoadCompleted: "+this.getName()+" set config for sub controllers to "+config.globalConfigFileUrl);
       setConfigForSubControllers(config.globalConfigFileUrl);
     }    
+    // now that we have all our PRs, convert the parameter values to the
+    // proper types, so any type errors get reported right away
+    bindConfig();
     weAreInitialized = true;
   }
+  
+  /**
+   * Convert the runtime parameter values in the config to the types of the
+   * parameters of our PRs.
+   * 
+   * This is done once after loading and whenever the config or our PRs
+   * change and makes sure that no type conversion is necessary when the 
+   * parameters get set. 
+   */
+  protected void bindConfig() {
+    boundConfig = Utils.coerceRuntimeParms(this, Utils.resolvePatterns(this, config));
+    boundFrom = config;
+    boundPrNames = new String[prList.size()];
+    for(int i = 0; i < boundPrNames.length; i++) {
+      boundPrNames[i] = prList.get(i).getName();
+    }
+    boundConfigApplied = false;
+  }
+  
+  /**
+   * Check if the bound config was created from the current config and 
+   * for the PRs we have now.
+   */
+  private boolean isBound() {
+    if(boundConfig == null || boundFrom != config || boundPrNames.length != prList.size()) {
+      return false;
+    }
+    for(int i = 0; i < boundPrNames.length; i++) {
+      if(!boundPrNames[i].equals(prList.get(i).getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  // The config with all pattern settings resolved for our PRs, this is what
+  // gets applied to the PRs. It only gets created again if the config or 
+  // the names of our PRs change.
+  private transient Config boundConfig = null;
+  private transient Config boundFrom = null;
+  private transient String[] boundPrNames = null;
+  private transient boolean boundConfigApplied = false;
 
   @Override
   public void reInit() throws ResourceInstantiationException {
@@ -223,14 +439,221 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
    */
   @Override
   public void execute() throws ExecutionException {
-    logger.debug("Running execute() for "+this.getName()+" config is "+config);
+    if(logger.isDebugEnabled()) {
+      logger.debug("Running execute() for "+this.getName()+" config is "+config);
+    }
     // NOTE: this has now moved into controller started
     // Utils.setControllerParms(this, config);
     
     // This will eventually delegate to the super implementation fo 
     // executeImpl which will then eventually delegate to runComponent, which
     // we handle separately below.
-    super.execute();
+    Tracer.begin(Tracer.CONTROLLER, getName());
+    // only a run over a corpus uses the journal, a sub-pipeline run for a
+    // single document cannot know if the whole document gets completed
+    boolean corpusRun = getDocument() == null;
+    runJournal = corpusRun && config.journalFile != null ? getJournal() : null;
+    runSharded = corpusRun && config.shardCount > 1;
+    corpusSize = getCorpus() == null ? 0 : getCorpus().size();
+    try {
+      super.execute();
+    } finally {
+      runJournal = null;
+      runSharded = false;
+      Tracer.end(Tracer.CONTROLLER, getName());
+    }
+  }
+  
+  /**
+   * Run the PRs on the document or on all documents of the corpus.
+   * 
+   * If we only process one shard of the corpus or skip the documents 
+   * which are already in the journal, this replaces the loop of the super 
+   * class, so that the skipped documents are never loaded: a document from 
+   * a datastore which got loaded would be written back when it gets 
+   * unloaded again, possibly over the results of the process which is 
+   * responsible for its shard or of the run which completed it.
+   * 
+   * @throws ExecutionException 
+   */
+  @Override
+  protected void executeImpl() throws ExecutionException {
+    if((!runSharded && runJournal == null) || getDocument() != null || getCorpus() == null) {
+      super.executeImpl();
+      return;
+    }
+    Corpus corpus = getCorpus();
+    for(int i = 0; i < corpus.size(); i++) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the " + 
+                getName() + " application has been abruptly interrupted!");
+      }
+      String id = Journal.documentId(corpus, i);
+      if(runSharded && !isInShard(id, i)) {
+        metrics.add("shardSkipped", 1);
+        continue;
+      }
+      if(runJournal != null && runJournal.isCompleted(id)) {
+        metrics.add("journalSkipped", 1);
+        continue;
+      }
+      boolean wasLoaded = corpus.isDocumentLoaded(i);
+      Document doc = corpus.get(i);
+      // the super class runs the PRs on just this document
+      setDocument(doc);
+      try {
+        super.executeImpl();
+      } finally {
+        setDocument(null);
+      }
+      if(!wasLoaded) {
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+    }
+  }
+  
+  /**
+   * Get the journal of completed documents, opening it if necessary.
+   * 
+   * @return the journal or null if the config does not have a journal 
+   * setting
+   */
+  public Journal getJournal() {
+    if(config.journalFile == null) {
+      return null;
+    }
+    // each shard needs its own journal
+    File file = config.shardCount > 1 ? 
+            new File(config.journalFile.getPath()+".shard"+config.shardIndex) : 
+            config.journalFile;
+    synchronized(journal) {
+      Journal j = journal.get();
+      if(j == null || !j.getFile().equals(file)) {
+        if(j != null) {
+          j.close();
+        }
+        j = new Journal(file, getFingerprint(), 
+                config.journalSyncEvery, config.journalSyncMillis);
+        journal.set(j);
+      }
+      return j;
+    }
+  }
+  
+  /**
+   * A fingerprint of the config and the PRs of this controller, including 
+   * the fingerprints of all sub-pipelines.
+   * 
+   * @return the hex fingerprint
+   */
+  public String getFingerprint() {
+    MessageDigest digest = Utils.newDigest();
+    Utils.updateDigest(digest, Utils.configFingerprint(config));
+    for(ProcessingResource pr : prList) {
+      Utils.updateDigest(digest, pr.getClass().getName());
+      Utils.updateDigest(digest, pr.getName());
+      if(pr instanceof Pipeline) {
+        Utils.updateDigest(digest, ((Pipeline)pr).getFingerprint());
+      } else if(pr instanceof ParametrizedCorpusController) {
+        Utils.updateDigest(digest, ((ParametrizedCorpusController)pr).getFingerprint());
+      }
+    }
+    return Utils.toHex(digest.digest());
+  }
+
+  /**
+   * Process a stream of documents instead of a corpus.
+   * 
+   * The controller callbacks are invoked once for the whole stream and 
+   * each document is deleted right after it has been processed and handed
+   * to the consumer, so the documents can be read lazily, e.g. from a
+   * {@link DocumentSource}.
+   * 
+   * @param documents the documents to process
+   * @param processed gets each successfully processed document, may be null
+   * @param failed gets each failed document and the exception, if null the
+   * first failure aborts the stream
+   * @throws ExecutionException 
+   */
+  public void execute(Iterator<Document> documents, Consumer<Document> processed,
+          BiConsumer<Document,Exception> failed) throws ExecutionException {
+    Tracer.begin(Tracer.CONTROLLER, getName());
+    try {
+      Utils.executeStream(this, documents, processed, failed);
+    } finally {
+      Tracer.end(Tracer.CONTROLLER, getName());
+    }
+  }
+
+  /**
+   * Run the sample documents from the warmup setting through the pipeline.
+   * 
+   * This runs the configured number of iterations over all the sample 
+   * documents, so that the code of all contained PRs and pipelines gets 
+   * compiled before real documents get processed. The documents are 
+   * deleted after processing, so any changes to them are discarded. 
+   * The duration and the mean latency per document of the first and last 
+   * iteration are logged and added to the metrics. Errors while processing
+   * the sample documents are logged but do not stop the warm-up.
+   * <p>
+   * The sample documents have the document feature WARMUP_FEATURE set. 
+   * They are not counted in any other metrics and Pipeline PRs neither 
+   * look them up in nor add them to their result cache. The contained PRs 
+   * do process them and get the controller callbacks for the warm-up run, 
+   * so PRs which write something for each document, e.g. exporters, should
+   * get a run condition like <code>!feature["modularpipelines.warmup"]</code>.
+   * <p>
+   * This is done automatically when the outermost controller has been 
+   * loaded from a file, and the BatchRunner and the PipelineService do it
+   * for the duplicates they create for their workers. Other duplicates, 
+   * e.g. those created by GCP or by the fan-out and shared pool modes of a
+   * Pipeline PR, do not run the warm-up unless this gets called.
+   * 
+   * @return the mean latency in milliseconds of each iteration, empty if no 
+   * warm-up is configured
+   */
+  public double[] warmUp() {
+    if(config == null || config.warmupFile == null || config.warmupIterations < 1) {
+      return new double[0];
+    }
+    double[] latencies = new double[config.warmupIterations];
+    long start = System.nanoTime();
+    long docs = 0;
+    for(int i = 0; i < config.warmupIterations; i++) {
+      final long[] stats = new long[3]; // started, documents, nanos
+      try (DocumentSource source = config.warmupFile.getName().endsWith(".jsonl") ?
+              DocumentSource.fromJsonLines(config.warmupFile, config.warmupTextField) :
+              DocumentSource.fromLines(config.warmupFile, "UTF-8")) {
+        Iterator<Document> timed = new Iterator<Document>() {
+          @Override
+          public boolean hasNext() {
+            return source.hasNext();
+          }
+          @Override
+          public Document next() {
+            Document doc = source.next();
+            doc.getFeatures().put(WARMUP_FEATURE, true);
+            stats[0] = System.nanoTime();
+            return doc;
+          }
+        };
+        execute(timed, doc -> {
+          stats[1]++;
+          stats[2] += System.nanoTime() - stats[0];
+        }, (doc, ex) -> logger.warn("Warm-up of "+getName()+": error processing "+doc.getName(), ex));
+      } catch(IOException | ExecutionException ex) {
+        throw new GateRuntimeException("Warm-up of "+getName()+" failed for "+config.warmupFile, ex);
+      }
+      latencies[i] = stats[1] == 0 ? 0.0 : stats[2] / 1e6 / stats[1];
+      docs += stats[1];
+    }
+    long millis = (System.nanoTime() - start) / 1000000L;
+    metrics.add("warmupMillis", millis);
+    metrics.add("warmupDocuments", docs);
+    logger.info(String.format("Warm-up of %s: %d iterations, %d documents in %dms, mean latency %.3fms first, %.3fms last iteration", 
+            getName(), latencies.length, docs, millis, latencies[0], latencies[latencies.length - 1]));
+    return latencies;
   }
 
   /**
@@ -250,16 +673,34 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
    */
   @Override
   protected void runComponent(int componentIndex) throws ExecutionException{
-    logger.debug("Running "+this.getName()+"/runComponent "+componentIndex);    
+    // This gets called for every PR and document, so avoid creating any
+    // garbage here unless we really log something
+    boolean debug = logger.isDebugEnabled();
+    if(debug) {
+      logger.debug("Running "+this.getName()+"/runComponent "+componentIndex);    
+    }
+    Document doc = ((LanguageAnalyser)prList.get(componentIndex)).getDocument();
     if(componentIndex == 0) {
-      Document doc = ((LanguageAnalyser)prList.get(componentIndex)).getDocument();
+      stopDocumentTimeout();
+      if(Tracer.isEnabled()) {
+        documentStartNanos = System.nanoTime();
+        Tracer.begin(Tracer.DOCUMENT, doc == null ? null : doc.getName());
+      }
+      documentTimedOut = false;
+      timeoutHandled = false;
+      warmUpDocument = doc != null && doc.getFeatures().containsKey(WARMUP_FEATURE);
+      if(maxMillisPerDocument != null && maxMillisPerDocument > 0) {
+        documentTimeout = TimerWheel.getShared().schedule(timeoutTask, maxMillisPerDocument);
+      }
       if(doc != null && config.docFeatures != null && !config.docFeatures.isEmpty()) {
-        logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: setting document features "+config.docFeatures);
+        if(debug) {
+          logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: setting document features "+config.docFeatures);
+        }
         Utils.setDocumentFeatures(doc.getFeatures(), config);
-      } else {
+      } else if(debug) {
         logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: NOT setting document features, document="+doc+" config="+config);
       }
-    } else {
+    } else if(debug) {
       logger.debug("DEBUG  parametrized controller pipeline "+this.getName()+"/runComponent: set document features already done");
     }
     
@@ -272,9 +713,336 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
     // = update the config datastructure based on these values. Not sure yet
     //   how, probably by structured names??
     
-    // now delegate to the correct super implementation of runComponent 
-    // which will eventually decide if to run the PR and then run it.
-    super.runComponent(componentIndex);    
+    boolean isLast = componentIndex == prList.size() - 1;
+    boolean documentDone = isLast;
+    boolean failed = false;
+    try {
+      if(timeoutHandled) {
+        // the document exceeded the time budget and gets skipped
+        return;
+      }
+      if(!concurrentGroupsValid) {
+        computeConcurrentGroups();
+      }
+      ConcurrentGroup group = concurrentGroups == null ? null : concurrentGroups[componentIndex];
+      if(group != null) {
+        // the whole group runs when we get called for its first PR
+        if(group.first == componentIndex) {
+          try {
+            runConcurrentGroup(group, doc);
+          } catch(ExecutionException | RuntimeException ex) {
+            if(!documentTimedOut || !Utils.isInterruption(ex)) {
+              throw ex;
+            }
+            handleDocumentTimeout(doc, ex);
+          }
+          if(!timeoutHandled) {
+            for(int[] level : group.levels) {
+              for(int idx : level) {
+                applyDeletions(idx, doc);
+              }
+            }
+          }
+          if(documentTimedOut && !timeoutHandled && group.last != prList.size() - 1) {
+            handleDocumentTimeout(doc, null);
+          }
+        }
+        return;
+      }
+      if(runConditions != null && runConditions[componentIndex] != null && 
+         !runConditions[componentIndex].shouldRun()) {
+        return;
+      }
+
+      // now delegate to the correct super implementation of runComponent 
+      // which will eventually decide if to run the PR and then run it.
+      ProcessingResource pr = prList.get(componentIndex);
+      Tracer.begin(Tracer.PR, pr.getName());
+      try {
+        currentPR = pr;
+        super.runComponent(componentIndex);    
+      } catch(ExecutionException | RuntimeException ex) {
+        if(!documentTimedOut || !Utils.isInterruption(ex)) {
+          throw ex;
+        }
+        handleDocumentTimeout(doc, ex);
+      } finally {
+        currentPR = null;
+        Tracer.end(Tracer.PR, pr.getName());
+      }
+      if(!timeoutHandled) {
+        applyDeletions(componentIndex, doc);
+      }
+      if(documentTimedOut && !timeoutHandled && !isLast) {
+        handleDocumentTimeout(doc, null);
+      }
+    } catch(ExecutionException | RuntimeException ex) {
+      documentDone = true;
+      failed = true;
+      throw ex;
+    } finally {
+      if(documentDone) {
+        if(isLast && !failed && !timeoutHandled) {
+          applyDeletions(prList.size(), doc);
+          if(runJournal != null && doc != null) {
+            runJournal.record(Journal.documentId(doc));
+          }
+        }
+        finishDocument(doc);
+      }
+    }
+  }
+  
+  /**
+   * Delete the annotation sets and features configured for after the PR 
+   * with the given index, or after the whole controller if the index is 
+   * the number of PRs.
+   */
+  private void applyDeletions(int index, Document doc) {
+    if(deletionsAfter == null || doc == null || deletionsAfter[index] == null) {
+      return;
+    }
+    for(Deletion deletion : deletionsAfter[index]) {
+      count("deletions", deletion.apply(doc));
+    }
+  }
+  
+  /**
+   * Find the deletions from the config for our PRs and ourselves.
+   */
+  private void resolveDeletions() {
+    deletionsAfter = null;
+    if(config.deletions == null || config.deletions.isEmpty()) {
+      return;
+    }
+    Deletion[][] found = new Deletion[prList.size() + 1][];
+    boolean any = false;
+    for(int i = 0; i <= prList.size(); i++) {
+      String prName = i < prList.size() ? prList.get(i).getName() : "";
+      List<Deletion> matches = config.deletions.match(getName() + "\t" + prName);
+      if(!matches.isEmpty()) {
+        found[i] = matches.toArray(new Deletion[matches.size()]);
+        any = true;
+      }
+    }
+    if(any) {
+      deletionsAfter = found;
+    }
+  }
+  
+  /**
+   * Check if a document belongs to the shard we process.
+   * 
+   * With hash sharding, this only depends on the id of the document, so 
+   * every process sharing the corpus assigns it to the same shard. With 
+   * range sharding, the corpus is split into consecutive ranges of nearly
+   * equal size, this needs all processes to see the same corpus in the 
+   * same order. 
+   * 
+   * @param id the id of the document as returned by Journal.documentId
+   * @param position the position of the document in the corpus
+   * @return true if we should process the document
+   */
+  protected boolean isInShard(String id, int position) {
+    int shard;
+    if("range".equals(config.shardMode)) {
+      shard = (int)((long)position * config.shardCount / Math.max(1, corpusSize));
+    } else {
+      int h = id.hashCode();
+      // spread the bits, ids often only differ in the last characters
+      h ^= (h >>> 16);
+      h *= 0x85ebca6b;
+      h ^= (h >>> 13);
+      shard = Math.floorMod(h, config.shardCount);
+    }
+    return shard == config.shardIndex;
+  }
+  
+  /**
+   * Find the runs of consecutive PRs with read/write declarations and 
+   * split them into levels of PRs which can run concurrently.
+   * 
+   * A PR goes into the level after the last level which contains a PR
+   * it conflicts with. Runs where this would not allow any PRs to run 
+   * concurrently are left alone.
+   */
+  private void computeConcurrentGroups() {
+    int n = prList.size();
+    ConcurrentGroup[] groups = null;
+    if(prIo != null && prIo.length == n) {
+      int i = 0;
+      while(i < n) {
+        int j = i;
+        while(j < n && prIo[j] != null && prList.get(j) instanceof LanguageAnalyser) {
+          j++;
+        }
+        if(j - i > 1) {
+          int[] level = new int[j - i];
+          int nLevels = 0;
+          for(int k = i; k < j; k++) {
+            for(int m = i; m < k; m++) {
+              if(prIo[m].conflictsWith(prIo[k])) {
+                level[k - i] = Math.max(level[k - i], level[m - i] + 1);
+              }
+            }
+            nLevels = Math.max(nLevels, level[k - i] + 1);
+          }
+          if(nLevels < j - i) {
+            List<List<Integer>> byLevel = new ArrayList<>();
+            for(int l = 0; l < nLevels; l++) {
+              byLevel.add(new ArrayList<>());
+            }
+            for(int k = i; k < j; k++) {
+              byLevel.get(level[k - i]).add(k);
+            }
+            int[][] levels = new int[nLevels][];
+            for(int l = 0; l < nLevels; l++) {
+              levels[l] = byLevel.get(l).stream().mapToInt(Integer::intValue).toArray();
+            }
+            if(groups == null) {
+              groups = new ConcurrentGroup[n];
+            }
+            ConcurrentGroup group = new ConcurrentGroup(i, j - 1, levels);
+            for(int k = i; k < j; k++) {
+              groups[k] = group;
+            }
+            logger.info("Controller "+getName()+" runs PRs "+byLevel+" concurrently");
+          }
+        }
+        i = Math.max(j, i + 1);
+      }
+    }
+    concurrentGroups = groups;
+    concurrentGroupsValid = true;
+  }
+  
+  private void runConcurrentGroup(ConcurrentGroup group, Document doc) throws ExecutionException {
+    List<RunningStrategy> strategies = getRunningStrategies();
+    for(int[] level : group.levels) {
+      List<Integer> toRun = new ArrayList<>(level.length);
+      for(int idx : level) {
+        if((runConditions == null || runConditions[idx] == null || runConditions[idx].shouldRun()) &&
+           (idx >= strategies.size() || strategies.get(idx).shouldRun())) {
+          toRun.add(idx);
+        }
+      }
+      if(toRun.size() == 1) {
+        // nothing to run at the same time, so no need for a projection
+        ProcessingResource pr = prList.get(toRun.get(0));
+        Tracer.begin(Tracer.PR, pr.getName());
+        try {
+          currentPR = pr;
+          super.runComponent(toRun.get(0));
+        } finally {
+          currentPR = null;
+          Tracer.end(Tracer.PR, pr.getName());
+        }
+      } else if(toRun.size() > 1) {
+        runConcurrently(toRun, doc);
+      }
+    }
+  }
+  
+  private void runConcurrently(List<Integer> toRun, Document doc) throws ExecutionException {
+    List<DocumentProjection> projections = new ArrayList<>(toRun.size());
+    List<Future<Object>> results = new ArrayList<>(toRun.size());
+    List<ProcessingResource> running = new ArrayList<>(toRun.size());
+    for(int idx : toRun) {
+      running.add(prList.get(idx));
+    }
+    // each projection gets its own range of annotation ids so the ids the
+    // PRs create can be kept when merging
+    int firstId = DocumentProjection.nextAnnotationId(doc);
+    try {
+      concurrentPRs = running;
+      for(int idx : toRun) {
+        LanguageAnalyser pr = (LanguageAnalyser)prList.get(idx);
+        DocumentProjection projection = new DocumentProjection(doc, prIo[idx], firstId);
+        firstId += DocumentProjection.ID_RANGE;
+        projections.add(projection);
+        pr.setDocument(projection.getDocument());
+        results.add(CONCURRENT_PRS.submit(() -> {
+          Tracer.begin(Tracer.PR, pr.getName());
+          try {
+            pr.execute();
+          } finally {
+            Tracer.end(Tracer.PR, pr.getName());
+          }
+          return null;
+        }));
+      }
+      // if some PR failed on its own, report that rather than the PRs 
+      // which got interrupted because of the time budget
+      Throwable failure = null;
+      for(Future<Object> result : results) {
+        try {
+          result.get();
+        } catch(java.util.concurrent.ExecutionException ex) {
+          if(failure == null || 
+             (Utils.isInterruption(failure) && !Utils.isInterruption(ex.getCause()))) {
+            failure = ex.getCause();
+          }
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          if(failure == null) {
+            failure = ex;
+          }
+        }
+      }
+      if(failure != null) {
+        if(failure instanceof ExecutionException) {
+          throw (ExecutionException)failure;
+        }
+        throw new ExecutionException("Error running PRs concurrently in "+getName(), failure);
+      }
+      for(DocumentProjection projection : projections) {
+        projection.merge();
+      }
+      projections.clear();
+    } finally {
+      concurrentPRs = null;
+      for(int idx : toRun) {
+        ((LanguageAnalyser)prList.get(idx)).setDocument(doc);
+      }
+      for(DocumentProjection projection : projections) {
+        projection.discard();
+      }
+    }
+  }
+  
+  private void finishDocument(Document doc) {
+    stopDocumentTimeout();
+    if(documentStartNanos != 0L) {
+      Tracer.end(Tracer.DOCUMENT, doc == null ? null : doc.getName());
+      Tracer.documentFinished(doc == null ? null : doc.getName(), documentStartNanos);
+      documentStartNanos = 0L;
+    }
+  }
+  
+  private void stopDocumentTimeout() {
+    if(documentTimeout != null) {
+      documentTimeout.cancel();
+      documentTimeout = null;
+    }
+  }
+  
+  /**
+   * Deal with a document which exceeded the time budget according to the 
+   * timeout policy.
+   */
+  private void handleDocumentTimeout(Document doc, Exception cause) throws ExecutionException {
+    timeoutHandled = true;
+    count("documentTimeouts", 1);
+    String docName = doc != null ? doc.getName() : "(no document)";
+    if(timeoutPolicy == TimeoutPolicy.SKIP) {
+      logger.warn("Controller "+getName()+" exceeded "+maxMillisPerDocument+"ms for document "+docName+", skipped");
+      if(doc != null) {
+        doc.getFeatures().put(TimeoutPolicy.FEATURE_NAME, getName());
+      }
+    } else {
+      stopDocumentTimeout();
+      throw new ExecutionException("Controller "+getName()+" exceeded "+maxMillisPerDocument+"ms for document "+docName, cause);
+    }
   }
   
   
@@ -291,16 +1059,253 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
   @Override
   public void controllerExecutionStarted(Controller c)
       throws ExecutionException {
-    Utils.setControllerParms(this, config);
-    super.controllerExecutionStarted(c);    
+    Tracer.begin(Tracer.CALLBACK, getName());
+    try {
+      applyConfig();
+      super.controllerExecutionStarted(c);    
+    } finally {
+      Tracer.end(Tracer.CALLBACK, getName());
+    }
   }
   @Override
   public void invokeControllerExecutionStarted()
       throws ExecutionException {
-    Utils.setControllerParms(this, config);
-    super.invokeControllerExecutionStarted();    
+    Tracer.begin(Tracer.CALLBACK, getName());
+    try {
+      applyConfig();
+      super.invokeControllerExecutionStarted();    
+    } finally {
+      Tracer.end(Tracer.CALLBACK, getName());
+    }
+  }
+  @Override
+  public void controllerExecutionFinished(Controller c)
+      throws ExecutionException {
+    Tracer.begin(Tracer.CALLBACK, getName());
+    try {
+      super.controllerExecutionFinished(c);    
+    } finally {
+      Tracer.end(Tracer.CALLBACK, getName());
+    }
+  }
+  @Override
+  public void invokeControllerExecutionFinished()
+      throws ExecutionException {
+    Tracer.begin(Tracer.CALLBACK, getName());
+    try {
+      super.invokeControllerExecutionFinished();    
+    } finally {
+      syncJournal();
+      Tracer.end(Tracer.CALLBACK, getName());
+    }
+  }
+  @Override
+  public void invokeControllerExecutionAborted(Throwable t)
+      throws ExecutionException {
+    Tracer.begin(Tracer.CALLBACK, getName());
+    try {
+      super.invokeControllerExecutionAborted(t);    
+    } finally {
+      syncJournal();
+      Tracer.end(Tracer.CALLBACK, getName());
+    }
+  }
+  @Override
+  public void controllerExecutionAborted(Controller c, Throwable t)
+      throws ExecutionException {
+    Tracer.begin(Tracer.CALLBACK, getName());
+    try {
+      super.controllerExecutionAborted(c, t);    
+    } finally {
+      Tracer.end(Tracer.CALLBACK, getName());
+    }
+  }
+  
+  private void syncJournal() {
+    Journal j = journal.get();
+    if(j != null) {
+      j.sync();
+    }
+  }
+  
+  @Override
+  public void cleanup() {
+    super.cleanup();
+    if(journalUsers.decrementAndGet() > 0) {
+      return;
+    }
+    Journal j = journal.getAndSet(null);
+    if(j != null) {
+      j.close();
+    }
+  }
+  
+  /**
+   * Set the runtime parameters and run modes from the config.
+   * 
+   * The first time this is called, all settings are applied. After that,
+   * only settings which changed in the config or on the PR since the last
+   * time are applied, unless the list of PRs in this controller has changed, 
+   * in which case everything gets applied again. So the config always 
+   * overrides a runtime parameter which was changed on the PR, e.g. in the 
+   * GUI, but a setting which is still in place does not get set again.
+   */
+  protected void applyConfig() {
+    // the config may have been replaced or our PRs may have changed
+    if(!isBound()) {
+      bindConfig();
+    } else if(boundConfigApplied && appliedPrs != null && appliedPrs.equals(prList) && 
+            parmsStillApplied()) {
+      // nothing changed since the last time
+      lastAppliedChanges = Collections.emptyList();
+      return;
+    }
+    if (appliedPrs == null || !appliedPrs.equals(prList)) {
+      appliedRuntimeParms = null;
+      runConditions = null;
+      prIo = null;
+      concurrentGroupsValid = false;
+    }
+    List<String> changes = Utils.setControllerParms(this, boundConfig, appliedRuntimeParms);
+    if (appliedRuntimeParms != null && !changes.isEmpty()) {
+      logger.info("Controller " + this.getName() + " applied changed settings: " + changes);
+    }
+    if (!boundConfigApplied || appliedRuntimeParms == null) {
+      appliedRuntimeParms = Utils.snapshotRuntimeParms(boundConfig);
+      appliedPrs = new ArrayList<>(prList);
+      appliedParms = findAppliedParms();
+      resolveDeletions();
+      boundConfigApplied = true;
+    }
+    lastAppliedChanges = changes.isEmpty() ? 
+            Collections.<String>emptyList() : Collections.unmodifiableList(changes);
+  }
+  
+  /**
+   * Check if our PRs still have the runtime parameter values from the config.
+   * 
+   * This gets called for every document when we are nested in a Pipeline,
+   * so it must not create any garbage.
+   */
+  private boolean parmsStillApplied() {
+    for(AppliedParm parm : appliedParms) {
+      if(!Utils.isCurrentValue(prList.get(parm.prIndex), parm.name, parm.value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Find the runtime parameter settings of the bound config for our PRs.
+   */
+  private AppliedParm[] findAppliedParms() {
+    List<AppliedParm> found = new ArrayList<>();
+    if(boundConfig.prRuntimeParms != null) {
+      for(int i = 0; i < prList.size(); i++) {
+        Map<String,Object> parms = boundConfig.prRuntimeParms.get(getName() + "\t" + prList.get(i).getName());
+        if(parms != null) {
+          for(Map.Entry<String,Object> parm : parms.entrySet()) {
+            if(!parm.getKey().startsWith("$$")) {
+              found.add(new AppliedParm(i, parm.getKey(), parm.getValue()));
+            }
+          }
+        }
+      }
+    }
+    return found.toArray(new AppliedParm[found.size()]);
+  }
+  
+  /**
+   * Make the PR with the given index only run if the condition is true.
+   * 
+   * This is used for the "prcond" config setting, the condition gets checked
+   * before the running strategy of the controller for that PR, so the
+   * PR only runs if both allow it.
+   * 
+   * @param componentIndex the index of the PR 
+   * @param condition the condition or null to remove the condition
+   */
+  public void setRunCondition(int componentIndex, RunCondition condition) {
+    if (runConditions == null || runConditions.length != prList.size()) {
+      runConditions = new RunningStrategy[prList.size()];
+    }
+    if (condition == null) {
+      runConditions[componentIndex] = null;
+    } else {
+      runConditions[componentIndex] = 
+              new ConditionRunningStrategy((LanguageAnalyser)prList.get(componentIndex), condition);
+    }
+  }
+  
+  /**
+   * Declare what the PR with the given index reads and writes.
+   * 
+   * This is used for the "prio" config setting: consecutive PRs with
+   * declarations which do not conflict run concurrently, each on its own
+   * {@link DocumentProjection} of the document.
+   * 
+   * @param componentIndex the index of the PR 
+   * @param io the declaration or null to remove it
+   */
+  public void setPrIo(int componentIndex, PrIo io) {
+    if (prIo == null || prIo.length != prList.size()) {
+      prIo = new PrIo[prList.size()];
+    }
+    prIo[componentIndex] = io;
+    concurrentGroupsValid = false;
+  }
+  
+  /**
+   * Return what got changed the last time the config was applied.
+   * 
+   * @return a list of descriptions of the settings which were applied, 
+   * empty if nothing changed
+   */
+  public List<String> getLastAppliedChanges() {
+    return lastAppliedChanges;
+  }
+  
+  
+  @Override
+  public Resource duplicate(Factory.DuplicationContext ctx)
+      throws ResourceInstantiationException {
+    // Instead of reading and parsing the config file again, the duplicate 
+    // shares our config. The config is not modified once read, except for
+    // the document feature arrays it compiles on first use, which are 
+    // published safely, and each controller converts the runtime parameter
+    // values into its own copy, see bindConfig(). 
+    // Sub-pipelines get duplicated in the same thread, so remember what
+    // was there before.
+    Config outer = configForDuplicate.get();
+    configForDuplicate.set(config);
+    ParametrizedCorpusController dup;
+    try {
+      dup = (ParametrizedCorpusController)super.duplicate(ctx);
+    } finally {
+      if(outer == null) {
+        configForDuplicate.remove();
+      } else {
+        configForDuplicate.set(outer);
+      }
+    }
+    dup.metrics = metrics;
+    dup.journal = journal;
+    dup.journalUsers = journalUsers;
+    journalUsers.incrementAndGet();
+    return dup;
   }
   
+  // The config of the controller which is currently getting duplicated
+  // in this thread
+  private static final ThreadLocal<Config> configForDuplicate = new ThreadLocal<>();
+  
+  private static boolean isSameUrl(URL one, URL two) {
+    if(one == null || two == null) {
+      return one == two;
+    }
+    return one.toString().equals(two.toString());
+  }
   
   public void setConfigForSubControllers(URL configFileUrl) {
     logger.debug("Running setConfigForSubControllers in "+this.getName()+" config="+configFileUrl+" have components: "+prList);
@@ -339,6 +1344,7 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
         public void actionPerformed(ActionEvent evt) {
           if (getConfigFileUrl() != null) {
             config = Utils.readConfigFile(getConfigFileUrl());
+            bindConfig();
             logger.debug("Reloaded config file " + getConfigFileUrl());
           } else {
             logger.debug("Nothing re-loaded, not config file set");
@@ -390,6 +1396,7 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
             setConfigFileUrl(newUrl);
             if (newUrl != null) {
               config = Utils.readConfigFile(getConfigFileUrl());
+              bindConfig();
               logger.debug("Reloaded config file " + getConfigFileUrl());
             } else {
               config = new Config();
@@ -401,6 +1408,72 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
     }
     );
       
+      // Action 3: write the execution trace
+      actions.add(
+              new AbstractAction("Write execution trace") {
+        {
+          putValue(SHORT_DESCRIPTION,
+                  "Write the recorded execution trace in Chrome trace format (needs tracing enabled)");
+        }
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void actionPerformed(ActionEvent evt) {
+          if (!Tracer.isEnabled()) {
+            JOptionPane.showMessageDialog(MainFrame.getInstance(),
+                    "Tracing is not enabled, set the system property modularpipelines.trace=true",
+                    "GATE", JOptionPane.INFORMATION_MESSAGE);
+            return;
+          }
+          try {
+            File file = Tracer.dump();
+            JOptionPane.showMessageDialog(MainFrame.getInstance(),
+                    "Trace written to "+file,
+                    "GATE", JOptionPane.INFORMATION_MESSAGE);
+          } catch (IOException ex) {
+            logger.error("Could not write the trace", ex);
+          }
+        }
+      });
+      
+      // Action 4: write the memory report
+      actions.add(
+              new AbstractAction("Write memory report") {
+        {
+          putValue(SHORT_DESCRIPTION,
+                  "Write an estimate of the memory used by the sub-pipelines, PRs and resources as JSON");
+        }
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void actionPerformed(ActionEvent evt) {
+          // what a duplicate costs can only be seen with a duplicate
+          int answer = JOptionPane.showConfirmDialog(MainFrame.getInstance(),
+                  "Create a temporary duplicate to also report what each duplicate of the pipeline copies?",
+                  "GATE", JOptionPane.YES_NO_CANCEL_OPTION);
+          if (answer == JOptionPane.CANCEL_OPTION || answer == JOptionPane.CLOSED_OPTION) {
+            return;
+          }
+          Controller dup = null;
+          try {
+            if (answer == JOptionPane.YES_OPTION) {
+              dup = (Controller)Factory.duplicate(ParametrizedCorpusController.this);
+            }
+            File file = File.createTempFile("modularpipelines-memory-", ".json");
+            MemoryReport.create(ParametrizedCorpusController.this, 
+                    dup == null ? Collections.<Controller>emptyList() : Collections.singletonList(dup)).write(file);
+            JOptionPane.showMessageDialog(MainFrame.getInstance(),
+                    "Memory report written to "+file,
+                    "GATE", JOptionPane.INFORMATION_MESSAGE);
+          } catch (IOException | ResourceInstantiationException ex) {
+            logger.error("Could not write the memory report", ex);
+          } finally {
+            if (dup != null) {
+              Factory.deleteResource(dup);
+            }
+          }
+        }
+      });
       
     }
     return actions;
@@ -20,13 +20,17 @@
  */
 package at.ofai.gate.modularpipelines;
 
+import gate.Factory;
 import gate.FeatureMap;
 import gate.creole.ResourceInstantiationException;
 import gate.persist.PersistenceException;
 import gate.util.persistence.ConditionalSerialAnalyserControllerPersistence;
 import gate.util.persistence.PersistenceManager;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.log4j.Logger;
 
 /**
@@ -66,10 +70,20 @@ public class ParametrizedCorpusControllerPersistence extends  ConditionalSerialA
     // At this point we should have any config from either the config file 
     // configFileUrl or the file specified by the overriding system property. 
     if(config != null && config.prInitParms != null) {
-      if(initParamOverrides == null) {
-        initParamOverrides = new HashMap<>();
+      InitParmOverrides overrides;
+      if(initParamOverrides instanceof InitParmOverrides) {
+        overrides = (InitParmOverrides)initParamOverrides;
+      } else {
+        overrides = new InitParmOverrides();
+        if(initParamOverrides != null) {
+          overrides.putAll(initParamOverrides);
+        }
+        initParamOverrides = overrides;
+      }
+      overrides.putAll(config.prInitParms);
+      if(config.prInitPatterns != null && !config.prInitPatterns.isEmpty()) {
+        overrides.patterns.add(config.prInitPatterns);
       }
-      initParamOverrides.putAll(config.prInitParms);
     }
     // all the rest can be handled by the ConditionalSerialAnalyserControllerPersistence,
     // but we should get a ParametrizedCorpusController instance.
@@ -79,7 +93,13 @@ public class ParametrizedCorpusControllerPersistence extends  ConditionalSerialA
     // method. However, not everythin will be in place at that point because the
     // createObject method for the controller will only deserialize the PRs after
     // the resource has been created. 
-    ParametrizedCorpusController obj = (ParametrizedCorpusController)super.createObject();
+    ParametrizedCorpusController obj;
+    loadDepth.set(loadDepth.get() + 1);
+    try {
+      obj = (ParametrizedCorpusController)super.createObject();
+    } finally {
+      loadDepth.set(loadDepth.get() - 1);
+    }
     // here we should not only have the init parameters but the object should actually 
     // have been created and initialized (our own init method has been called, but
     // only with a partly initialized object, which did not yet have the PR list.
@@ -87,6 +107,68 @@ public class ParametrizedCorpusControllerPersistence extends  ConditionalSerialA
     // use our own afterLoadCompleted() method:
     LOGGER.debug("=== Persistence END: "+ourParms+" calling afterLoadCompleted");
     obj.afterLoadCompleted();
+    // Only the outermost controller runs the warm-up, which also warms up
+    // all the pipelines it contains
+    if(loadDepth.get() == 0) {
+      try {
+        obj.warmUp();
+      } catch(RuntimeException | Error ex) {
+        Factory.deleteResource(obj);
+        throw ex;
+      }
+    }
     return obj;
   }
+  
+  // how many controllers are getting loaded in this thread right now
+  private static final ThreadLocal<Integer> loadDepth = ThreadLocal.withInitial(() -> 0);
+  
+  /**
+   * The map of init parameter overrides which also knows about pattern 
+   * settings.
+   * 
+   * GATE looks up the overrides for each PR with the key 
+   * "controllerName\tprName", so for any key which matches some pattern
+   * settings, this returns the settings of all those patterns merged with
+   * the settings for the exact names, which take precedence.
+   */
+  static class InitParmOverrides extends HashMap<String,Map<String,Object>> {
+    private static final long serialVersionUID = 1L;
+    
+    // the pattern settings of the config files read so far, the later 
+    // ones take precedence
+    final List<NameMatcher<Map<String,Object>>> patterns = new ArrayList<>();
+    
+    private List<Map<String,Object>> matching(Object key) {
+      List<Map<String,Object>> ret = new ArrayList<>();
+      if(key instanceof String) {
+        for(NameMatcher<Map<String,Object>> matcher : patterns) {
+          ret.addAll(matcher.match((String)key));
+        }
+      }
+      return ret;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+      return super.containsKey(key) || !matching(key).isEmpty();
+    }
+    
+    @Override
+    public Map<String,Object> get(Object key) {
+      Map<String,Object> exact = super.get(key);
+      List<Map<String,Object>> matches = matching(key);
+      if(matches.isEmpty()) {
+        return exact;
+      }
+      Map<String,Object> merged = new HashMap<>();
+      for(Map<String,Object> prparm : matches) {
+        merged.putAll(prparm);
+      }
+      if(exact != null) {
+        merged.putAll(exact);
+      }
+      return merged;
+    }
+  }
 }
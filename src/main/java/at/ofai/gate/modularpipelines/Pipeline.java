@@ -20,8 +20,11 @@
  */
 package at.ofai.gate.modularpipelines;
 
+import gate.Annotation;
+import gate.AnnotationSet;
 import gate.Controller;
 import gate.CorpusController;
+import gate.Document;
 import gate.Factory;
 import gate.Factory.DuplicationContext;
 import gate.FeatureMap;
@@ -38,17 +41,31 @@ import gate.creole.SerialAnalyserController;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.HiddenCreoleParameter;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
 import gate.persist.PersistenceException;
 import gate.util.GateRuntimeException;
 import gate.util.persistence.PersistenceManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
-// TODO: add feature to delete document feature: deletedocfeature
-
 /** 
  * A processing resource that wraps a controller loaded from a pipeline file.
  * This makes it possible to create modular pipelines which contain sub-pipelines
@@ -57,6 +74,23 @@ import org.apache.log4j.Logger;
  * of the original pipeline file when they are loaded or re-initialized.
  * Re-initializing this PR will recursively delete all resources loaded by
  * the pipeline and reload a fresh copy of the pipeline from its pipeline file.
+ * With backgroundReInit, the fresh copy is loaded in a separate thread while
+ * the old pipeline keeps processing documents, and the new pipeline replaces 
+ * the old one before the next document. With incrementalReInit, only the 
+ * pipelines in the tree whose pipeline file or config files have changed 
+ * since they were loaded get reloaded.
+ * With fanOutType, the document is split into sections which are processed 
+ * in parallel, see {@link FanOut}.
+ * With sharedInstances, the duplicates of this PR do not get their own copy
+ * of the controller but share a small pool of controllers, see 
+ * {@link SharedControllerPool}.
+ * With useProjection, the pipeline runs on a {@link DocumentProjection} 
+ * which only has the input annotation sets of the document, and only the 
+ * output annotation sets and features get copied back. The projection is 
+ * not a view but a separate document, so for every document this costs a 
+ * copy of the text, the features and all input annotations, and copying 
+ * the output annotations back. This only pays off if the pipeline must not 
+ * see or change anything else, so it is off by default.
  * 
  * @author Johann Petrak
  */
@@ -76,6 +110,28 @@ public class Pipeline  extends AbstractLanguageAnalyser
   }
   protected URL pipelineFileURL = null;
   
+  @Optional
+  @CreoleParameter(comment="If true, re-initializing loads the pipeline in the background and switches to it between documents",
+          defaultValue="false")
+  public void setBackgroundReInit(Boolean value) {
+    backgroundReInit = value;
+  }
+  public Boolean getBackgroundReInit() {
+    return backgroundReInit;
+  }
+  protected Boolean backgroundReInit = false;
+  
+  @Optional
+  @CreoleParameter(comment="If true, re-initializing only reloads the pipelines in the tree whose pipeline or config files changed",
+          defaultValue="false")
+  public void setIncrementalReInit(Boolean value) {
+    incrementalReInit = value;
+  }
+  public Boolean getIncrementalReInit() {
+    return incrementalReInit;
+  }
+  protected Boolean incrementalReInit = false;
+  
   @CreoleParameter(comment="Used internally to indicate custom duplication")
   @HiddenCreoleParameter
   public void setIsCustomDuplicated(Boolean flag) {
@@ -85,9 +141,285 @@ public class Pipeline  extends AbstractLanguageAnalyser
     return isCustomDuplicated;
   }
   protected boolean isCustomDuplicated = false;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="If > 0, the maximum time in milliseconds the pipeline may take for one document")
+  public void setMaxMillisPerDocument(Long value) {
+    maxMillisPerDocument = value;
+  }
+  public Long getMaxMillisPerDocument() {
+    return maxMillisPerDocument;
+  }
+  protected Long maxMillisPerDocument = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="What to do if a document exceeds the maximum time",
+          defaultValue="FAIL")
+  public void setTimeoutPolicy(TimeoutPolicy value) {
+    timeoutPolicy = value;
+  }
+  public TimeoutPolicy getTimeoutPolicy() {
+    return timeoutPolicy;
+  }
+  protected TimeoutPolicy timeoutPolicy = TimeoutPolicy.FAIL;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="If true, re-use the results of the pipeline for documents with identical content and inputs",
+          defaultValue="false")
+  public void setUseResultCache(Boolean value) {
+    useResultCache = value;
+  }
+  public Boolean getUseResultCache() {
+    return useResultCache;
+  }
+  protected Boolean useResultCache = false;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Document features the pipeline depends on, these are part of the cache key and the input fingerprint")
+  public void setCacheInputFeatures(List<String> value) {
+    cacheInputFeatures = value;
+  }
+  public List<String> getCacheInputFeatures() {
+    return cacheInputFeatures;
+  }
+  protected List<String> cacheInputFeatures = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Annotation sets the pipeline depends on, these are part of the cache key and the input fingerprint, use an empty name for the default set")
+  public void setCacheInputAnnotationSets(List<String> value) {
+    cacheInputAnnotationSets = value;
+  }
+  public List<String> getCacheInputAnnotationSets() {
+    return cacheInputAnnotationSets;
+  }
+  protected List<String> cacheInputAnnotationSets = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="If true, skip documents already processed by an identical pipeline with identical inputs",
+          defaultValue="false")
+  public void setSkipUnchanged(Boolean value) {
+    skipUnchanged = value;
+  }
+  public Boolean getSkipUnchanged() {
+    return skipUnchanged;
+  }
+  protected Boolean skipUnchanged = false;
+  
+  /**
+   * Prefix of the document features where Pipeline PRs record the
+   * fingerprints of the pipeline and of the input a document was processed 
+   * with. The full feature name is the prefix followed by the PR name.
+   */
+  public static final String STAMP_FEATURE_PREFIX = "modularpipelines.stamp.";
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Maximum number of results cached in memory",
+          defaultValue="1000")
+  public void setCacheMaxEntries(Integer value) {
+    cacheMaxEntries = value;
+  }
+  public Integer getCacheMaxEntries() {
+    return cacheMaxEntries;
+  }
+  protected Integer cacheMaxEntries = 1000;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Directory where results evicted from memory are kept, if not set, they are discarded")
+  public void setCacheDirectoryUrl(URL value) {
+    cacheDirectoryUrl = value;
+  }
+  public URL getCacheDirectoryUrl() {
+    return cacheDirectoryUrl;
+  }
+  protected URL cacheDirectoryUrl = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="If set, run the pipeline in parallel on the sections covered by annotations of this type, only for pipelines which just need the text of a section")
+  public void setFanOutType(String value) {
+    fanOutType = value;
+  }
+  public String getFanOutType() {
+    return fanOutType;
+  }
+  protected String fanOutType = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="The annotation set containing the fan-out section annotations",
+          defaultValue="")
+  public void setFanOutAnnotationSet(String value) {
+    fanOutAnnotationSet = value;
+  }
+  public String getFanOutAnnotationSet() {
+    return fanOutAnnotationSet;
+  }
+  protected String fanOutAnnotationSet = "";
+  
+  @Optional
+  @CreoleParameter(comment="How many sections to process in parallel with fan-out, 0 means the number of processors divided by the number of duplicates of this PR",
+          defaultValue="0")
+  public void setFanOutThreads(Integer value) {
+    fanOutThreads = value;
+  }
+  public Integer getFanOutThreads() {
+    return fanOutThreads;
+  }
+  protected Integer fanOutThreads = 0;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Features of the annotations created with fan-out whose values are annotation ids, these get changed to the ids the annotations get in the document")
+  public void setFanOutIdFeatures(List<String> value) {
+    fanOutIdFeatures = value;
+  }
+  public List<String> getFanOutIdFeatures() {
+    return fanOutIdFeatures;
+  }
+  protected List<String> fanOutIdFeatures = null;
+  
+  @Optional
+  @CreoleParameter(comment="If > 0, all duplicates of this PR share a pool of that many controllers instead of each having their own",
+          defaultValue="0")
+  public void setSharedInstances(Integer value) {
+    sharedInstances = value;
+  }
+  public Integer getSharedInstances() {
+    return sharedInstances;
+  }
+  protected Integer sharedInstances = 0;
+  
+  @Optional
+  @CreoleParameter(comment="With shared instances, the maximum number of waiting documents to process together in one corpus run of a shared controller",
+          defaultValue="1")
+  public void setSharedBatchSize(Integer value) {
+    sharedBatchSize = value;
+  }
+  public Integer getSharedBatchSize() {
+    return sharedBatchSize;
+  }
+  protected Integer sharedBatchSize = 1;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="If true, run the pipeline on a copy of the document with only the input annotation sets and copy back only the output sets and features, this copies the text and annotations for every document",
+          defaultValue="false")
+  public void setUseProjection(Boolean value) {
+    useProjection = value;
+  }
+  public Boolean getUseProjection() {
+    return useProjection;
+  }
+  protected Boolean useProjection = false;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Annotation sets the pipeline reads, with projection only these get copied to the projected document, use an empty name for the default set, if not set, only the default set")
+  public void setInputAnnotationSets(List<String> value) {
+    inputAnnotationSets = value;
+  }
+  public List<String> getInputAnnotationSets() {
+    return inputAnnotationSets;
+  }
+  protected List<String> inputAnnotationSets = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Annotation sets the pipeline writes, with projection only these get copied to the document")
+  public void setOutputAnnotationSets(List<String> value) {
+    outputAnnotationSets = value;
+  }
+  public List<String> getOutputAnnotationSets() {
+    return outputAnnotationSets;
+  }
+  protected List<String> outputAnnotationSets = null;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Document features the pipeline writes, with projection only these get copied to the document")
+  public void setOutputFeatures(List<String> value) {
+    outputFeatures = value;
+  }
+  public List<String> getOutputFeatures() {
+    return outputFeatures;
+  }
+  protected List<String> outputFeatures = null;
     
   protected Controller controller;
   
+  // A controller which got loaded by a background reInit and should 
+  // replace the current controller before the next document
+  protected final AtomicReference<Controller> pendingController = new AtomicReference<>();
+  // the controller running us while between the controller started and 
+  // finished callbacks, needed to pass them on to a replacement controller
+  protected Controller runningController = null;
+  // the config file set for the sub pipeline, if any, so it can be set 
+  // again after reloading
+  protected URL subPipelineConfigUrl = null;
+  private volatile boolean cleanedUp = false;
+  // The hash of the content of the pipeline file and the config files of 
+  // the controllers loaded from it, calculated when the controller was 
+  // loaded. Sub-pipelines loaded by Pipeline PRs have their own hash.
+  protected String contentHash = null;
+  // the duplicates of the controller for fan-out, created when first needed
+  protected FanOut fanOut = null;
+  // the number of duplicates of this PR including this one, shared by all
+  // of them, used to divide the processors between their fan-outs
+  protected AtomicInteger instances = new AtomicInteger(1);
+  // the pool of controllers shared with the duplicates of this PR, if
+  // sharedInstances is used, created on the first duplication
+  protected SharedControllerPool sharedPool = null;
+  
+  // The result cache is created on first use and shared between all
+  // duplicates of this PR, so we share the holder for it.
+  protected AtomicReference<ResultCache> resultCache = new AtomicReference<>();
+  
+  // The fingerprint of the pipeline file, config and all sub-pipelines,
+  // calculated when needed and reset whenever the pipeline gets reloaded.
+  protected transient String fingerprint = null;
+  
+  // The stamp features of the Pipeline PRs running before this one in
+  // the parent controller
+  protected Set<String> upstreamStamps = null;
+  
+  // the metrics are shared between all duplicates of this PR
+  protected Metrics metrics = new Metrics();
+  
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  
+  // true while processing a document of the warm-up, which is not counted
+  // in the metrics
+  private transient boolean warmUpDocument = false;
+  
+  private void count(String name, long delta) {
+    if(!warmUpDocument) {
+      metrics.add(name, delta);
+    }
+  }
+  
+  // set by the time budget timer when the current document took too long
+  private transient volatile boolean documentTimedOut = false;
+  private final transient Runnable timeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      documentTimedOut = true;
+      Controller c = controller;
+      if(c != null) {
+        c.interrupt();
+      }
+    }
+  };
+  
   
   protected static final Logger LOGGER = Logger
           .getLogger(Pipeline.class);
@@ -119,25 +451,346 @@ public class Pipeline  extends AbstractLanguageAnalyser
     return this;
   }
   
+  /**
+   * Reload the pipeline from the pipeline file.
+   * 
+   * The old pipeline is only deleted once the new one has been loaded, so if
+   * loading fails, the PR keeps using the old pipeline. If backgroundReInit 
+   * is true, this returns right away and the pipeline gets loaded in a 
+   * separate thread, the switch to the new pipeline happens before the 
+   * next document gets processed. 
+   */
   @Override
   public void reInit() {
-    Factory.deleteResource(controller);
+    if(incrementalReInit != null && incrementalReInit) {
+      reInitChanged();
+    } else {
+      reload();
+    }
+  }
+  
+  /**
+   * Reload the pipeline if its pipeline file or any of its config files 
+   * changed, otherwise do the same for all the Pipeline PRs it contains.
+   */
+  protected void reInitChanged() {
+    if(controller == null || contentHash == null || 
+       !contentHash.equals(contentHash(controller))) {
+      LOGGER.info("Pipeline "+getName()+": "+getPipelineFileURL()+" or its config changed, reloading");
+      reload();
+      return;
+    }
+    LOGGER.debug("Pipeline "+getName()+": "+getPipelineFileURL()+" unchanged, checking sub-pipelines");
+    for(Pipeline sub : subPipelines(controller, new ArrayList<>())) {
+      sub.reInitChanged();
+    }
+    // a sub-pipeline may have changed
+    fingerprint = null;
+  }
+  
+  /**
+   * Calculate the hash over the content of the pipeline file and the config
+   * files of all the controllers loaded from it. 
+   * 
+   * @return the hash or null if one of the files cannot be read
+   */
+  protected String contentHash(Controller c) {
+    MessageDigest digest = Utils.newDigest();
+    try {
+      Utils.updateDigest(digest, Utils.hashUrlContent(pipelineFileURL));
+      addConfigHashes(digest, c);
+    } catch(GateRuntimeException ex) {
+      LOGGER.debug("Could not calculate the content hash for "+getPipelineFileURL(), ex);
+      return null;
+    }
+    return Utils.toHex(digest.digest());
+  }
+  
+  private static void addConfigHashes(MessageDigest digest, Controller c) {
+    if(c instanceof ParametrizedCorpusController) {
+      ParametrizedCorpusController pcc = (ParametrizedCorpusController)c;
+      String property = System.getProperty("at.ofai.gate.modularpipelines.configFile");
+      if(property != null && !property.isEmpty()) {
+        Utils.updateDigest(digest, property);
+        try {
+          Utils.updateDigest(digest, Utils.hashUrlContent(new File(property).toURI().toURL()));
+        } catch(MalformedURLException ex) {
+          throw new GateRuntimeException("Invalid config file "+property, ex);
+        }
+      } else {
+        Utils.updateDigest(digest, String.valueOf(pcc.getConfigFileUrl()));
+        Utils.updateDigest(digest, Utils.hashUrlContent(pcc.getConfigFileUrl()));
+      }
+    }
+    for(Object pr : c.getPRs()) {
+      if(pr instanceof Controller) {
+        addConfigHashes(digest, (Controller)pr);
+      }
+    }
+  }
+  
+  /**
+   * Collect the Pipeline PRs in the controller and all its nested 
+   * controllers, but not the ones inside of other Pipeline PRs.
+   */
+  private static List<Pipeline> subPipelines(Controller c, List<Pipeline> found) {
+    for(Object pr : c.getPRs()) {
+      if(pr instanceof Pipeline) {
+        found.add((Pipeline)pr);
+      } else if(pr instanceof Controller) {
+        subPipelines((Controller)pr, found);
+      }
+    }
+    return found;
+  }
+  
+  /**
+   * Delete the controller and load it again from the pipeline file.
+   */
+  protected void reload() {
+    if(backgroundReInit != null && backgroundReInit) {
+      Thread loader = new Thread(() -> {
+        try {
+          Controller loaded = loadPipeline();
+          Controller replaced = pendingController.getAndSet(loaded);
+          if(replaced != null) {
+            // an earlier reload which never got used
+            Factory.deleteResource(replaced);
+          }
+          if(cleanedUp) {
+            Controller unused = pendingController.getAndSet(null);
+            if(unused != null) {
+              Factory.deleteResource(unused);
+            }
+          }
+          LOGGER.info("Pipeline "+getName()+" reloaded "+getPipelineFileURL()+" in the background");
+        } catch (ResourceInstantiationException | PersistenceException | IOException | RuntimeException ex) {
+          metrics.increment("reInitFailures");
+          LOGGER.error("Could not re-load pipeline "+getPipelineFileURL()+", keeping the old one", ex);
+        }
+      }, "Pipeline-reInit-"+getName());
+      loader.setDaemon(true);
+      loader.start();
+      return;
+    }
+    Controller loaded;
     try {
-      controller = null;
-      initialise_pipeline();
+      loaded = loadPipeline();
     } catch (ResourceInstantiationException | PersistenceException | IOException ex) {
       throw new GateRuntimeException(
         "Could not re-load pipeline "+getPipelineFileURL(),ex);
     }
+    Controller old = leaveSharedPool() ? null : controller;
+    stopFanOut();
+    controller = loaded;
+    fingerprint = null;
+    if(subPipelineConfigUrl != null) {
+      setConfig4Pipeline(subPipelineConfigUrl);
+    }
+    contentHash = contentHash(controller);
+    if(old != null) {
+      Factory.deleteResource(old);
+    }
+  }
+  
+  /**
+   * Switch to the controller loaded by a background reInit, if there is one.
+   * 
+   * If this happens while the parent controller is running, the new 
+   * controller gets the controller started callback and the old one the
+   * finished callback, so both see a complete run. If the old controller
+   * fails before the switch, the new controller gets deleted and the old
+   * one stays in use.
+   */
+  protected void switchToPendingController() {
+    Controller next = pendingController.getAndSet(null);
+    if(next == null) {
+      return;
+    }
+    Controller parent = runningController;
+    Controller old = null;
+    boolean switched = false;
+    try {
+      if(parent != null) {
+        controllerExecutionFinished(parent);
+      }
+      old = leaveSharedPool() ? null : controller;
+      stopFanOut();
+      controller = next;
+      switched = true;
+      fingerprint = null;
+      if(subPipelineConfigUrl != null) {
+        setConfig4Pipeline(subPipelineConfigUrl);
+      }
+      contentHash = contentHash(controller);
+      if(parent != null) {
+        controllerExecutionStarted(parent);
+      }
+    } catch (ExecutionException ex) {
+      throw new GateRuntimeException("Could not switch to the reloaded pipeline "+getPipelineFileURL(), ex);
+    } finally {
+      // only delete the controller we do not use any more
+      if(!switched) {
+        metrics.increment("reInitFailures");
+        Factory.deleteResource(next);
+      } else if(old != null) {
+        Factory.deleteResource(old);
+      }
+    }
+    metrics.increment("reInits");
+    LOGGER.info("Pipeline "+getName()+" switched to the reloaded pipeline "+getPipelineFileURL());
+  }
+  
+  /**
+   * Stop using the shared pool, if we use one, because we got our own 
+   * controller. 
+   * 
+   * @return true if we used a shared pool and the current controller 
+   * belongs to it
+   */
+  private boolean leaveSharedPool() {
+    if(sharedPool == null) {
+      return false;
+    }
+    SharedControllerPool pool = sharedPool;
+    sharedPool = null;
+    if(runningController != null) {
+      try {
+        pool.finished(runningController, corpus, null);
+      } catch(ExecutionException ex) {
+        LOGGER.warn("Error finishing the shared pipeline "+getPipelineFileURL(), ex);
+      }
+    }
+    pool.removeMember();
+    return true;
   }
   
   @Override
   public void interrupt() {
+    // the shared controllers may be running documents of other duplicates
+    if(sharedPool != null) {
+      LOGGER.debug("Pipeline "+getName()+" uses shared controllers, not interrupted");
+      return;
+    }
     controller.interrupt();
   }
   
   @Override
   public void execute() {
+    Tracer.begin(Tracer.PIPELINE, getName());
+    try {
+      executeDocument();
+    } finally {
+      Tracer.end(Tracer.PIPELINE, getName());
+    }
+  }
+  
+  private void executeDocument() {
+    if(pendingController.get() != null) {
+      switchToPendingController();
+    }
+    warmUpDocument = document != null && 
+            document.getFeatures().containsKey(ParametrizedCorpusController.WARMUP_FEATURE);
+    boolean stamping = skipUnchanged != null && skipUnchanged && document != null;
+    String stamp = null;
+    if(stamping) {
+      stamp = getFingerprint() + ":" + getInputFingerprint();
+      if(stamp.equals(document.getFeatures().get(STAMP_FEATURE_PREFIX+getName()))) {
+        if(LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Pipeline "+getName()+" skipping unchanged document "+document.getName());
+        }
+        count("skippedUnchanged", 1);
+        return;
+      }
+    }
+    // warm-up documents must not end up in the cache
+    if(useResultCache != null && useResultCache && document != null && !warmUpDocument) {
+      executeCached();
+    } else {
+      runSubPipeline();
+    }
+    if(stamping && document.getFeatures().get(TimeoutPolicy.FEATURE_NAME) == null) {
+      document.getFeatures().put(STAMP_FEATURE_PREFIX+getName(), stamp);
+    }
+  }
+  
+  /**
+   * Run the sub-pipeline on the current document.
+   */
+  protected void runSubPipeline() {
+    if(useProjection != null && useProjection && document != null) {
+      runProjected();
+      return;
+    }
+    runOnDocument();
+  }
+  
+  /**
+   * Run the sub-pipeline on a projection of the current document and merge
+   * the declared outputs back, unless processing failed or timed out.
+   * 
+   * The projection gets created eagerly: a new document with a copy of the 
+   * text and features of the current document and of the annotations in 
+   * the input sets. The time and memory this takes grows with the size of
+   * the document and the input sets, see the projectedDocuments metric for
+   * how often this happened.
+   */
+  protected void runProjected() {
+    Document original = document;
+    DocumentProjection projection = new DocumentProjection(original, projectionIo());
+    document = projection.getDocument();
+    boolean merge = false;
+    try {
+      runOnDocument();
+      Object timedOut = document.getFeatures().get(TimeoutPolicy.FEATURE_NAME);
+      if(timedOut != null) {
+        original.getFeatures().put(TimeoutPolicy.FEATURE_NAME, timedOut);
+      } else {
+        merge = true;
+      }
+    } finally {
+      document = original;
+      if(merge) {
+        projection.merge();
+      } else {
+        projection.discard();
+      }
+    }
+    count("projectedDocuments", 1);
+  }
+  
+  /**
+   * What the sub-pipeline reads and writes according to the input and 
+   * output parameters.
+   * 
+   * @return the declaration for the projection
+   */
+  protected PrIo projectionIo() {
+    List<Object> writes = new ArrayList<>();
+    if(outputAnnotationSets != null) {
+      writes.addAll(outputAnnotationSets);
+    }
+    if(outputFeatures != null) {
+      for(String feature : outputFeatures) {
+        writes.add(PrIo.FEATURE_PREFIX + feature);
+      }
+    }
+    return new PrIo(inputAnnotationSets == null ? 
+            Collections.singletonList("") : inputAnnotationSets, writes);
+  }
+  
+  /**
+   * Run the sub-pipeline on the current document itself.
+   */
+  protected void runOnDocument() {
+    if(sharedPool != null) {
+      runShared();
+      return;
+    }
+    if(fanOutType != null && !fanOutType.isEmpty() && document != null) {
+      runFanOut();
+      return;
+    }
     // invoking a corpus controller will only work if the corpus is set,
     // even when the corpus is not used in a recursive invocation 
     // (if a corpus controller is invoked inside a corpus controller, the
@@ -150,23 +803,251 @@ public class Pipeline  extends AbstractLanguageAnalyser
     if(controller instanceof LanguageAnalyser) {      
       ((LanguageAnalyser)controller).setDocument(document);      
     }
+    TimerWheel.Timeout timeout = null;
+    documentTimedOut = false;
+    if(maxMillisPerDocument != null && maxMillisPerDocument > 0) {
+      timeout = TimerWheel.getShared().schedule(timeoutTask, maxMillisPerDocument);
+    }
     try {
-      LOGGER.debug(("Running pipeline "+controller.getName()+" on "+
-              (document != null ? document.getName() : "(no document)" )));
-      
-      LOGGER.debug("PipelinePR "+this.getName()+" running execute of "+controller.getName());
+      if(LOGGER.isDebugEnabled()) {
+        LOGGER.debug(("Running pipeline "+controller.getName()+" on "+
+                (document != null ? document.getName() : "(no document)" )));
+        LOGGER.debug("PipelinePR "+this.getName()+" running execute of "+controller.getName());
+      }
       controller.execute();
       
     } catch (ExecutionException ex) {
-      throw new GateRuntimeException(
-        "Error executing pipeline "+pipelineFileURL,ex);
+      if(!documentTimedOut || !Utils.isInterruption(ex)) {
+        throw new GateRuntimeException(
+          "Error executing pipeline "+pipelineFileURL,ex);
+      }
+      count("documentTimeouts", 1);
+      if(timeoutPolicy == TimeoutPolicy.SKIP) {
+        LOGGER.warn("Pipeline "+getName()+" exceeded "+maxMillisPerDocument+
+                "ms for document "+(document != null ? document.getName() : "(no document)")+", skipped");
+        if(document != null) {
+          document.getFeatures().put(TimeoutPolicy.FEATURE_NAME, getName());
+        }
+      } else {
+        throw new GateRuntimeException(
+          "Pipeline "+getName()+" exceeded "+maxMillisPerDocument+"ms for document "+
+          (document != null ? document.getName() : "(no document)"),ex);
+      }
     } finally {
+      if(timeout != null) {
+        timeout.cancel();
+      }
       if(controller instanceof LanguageAnalyser) {      
         ((LanguageAnalyser)controller).setDocument(null);      
       }
     }
   }
   
+  /**
+   * Run one of the shared controllers on the current document, neither 
+   * fan-out nor the time budget are used in this case.
+   */
+  protected void runShared() {
+    long start = System.nanoTime();
+    try {
+      sharedPool.process(document, corpus);
+    } catch (ExecutionException ex) {
+      throw new GateRuntimeException(
+        "Error executing shared pipeline "+pipelineFileURL,ex);
+    } 
+    count("sharedMicros", (System.nanoTime() - start) / 1000);
+  }
+  
+  /**
+   * Run the sub-pipeline on the sections of the document in parallel.
+   */
+  protected void runFanOut() {
+    if(fanOut == null) {
+      startFanOut();
+      if(runningController != null) {
+        // the copies have missed the controller started callback
+        for(Controller copy : fanOut.getCopies()) {
+          try {
+            started(copy, runningController);
+          } catch(ExecutionException ex) {
+            throw new GateRuntimeException("Could not start fan-out for "+getName(), ex);
+          }
+        }
+      }
+    }
+    int n = fanOut.run(document, corpus, fanOutAnnotationSet, fanOutType, fanOutIdFeatures);
+    count("fanOutSections", n);
+  }
+  
+  private void startFanOut() {
+    // by default, all duplicates together use about one thread per processor
+    int threads = fanOutThreads == null || fanOutThreads < 1 ? 
+            Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, instances.get())) : 
+            fanOutThreads;
+    try {
+      fanOut = new FanOut(controller, threads, getName());
+    } catch(ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Could not duplicate the pipeline for fan-out in "+getName(), ex);
+    }
+  }
+  
+  private void stopFanOut() {
+    if(fanOut != null) {
+      fanOut.close();
+      fanOut = null;
+    }
+  }
+  
+  /**
+   * All the controllers which get the controller callbacks: ours and the 
+   * fan-out copies of it.
+   */
+  private List<Controller> callbackControllers() {
+    if(fanOut == null) {
+      return Collections.singletonList(controller);
+    }
+    List<Controller> ret = new ArrayList<>(fanOut.getCopies().size() + 1);
+    ret.add(controller);
+    ret.addAll(fanOut.getCopies());
+    return ret;
+  }
+  
+  /**
+   * Replay the cached result for the document if there is one, otherwise
+   * run the sub-pipeline and cache what it did.
+   */
+  protected void executeCached() {
+    ResultCache cache = getResultCache();
+    String key = getCacheKey();
+    CachedResult cached = cache.get(key);
+    if(cached != null) {
+      if(LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Pipeline "+getName()+" replaying cached result for "+document.getName());
+      }
+      cached.replay(document);
+      return;
+    }
+    CachedResult.Before before = CachedResult.snapshot(document);
+    runSubPipeline();
+    if(document.getFeatures().get(TimeoutPolicy.FEATURE_NAME) == null) {
+      try {
+        cache.put(key, CachedResult.capture(document, before));
+      } catch(GateRuntimeException ex) {
+        LOGGER.warn("Pipeline "+getName()+" could not cache the result for "+document.getName()+": "+ex.getMessage());
+      }
+    }
+  }
+  
+  /**
+   * Return the result cache, creating it if necessary.
+   * 
+   * @return the result cache shared by all duplicates of this PR
+   */
+  public ResultCache getResultCache() {
+    ResultCache cache = resultCache.get();
+    if(cache == null) {
+      File dir = cacheDirectoryUrl == null ? null : gate.util.Files.fileFromURL(cacheDirectoryUrl);
+      resultCache.compareAndSet(null, 
+              new ResultCache(cacheMaxEntries == null ? 1000 : cacheMaxEntries, dir, metrics));
+      cache = resultCache.get();
+    }
+    return cache;
+  }
+  
+  /**
+   * Calculate the cache key for the current document.
+   * 
+   * The key is a hash of the pipeline fingerprint and the input fingerprint
+   * of the document.
+   * 
+   * @return the key
+   */
+  protected String getCacheKey() {
+    MessageDigest digest = Utils.newDigest();
+    Utils.updateDigest(digest, getFingerprint());
+    Utils.updateDigest(digest, getInputFingerprint());
+    return Utils.toHex(digest.digest());
+  }
+  
+  /**
+   * Calculate a fingerprint of what the pipeline gets as input for the 
+   * current document.
+   * 
+   * This is a hash of the document content, the values of the configured 
+   * input features and annotation sets and the stamps left by the Pipeline 
+   * PRs running before this one, so that a document becomes stale whenever 
+   * an earlier stage ran with a different pipeline or input.
+   * 
+   * @return the hex fingerprint
+   */
+  protected String getInputFingerprint() {
+    MessageDigest digest = Utils.newDigest();
+    Utils.updateDigest(digest, document.getContent().toString());
+    if(cacheInputFeatures != null) {
+      for(String name : cacheInputFeatures) {
+        Utils.updateDigest(digest, name);
+        Utils.updateDigest(digest, String.valueOf(document.getFeatures().get(name)));
+      }
+    }
+    if(cacheInputAnnotationSets != null) {
+      for(String setName : cacheInputAnnotationSets) {
+        AnnotationSet set = (setName == null || setName.isEmpty()) ? 
+                document.getAnnotations() : document.getAnnotations(setName);
+        Utils.updateDigest(digest, setName);
+        for(Annotation ann : gate.Utils.inDocumentOrder(set)) {
+          Utils.updateDigest(digest, ann.getType());
+          Utils.updateDigest(digest, ann.getStartNode().getOffset() + ":" + ann.getEndNode().getOffset());
+          Utils.updateDigest(digest, new TreeMap<>(toStringKeys(ann.getFeatures())).toString());
+        }
+      }
+    }
+    if(upstreamStamps != null) {
+      for(String name : new TreeSet<>(upstreamStamps)) {
+        Utils.updateDigest(digest, name);
+        Utils.updateDigest(digest, String.valueOf(document.getFeatures().get(name)));
+      }
+    }
+    return Utils.toHex(digest.digest());
+  }
+  
+  private static Map<String,Object> toStringKeys(FeatureMap fm) {
+    Map<String,Object> ret = new HashMap<>();
+    for(Map.Entry<Object,Object> entry : fm.entrySet()) {
+      ret.put(String.valueOf(entry.getKey()), entry.getValue());
+    }
+    return ret;
+  }
+  
+  /**
+   * Return a fingerprint of what this pipeline does.
+   * 
+   * The fingerprint is a hash of the content of the pipeline file, the
+   * effective config if the pipeline is a Parametrized Corpus Controller 
+   * and the fingerprints of all Pipeline PRs directly contained in it,
+   * so it changes whenever any pipeline or config file in the tree of
+   * sub-pipelines changes.
+   * 
+   * @return the hex fingerprint
+   */
+  public String getFingerprint() {
+    if(fingerprint == null) {
+      MessageDigest digest = Utils.newDigest();
+      Utils.updateDigest(digest, Utils.hashUrlContent(pipelineFileURL));
+      if(controller instanceof ParametrizedCorpusController) {
+        Utils.updateDigest(digest, Utils.configFingerprint(((ParametrizedCorpusController)controller).config));
+      }
+      if(controller != null) {
+        for(Object pr : controller.getPRs()) {
+          if(pr instanceof Pipeline) {
+            Utils.updateDigest(digest, ((Pipeline)pr).getFingerprint());
+          }
+        }
+      }
+      fingerprint = Utils.toHex(digest.digest());
+    }
+    return fingerprint;
+  }
+  
   boolean isEqual(Object one, Object two) {
     if(one == null && two == null) {
       return true;
@@ -182,14 +1063,33 @@ public class Pipeline  extends AbstractLanguageAnalyser
   @Override
   public void cleanup() {
     LOGGER.debug("Pipeline.cleanup(): Deleting controller"+controller.getName());
-    Factory.deleteResource(controller);
+    cleanedUp = true;
+    instances.decrementAndGet();
+    stopFanOut();
+    Controller pending = pendingController.getAndSet(null);
+    if(pending != null) {
+      Factory.deleteResource(pending);
+    }
+    if(sharedPool != null) {
+      // the shared controllers get deleted with the last PR using them
+      sharedPool.removeMember();
+      sharedPool = null;
+    } else {
+      Factory.deleteResource(controller);
+    }
   }
   
   
   protected void initialise_pipeline() throws PersistenceException,
+    IOException, ResourceInstantiationException {
+    controller = loadPipeline();
+    contentHash = contentHash(controller);
+  }
+  
+  protected Controller loadPipeline() throws PersistenceException,
     IOException, ResourceInstantiationException {
     LOGGER.debug("(Re-)initialising pipeline "+pipelineFileURL);
-    controller = (Controller)PersistenceManager.loadObjectFromUrl(pipelineFileURL);
+    return (Controller)PersistenceManager.loadObjectFromUrl(pipelineFileURL);
   }
   
   @Override
@@ -202,6 +1102,9 @@ public class Pipeline  extends AbstractLanguageAnalyser
     params.put("isCustomDuplicated", true); 
     params.putAll(Factory.duplicate(getRuntimeParameterValues(), ctx));
     FeatureMap features_here = Factory.duplicate(this.getFeatures(), ctx);
+    if(sharedInstances != null && sharedInstances > 0) {
+      return duplicateShared(params, features_here);
+    }
     // instead of letting the duplicate load the controller again, we 
     // create our own duplicated instance of the controller here ....
     LOGGER.debug("Pipeline.duplicate(): duplicating the controller for "+getPipelineFileURL());
@@ -215,50 +1118,175 @@ public class Pipeline  extends AbstractLanguageAnalyser
     // we just created
     LOGGER.debug("Pipeline.duplicate(): setting the controller of the duplicate for "+getPipelineFileURL());
     resource.controller = c;
+    resource.metrics = metrics;
+    resource.instances = instances;
+    instances.incrementAndGet();
+    resource.resultCache = resultCache;
+    resource.fingerprint = fingerprint;
+    resource.subPipelineConfigUrl = subPipelineConfigUrl;
+    resource.contentHash = contentHash;
+    return resource;
+  }
+  
+  /**
+   * Create a duplicate which shares the pool of controllers with us, the 
+   * pool gets created on the first duplication.
+   */
+  private synchronized Resource duplicateShared(FeatureMap params, FeatureMap features) 
+      throws ResourceInstantiationException {
+    if(sharedPool == null) {
+      LOGGER.debug("Pipeline.duplicate(): creating a pool of "+sharedInstances+" shared controllers for "+getPipelineFileURL());
+      sharedPool = new SharedControllerPool(controller, sharedInstances, 
+              sharedBatchSize == null ? 1 : sharedBatchSize);
+      sharedPool.addMember();
+      stopFanOut();
+    }
+    Pipeline resource = 
+            (Pipeline)Factory.createResource(
+              this.getClass().getName(), params, features, this.getName());
+    resource.controller = controller;
+    resource.sharedPool = sharedPool;
+    sharedPool.addMember();
+    resource.metrics = metrics;
+    resource.instances = instances;
+    instances.incrementAndGet();
+    resource.resultCache = resultCache;
+    resource.fingerprint = fingerprint;
+    resource.subPipelineConfigUrl = subPipelineConfigUrl;
+    resource.contentHash = contentHash;
     return resource;
   }
   @Override
   public void controllerExecutionStarted(Controller c)
       throws ExecutionException {
-    if(controller instanceof ControllerAwarePR) {
-      if(controller instanceof CorpusController) {
-        ((CorpusController)controller).setCorpus(corpus);
+    // remember which Pipeline PRs run before us in the parent, only their
+    // stamps are part of our input fingerprint. The callback comes from the
+    // outermost controller, so we have to find the controller we are in.
+    upstreamStamps = new HashSet<>();
+    Controller parent = findParent(c, this);
+    if(parent != null) {
+      for(Object pr : parent.getPRs()) {
+        if(pr == this) {
+          break;
+        }
+        if(pr instanceof Pipeline) {
+          upstreamStamps.add(STAMP_FEATURE_PREFIX+((Pipeline)pr).getName());
+        }
+      }
+    }
+    runningController = c;
+    if(pendingController.get() != null) {
+      // switch now, the new controller will get the callback below
+      runningController = null;
+      switchToPendingController();
+      runningController = c;
+    }
+    if(sharedPool != null) {
+      sharedPool.started(c, corpus);
+      return;
+    }
+    if(fanOutType != null && !fanOutType.isEmpty() && fanOut == null) {
+      startFanOut();
+    }
+    for(Controller ctl : callbackControllers()) {
+      started(ctl, c);
+    }
+  }
+  /**
+   * Find the controller which directly contains the PR, searching nested 
+   * controllers and the controllers of Pipeline PRs.
+   * 
+   * @return the controller or null if the PR is not in the tree
+   */
+  private static Controller findParent(Controller c, ProcessingResource target) {
+    if(c == null) {
+      return null;
+    }
+    for(Object pr : c.getPRs()) {
+      if(pr == target) {
+        return c;
+      }
+    }
+    for(Object pr : c.getPRs()) {
+      Controller found = null;
+      if(pr instanceof Controller) {
+        found = findParent((Controller)pr, target);
+      } else if(pr instanceof Pipeline) {
+        found = findParent(((Pipeline)pr).controller, target);
+      }
+      if(found != null) {
+        return found;
+      }
+    }
+    return null;
+  }
+  
+  private void started(Controller ctl, Controller c) throws ExecutionException {
+    if(ctl instanceof ControllerAwarePR) {
+      if(ctl instanceof CorpusController) {
+        ((CorpusController)ctl).setCorpus(corpus);
       } 
-      ((ControllerAwarePR)controller).controllerExecutionStarted(c);
+      ((ControllerAwarePR)ctl).controllerExecutionStarted(c);
     }    
   }
   @Override
   public void controllerExecutionFinished(Controller c)
       throws ExecutionException {
-    if(controller instanceof ControllerAwarePR) {
-      if(controller instanceof CorpusController) {
-        ((CorpusController)controller).setCorpus(corpus);
-      } 
-      ((ControllerAwarePR)controller).controllerExecutionFinished(c);
-      if(controller instanceof CorpusController) {
-        ((CorpusController)controller).setCorpus(null);
+    runningController = null;
+    if(sharedPool != null) {
+      sharedPool.finished(c, corpus, null);
+      return;
+    }
+    for(Controller ctl : callbackControllers()) {
+      if(ctl instanceof ControllerAwarePR) {
+        if(ctl instanceof CorpusController) {
+          ((CorpusController)ctl).setCorpus(corpus);
+        } 
+        ((ControllerAwarePR)ctl).controllerExecutionFinished(c);
+        if(ctl instanceof CorpusController) {
+          ((CorpusController)ctl).setCorpus(null);
+        }
       }
     }
   }
   @Override
   public void controllerExecutionAborted(Controller c, Throwable t)
       throws ExecutionException {
-    if(controller instanceof ControllerAwarePR) {
-      if(controller instanceof CorpusController) {
-        ((CorpusController)controller).setCorpus(corpus);
-      } 
-      ((ControllerAwarePR)controller).controllerExecutionAborted(c, t);
-      if(controller instanceof CorpusController) {
-        ((CorpusController)controller).setCorpus(null);
+    runningController = null;
+    if(sharedPool != null) {
+      sharedPool.finished(c, corpus, t);
+      return;
+    }
+    for(Controller ctl : callbackControllers()) {
+      if(ctl instanceof ControllerAwarePR) {
+        if(ctl instanceof CorpusController) {
+          ((CorpusController)ctl).setCorpus(corpus);
+        } 
+        ((ControllerAwarePR)ctl).controllerExecutionAborted(c, t);
+        if(ctl instanceof CorpusController) {
+          ((CorpusController)ctl).setCorpus(null);
+        }
       }
-    }    
+    }
   }
   
   public void setConfig4Pipeline(URL configFileUrl) {
+    subPipelineConfigUrl = configFileUrl;
+    if(sharedPool != null) {
+      for(Controller shared : sharedPool.getControllers()) {
+        if(shared != controller && shared instanceof ParametrizedCorpusController) {
+          ((ParametrizedCorpusController)shared).setConfigFileUrl(configFileUrl);
+        }
+      }
+    }
     if(controller instanceof ParametrizedCorpusController) {
       ParametrizedCorpusController pcc = (ParametrizedCorpusController)controller;
       LOGGER.debug("Re-setting the config file for sub pipeline "+pcc.getName());
       pcc.setConfigFileUrl(configFileUrl);
+      // the fan-out copies get created again with the new config
+      stopFanOut();
+      fingerprint = null;
+      contentHash = contentHash(controller);
     }
   }
   
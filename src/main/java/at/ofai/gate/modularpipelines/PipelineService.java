@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.creole.AbstractController;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.persist.PersistenceException;
+import gate.util.GateRuntimeException;
+import gate.util.persistence.PersistenceManager;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Process documents submitted from other threads with a pool of copies of
+ * a pipeline.
+ * 
+ * Each worker thread runs its own duplicate of the controller over the 
+ * stream of requests it takes from a shared queue. The controller 
+ * callbacks are not invoked for each request but only once per worker: 
+ * the started callback when the worker starts and the finished callback
+ * when the service gets closed. So PRs which write something in the 
+ * finished callback only do so on close, and a Parametrized Corpus 
+ * Controller applies its config only when the worker starts, a config 
+ * reloaded later does not take effect until a new service is created.
+ * Requests with a higher priority are taken first, requests with
+ * the same priority in the order they were submitted. At most maxQueued 
+ * requests can be waiting, further submissions are rejected right away.
+ * <p>
+ * A request can have a deadline: if it is reached before a worker takes
+ * the request, the request is removed from the queue and the document is 
+ * not processed, if it is reached while the document is processed, the 
+ * controller gets interrupted. In both cases the future completes with a
+ * TimeoutException as soon as the deadline is reached. 
+ * <p>
+ * The documents belong to the caller and are not deleted by the service.
+ * The metrics contain the number of completed, failed, rejected and 
+ * expired requests and the total queue and service time in microseconds.
+ * 
+ * @author Johann Petrak
+ */
+public class PipelineService implements AutoCloseable {
+  
+  protected static final Logger LOGGER = Logger.getLogger(PipelineService.class);
+  
+  /**
+   * The priority lanes for requests.
+   */
+  public enum Priority {
+    HIGH, NORMAL, LOW
+  }
+  
+  private final List<CorpusController> controllers;
+  private final boolean ownsController;
+  private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<>();
+  private final Semaphore admission;
+  private final List<Thread> workers = new ArrayList<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final Metrics metrics = new Metrics();
+  private volatile boolean closed = false;
+  
+  /**
+   * One submitted document. The end marker for a worker has no document.
+   */
+  private static class Request implements Comparable<Request> {
+    final Document document;
+    final Priority priority;
+    final long seq;
+    final long deadlineNanos;
+    final long submittedNanos;
+    final CompletableFuture<Document> future = new CompletableFuture<>();
+    long startedNanos;
+    // set by the worker which takes the request or when the deadline is 
+    // reached while the request is still queued, whichever comes first
+    final AtomicBoolean taken = new AtomicBoolean(false);
+    TimerWheel.Timeout queueTimeout;
+    TimerWheel.Timeout timeout;
+    Request(Document document, Priority priority, long seq, long deadlineNanos) {
+      this.document = document;
+      this.priority = priority;
+      this.seq = seq;
+      this.deadlineNanos = deadlineNanos;
+      this.submittedNanos = System.nanoTime();
+    }
+    @Override
+    public int compareTo(Request o) {
+      int c = priority.compareTo(o.priority);
+      return c != 0 ? c : Long.compare(seq, o.seq);
+    }
+  }
+  
+  /**
+   * Create the service for a controller.
+   * 
+   * The controller is used by the first worker, the other workers use
+   * duplicates of it, which get deleted when the service is closed.
+   * The duplicates run their warm-up before the service starts, the 
+   * controller itself already did if it was loaded from a file.
+   * 
+   * @param controller the controller, must be able to process single 
+   * documents like a Parametrized Corpus Controller
+   * @param nrWorkers how many documents to process in parallel
+   * @param maxQueued how many requests can wait for a worker
+   * @throws ResourceInstantiationException if the controller cannot be 
+   * duplicated or the warm-up of a duplicate fails
+   */
+  public PipelineService(CorpusController controller, int nrWorkers, int maxQueued) 
+          throws ResourceInstantiationException {
+    this(controller, nrWorkers, maxQueued, false);
+  }
+  
+  private PipelineService(CorpusController controller, int nrWorkers, int maxQueued, boolean ownsController) 
+          throws ResourceInstantiationException {
+    if(!(controller instanceof AbstractController && controller instanceof LanguageAnalyser)) {
+      throw new GateRuntimeException("The controller must be able to process single documents: "+controller.getName());
+    }
+    if(nrWorkers < 1 || maxQueued < 1) {
+      throw new IllegalArgumentException("Need at least one worker and a queue size of at least one");
+    }
+    this.ownsController = ownsController;
+    this.admission = new Semaphore(maxQueued);
+    controllers = new ArrayList<>(nrWorkers);
+    controllers.add(controller);
+    if(nrWorkers > 1) {
+      ParallelDuplicator.Report<CorpusController> report = 
+              ParallelDuplicator.duplicate(controller, nrWorkers - 1);
+      LOGGER.info(report);
+      Utils.warmUpDuplicates(report.getDuplicates());
+      controllers.addAll(report.getDuplicates());
+    }
+    for(int i = 0; i < nrWorkers; i++) {
+      final CorpusController worker = controllers.get(i);
+      Thread thread = new Thread(() -> work(worker), "PipelineService-worker-"+i);
+      thread.setDaemon(true);
+      thread.start();
+      workers.add(thread);
+    }
+  }
+  
+  /**
+   * Load a pipeline and create the service for it.
+   * 
+   * @param pipelineUrl the xgapp file
+   * @param configFileUrl the config file to use, if not null, the pipeline
+   * must be a Parametrized Corpus Controller
+   * @param nrWorkers how many documents to process in parallel
+   * @param maxQueued how many requests can wait for a worker
+   * @return the service
+   * @throws PersistenceException if the pipeline cannot be loaded
+   * @throws IOException if the pipeline cannot be read
+   * @throws ResourceInstantiationException if the pipeline cannot be 
+   * loaded or duplicated
+   */
+  public static PipelineService load(URL pipelineUrl, URL configFileUrl, int nrWorkers, int maxQueued) 
+          throws PersistenceException, IOException, ResourceInstantiationException {
+    CorpusController controller = (CorpusController)PersistenceManager.loadObjectFromUrl(pipelineUrl);
+    try {
+      if(configFileUrl != null) {
+        if(!(controller instanceof ParametrizedCorpusController)) {
+          throw new ResourceInstantiationException("A config file can only be used with a Parametrized Corpus Controller");
+        }
+        ((ParametrizedCorpusController)controller).setConfigFileUrl(configFileUrl);
+      }
+      return new PipelineService(controller, nrWorkers, maxQueued, true);
+    } catch(ResourceInstantiationException | RuntimeException ex) {
+      Factory.deleteResource(controller);
+      throw ex;
+    }
+  }
+  
+  /**
+   * Submit a document with normal priority and no deadline.
+   * 
+   * @param document the document to process
+   * @return the future which completes with the document once it has been 
+   * processed
+   */
+  public CompletableFuture<Document> submit(Document document) {
+    return submit(document, Priority.NORMAL, 0L);
+  }
+  
+  /**
+   * Submit a document.
+   * 
+   * @param document the document to process
+   * @param priority the priority lane
+   * @param deadlineMillis if greater than 0, the time in milliseconds from
+   * now after which the request fails with a TimeoutException
+   * @return the future which completes with the document once it has been
+   * processed, or exceptionally with a RejectedExecutionException if the 
+   * queue is full or the service is closed
+   */
+  public CompletableFuture<Document> submit(Document document, Priority priority, long deadlineMillis) {
+    long deadline = deadlineMillis > 0 ? System.nanoTime() + deadlineMillis * 1000000L : 0L;
+    Request request = new Request(document, priority, sequence.incrementAndGet(), deadline);
+    if(closed || !admission.tryAcquire()) {
+      metrics.increment("rejected");
+      request.future.completeExceptionally(new RejectedExecutionException(
+              closed ? "The pipeline service is closed" : "Too many queued requests"));
+      return request.future;
+    }
+    if(deadline != 0L) {
+      request.queueTimeout = TimerWheel.getShared().schedule(() -> expireQueued(request), deadlineMillis);
+    }
+    queue.add(request);
+    return request.future;
+  }
+  
+  /**
+   * Called by the timer when the deadline of a request is reached, does
+   * nothing if a worker has taken the request already.
+   */
+  private void expireQueued(Request request) {
+    if(!request.taken.compareAndSet(false, true)) {
+      return;
+    }
+    if(queue.remove(request)) {
+      admission.release();
+    }
+    metrics.add("queueMicros", (System.nanoTime() - request.submittedNanos) / 1000L);
+    metrics.increment("expired");
+    // not on the timer thread, which must not run the callers' callbacks
+    ForkJoinPool.commonPool().execute(() -> request.future.completeExceptionally(
+            new TimeoutException("Deadline reached before processing")));
+  }
+  
+  /**
+   * The number of requests waiting for a worker.
+   * 
+   * @return the queue length
+   */
+  public int getQueueLength() {
+    return queue.size();
+  }
+  
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  
+  private void work(CorpusController controller) {
+    RequestIterator requests = new RequestIterator(controller);
+    try {
+      Utils.executeStream((AbstractController & LanguageAnalyser)controller, requests, 
+              doc -> requests.finish(null),
+              (doc, ex) -> requests.finish(ex), false);
+    } catch(ExecutionException | RuntimeException ex) {
+      LOGGER.error("Pipeline service worker "+Thread.currentThread().getName()+" stopped", ex);
+    }
+  }
+  
+  /**
+   * The documents of the requests a worker takes from the queue. Requests
+   * which already expired are skipped, requests whose deadline has passed
+   * are completed right away. 
+   */
+  private class RequestIterator implements Iterator<Document> {
+    private final CorpusController controller;
+    private Request next = null;
+    private Request current = null;
+    private boolean ended = false;
+    RequestIterator(CorpusController controller) {
+      this.controller = controller;
+    }
+    @Override
+    public boolean hasNext() {
+      while(next == null && !ended) {
+        Request request;
+        try {
+          request = queue.take();
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          ended = true;
+          break;
+        }
+        if(request.document == null) {
+          ended = true;
+          break;
+        }
+        admission.release();
+        if(!request.taken.compareAndSet(false, true)) {
+          // expired while we took it from the queue
+          continue;
+        }
+        if(request.queueTimeout != null) {
+          request.queueTimeout.cancel();
+        }
+        long now = System.nanoTime();
+        metrics.add("queueMicros", (now - request.submittedNanos) / 1000L);
+        if(request.deadlineNanos != 0L && now >= request.deadlineNanos) {
+          metrics.increment("expired");
+          request.future.completeExceptionally(new TimeoutException("Deadline reached before processing"));
+        } else if(request.future.isCancelled()) {
+          metrics.increment("cancelled");
+        } else {
+          next = request;
+        }
+      }
+      return next != null;
+    }
+    @Override
+    public Document next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      current = next;
+      next = null;
+      current.startedNanos = System.nanoTime();
+      if(current.deadlineNanos != 0L) {
+        long remaining = (current.deadlineNanos - current.startedNanos) / 1000000L;
+        current.timeout = TimerWheel.getShared().schedule(controller::interrupt, Math.max(1L, remaining));
+      }
+      return current.document;
+    }
+    void finish(Exception ex) {
+      Request request = current;
+      current = null;
+      boolean timedOut = false;
+      if(request.timeout != null) {
+        request.timeout.cancel();
+        timedOut = request.timeout.isExpired();
+      }
+      metrics.add("serviceMicros", (System.nanoTime() - request.startedNanos) / 1000L);
+      if(ex == null) {
+        metrics.increment("completed");
+        request.future.complete(request.document);
+      } else if(timedOut) {
+        metrics.increment("expired");
+        TimeoutException te = new TimeoutException("Deadline reached while processing");
+        te.initCause(ex);
+        request.future.completeExceptionally(te);
+      } else {
+        metrics.increment("failed");
+        request.future.completeExceptionally(ex);
+      }
+    }
+  }
+  
+  /**
+   * Stop accepting requests, wait until all queued requests have been 
+   * processed and delete the duplicates of the controller. 
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for(int i = 0; i < workers.size(); i++) {
+      queue.add(new Request(null, Priority.LOW, Long.MAX_VALUE, 0L));
+    }
+    for(Thread worker : workers) {
+      try {
+        worker.join();
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for(int i = 0; i < controllers.size(); i++) {
+      if(i > 0 || ownsController) {
+        Factory.deleteResource(controllers.get(i));
+      }
+    }
+  }
+}
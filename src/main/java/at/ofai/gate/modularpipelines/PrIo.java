@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * What a PR reads from and writes to a document, declared with the "prio" 
+ * config setting.
+ * 
+ * The declaration is a list of annotation set names, where the empty name 
+ * is the default set, and document feature names, which are given with the
+ * prefix "feature:". Consecutive PRs with declarations which do not conflict 
+ * can be run concurrently by the Parametrized Corpus Controller, see 
+ * {@link DocumentProjection}.
+ * 
+ * @author Johann Petrak
+ */
+public class PrIo {
+  
+  public static final String FEATURE_PREFIX = "feature:";
+  
+  private final Set<String> readSets = new HashSet<>();
+  private final Set<String> writeSets = new HashSet<>();
+  private final Set<String> readFeatures = new HashSet<>();
+  private final Set<String> writeFeatures = new HashSet<>();
+  
+  /**
+   * Create the declaration from the lists in the config setting.
+   * 
+   * @param reads the annotation sets and features read, may be null
+   * @param writes the annotation sets and features written, may be null
+   */
+  public PrIo(Collection<?> reads, Collection<?> writes) {
+    split(reads, readSets, readFeatures);
+    split(writes, writeSets, writeFeatures);
+  }
+  
+  private static void split(Collection<?> names, Set<String> sets, Set<String> features) {
+    if(names == null) {
+      return;
+    }
+    for(Object name : names) {
+      String n = name == null ? "" : name.toString();
+      if(n.startsWith(FEATURE_PREFIX)) {
+        features.add(n.substring(FEATURE_PREFIX.length()));
+      } else {
+        sets.add(n);
+      }
+    }
+  }
+  
+  public Set<String> getReadSets() {
+    return Collections.unmodifiableSet(readSets);
+  }
+  public Set<String> getWriteSets() {
+    return Collections.unmodifiableSet(writeSets);
+  }
+  public Set<String> getReadFeatures() {
+    return Collections.unmodifiableSet(readFeatures);
+  }
+  public Set<String> getWriteFeatures() {
+    return Collections.unmodifiableSet(writeFeatures);
+  }
+  
+  /**
+   * Check if a PR with this declaration and one with the other declaration
+   * must not run at the same time, because one writes something the other 
+   * one reads or writes.
+   * 
+   * @param other the other declaration
+   * @return true if there is a conflict
+   */
+  public boolean conflictsWith(PrIo other) {
+    return writesAny(other.readSets, other.writeSets, writeSets) ||
+           writesAny(readSets, writeSets, other.writeSets) ||
+           writesAny(other.readFeatures, other.writeFeatures, writeFeatures) ||
+           writesAny(readFeatures, writeFeatures, other.writeFeatures);
+  }
+  
+  private static boolean writesAny(Set<String> reads, Set<String> writes, Set<String> written) {
+    for(String name : written) {
+      if(reads.contains(name) || writes.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if(!(o instanceof PrIo)) {
+      return false;
+    }
+    PrIo other = (PrIo)o;
+    return readSets.equals(other.readSets) && writeSets.equals(other.writeSets) &&
+           readFeatures.equals(other.readFeatures) && writeFeatures.equals(other.writeFeatures);
+  }
+  
+  @Override
+  public int hashCode() {
+    return Objects.hash(readSets, writeSets, readFeatures, writeFeatures);
+  }
+  
+  @Override
+  public String toString() {
+    return "reads="+readSets+" features "+readFeatures+", writes="+writeSets+" features "+writeFeatures;
+  }
+}
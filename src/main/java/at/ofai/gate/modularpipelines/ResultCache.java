@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * A two-tier cache of sub-pipeline results, keyed by a content hash.
+ * 
+ * The first tier is a bounded in-memory LRU map. When an entry gets evicted
+ * from memory and a directory has been configured, it is written to a file
+ * in that directory and gets read back from there on the next lookup.
+ * One cache is shared by all duplicates of a Pipeline PR, all methods
+ * are thread-safe. 
+ * 
+ * @author Johann Petrak
+ */
+public class ResultCache {
+  
+  protected static final Logger LOGGER = Logger.getLogger(ResultCache.class);
+  
+  private final int maxEntries;
+  private final File directory;
+  private final Metrics metrics;
+  private final LinkedHashMap<String, CachedResult> memory;
+  
+  /**
+   * Create a cache.
+   * 
+   * @param maxEntries the maximum number of entries kept in memory
+   * @param directory the directory for spilling entries to disk or null
+   * @param metrics where to count hits, misses etc.
+   */
+  public ResultCache(int maxEntries, File directory, Metrics metrics) {
+    this.maxEntries = Math.max(1, maxEntries);
+    this.directory = directory;
+    this.metrics = metrics;
+    this.memory = new LinkedHashMap<>(16, 0.75f, true);
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new GateRuntimeException("Cannot create cache directory " + directory);
+    }
+  }
+  
+  /**
+   * Look up a result.
+   * 
+   * @param key the key
+   * @return the result or null if not cached
+   */
+  public CachedResult get(String key) {
+    CachedResult result;
+    synchronized (memory) {
+      result = memory.get(key);
+    }
+    if (result != null) {
+      metrics.increment("cacheHits");
+      return result;
+    }
+    if (directory != null) {
+      File file = new File(directory, key + ".ser");
+      if (file.exists()) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+          result = (CachedResult) ois.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+          LOGGER.warn("Could not read cached result from " + file, ex);
+        }
+        if (result != null) {
+          metrics.increment("cacheHits");
+          metrics.increment("cacheDiskHits");
+          putInMemory(key, result);
+          return result;
+        }
+      }
+    }
+    metrics.increment("cacheMisses");
+    return null;
+  }
+  
+  /**
+   * Add a result to the cache.
+   * 
+   * @param key the key
+   * @param result the result
+   */
+  public void put(String key, CachedResult result) {
+    metrics.increment("cacheStores");
+    putInMemory(key, result);
+  }
+  
+  private void putInMemory(String key, CachedResult result) {
+    String evictedKey = null;
+    CachedResult evicted = null;
+    synchronized (memory) {
+      memory.put(key, result);
+      if (memory.size() > maxEntries) {
+        Iterator<Map.Entry<String, CachedResult>> it = memory.entrySet().iterator();
+        Map.Entry<String, CachedResult> eldest = it.next();
+        evictedKey = eldest.getKey();
+        evicted = eldest.getValue();
+        it.remove();
+      }
+    }
+    if (evicted != null && directory != null) {
+      spill(evictedKey, evicted);
+    }
+  }
+  
+  private void spill(String key, CachedResult result) {
+    File file = new File(directory, key + ".ser");
+    if (file.exists()) {
+      return;
+    }
+    File tmp = new File(directory, key + ".tmp" + Thread.currentThread().getId());
+    try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tmp))) {
+      oos.writeObject(result);
+    } catch (IOException ex) {
+      // most likely a feature value which is not serializable, we simply
+      // do not keep this on disk
+      LOGGER.debug("Could not write cached result to " + file, ex);
+      tmp.delete();
+      return;
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+    } else {
+      metrics.increment("cacheSpills");
+    }
+  }
+  
+  /**
+   * Return the fraction of lookups which were hits so far.
+   * 
+   * @return the hit rate, 0.0 if there were no lookups yet
+   */
+  public double getHitRate() {
+    long hits = metrics.get("cacheHits");
+    long total = hits + metrics.get("cacheMisses");
+    return total == 0 ? 0.0 : ((double) hits) / total;
+  }
+  
+  public int size() {
+    synchronized (memory) {
+      return memory.size();
+    }
+  }
+  
+  public void clear() {
+    synchronized (memory) {
+      memory.clear();
+    }
+  }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A condition on a document, compiled once from a small expression language.
+ * 
+ * This is used for the "prcond" config setting which makes a PR run only
+ * for documents for which the condition is true. The expression gets 
+ * compiled into a tree of small objects once, when the config is read, so 
+ * evaluating it for a document only needs a few feature lookups and 
+ * comparisons. 
+ * 
+ * The expression language supports:
+ * <ul>
+ * <li>the values <code>feature.NAME</code> or <code>feature["NAME"]</code> 
+ * (the value of a document feature), <code>size</code> (the length of 
+ * the document content), <code>mimetype</code> (the value of the MimeType
+ * document feature) and <code>name</code> (the document name),</li>
+ * <li>string literals in single or double quotes (a backslash only escapes
+ * the quote character and another backslash and is kept everywhere else,
+ * so regular expressions can be written as usual), numbers, 
+ * <code>true</code>, <code>false</code> and <code>null</code>,</li>
+ * <li>the comparisons <code>== != &lt; &lt;= &gt; &gt;=</code>, where numbers
+ * and strings which look like numbers are compared numerically and 
+ * everything else is compared as strings,</li>
+ * <li><code>=~</code> which is true if the regular expression on the 
+ * right side (a string literal) is found in the value on the left side,</li>
+ * <li><code>&amp;&amp; || !</code> (or <code>and or not</code>) and 
+ * parentheses.</li>
+ * </ul>
+ * A value on its own is true if it is not null, not false, not zero and
+ * not the empty string. 
+ * For example: <code>mimetype =~ "html" &amp;&amp; size &lt; 100000 &amp;&amp; !feature.skip</code>
+ * 
+ * @author Johann Petrak
+ */
+public class RunCondition {
+  
+  private final String source;
+  private final Node root;
+  
+  private RunCondition(String source, Node root) {
+    this.source = source;
+    this.root = root;
+  }
+  
+  /**
+   * Compile a condition expression. 
+   * 
+   * @param expression the expression
+   * @return the compiled condition
+   * @throws GateRuntimeException if the expression cannot be parsed
+   */
+  public static RunCondition compile(String expression) {
+    if (expression == null) {
+      throw new GateRuntimeException("Run condition expression is null");
+    }
+    Parser parser = new Parser(expression);
+    Node root = parser.parseExpression();
+    if (parser.peek() != null) {
+      throw parser.error("unexpected " + parser.peek());
+    }
+    return new RunCondition(expression, root);
+  }
+  
+  /**
+   * Evaluate the condition for a document. 
+   * 
+   * @param doc the document, if null, the condition is always true
+   * @return true if the condition holds for the document
+   */
+  public boolean test(Document doc) {
+    if (doc == null) {
+      return true;
+    }
+    return isTrue(root.eval(doc));
+  }
+  
+  public String getSource() {
+    return source;
+  }
+  
+  @Override
+  public String toString() {
+    return source;
+  }
+  
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof RunCondition && ((RunCondition) other).source.equals(source);
+  }
+  
+  @Override
+  public int hashCode() {
+    return source.hashCode();
+  }
+  
+  //// the compiled expression
+  
+  private interface Node {
+    Object eval(Document doc);
+  }
+  
+  private static boolean isTrue(Object value) {
+    if (value == null) {
+      return false;
+    } else if (value instanceof Boolean) {
+      return (Boolean) value;
+    } else if (value instanceof Number) {
+      return ((Number) value).doubleValue() != 0.0;
+    } else if (value instanceof String) {
+      return !((String) value).isEmpty() && !"false".equals(value);
+    } else {
+      return true;
+    }
+  }
+  
+  private static double toNumber(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    } else if (value instanceof String) {
+      try {
+        return Double.parseDouble((String) value);
+      } catch (NumberFormatException ex) {
+        return Double.NaN;
+      }
+    } else {
+      return Double.NaN;
+    }
+  }
+  
+  private static final class Constant implements Node {
+    private final Object value;
+    Constant(Object value) { this.value = value; }
+    @Override
+    public Object eval(Document doc) { return value; }
+  }
+  
+  private static final class FeatureValue implements Node {
+    private final String name;
+    FeatureValue(String name) { this.name = name; }
+    @Override
+    public Object eval(Document doc) { return doc.getFeatures().get(name); }
+  }
+  
+  private static final class Size implements Node {
+    @Override
+    public Object eval(Document doc) { return doc.getContent().size(); }
+  }
+  
+  private static final class Name implements Node {
+    @Override
+    public Object eval(Document doc) { return doc.getName(); }
+  }
+  
+  private static final class Not implements Node {
+    private final Node arg;
+    Not(Node arg) { this.arg = arg; }
+    @Override
+    public Object eval(Document doc) { return !isTrue(arg.eval(doc)); }
+  }
+  
+  private static final class And implements Node {
+    private final Node left, right;
+    And(Node left, Node right) { this.left = left; this.right = right; }
+    @Override
+    public Object eval(Document doc) { return isTrue(left.eval(doc)) && isTrue(right.eval(doc)); }
+  }
+  
+  private static final class Or implements Node {
+    private final Node left, right;
+    Or(Node left, Node right) { this.left = left; this.right = right; }
+    @Override
+    public Object eval(Document doc) { return isTrue(left.eval(doc)) || isTrue(right.eval(doc)); }
+  }
+  
+  private static final class Matches implements Node {
+    private final Node left;
+    private final Pattern pattern;
+    Matches(Node left, Pattern pattern) { this.left = left; this.pattern = pattern; }
+    @Override
+    public Object eval(Document doc) {
+      Object value = left.eval(doc);
+      return value != null && pattern.matcher(value.toString()).find();
+    }
+  }
+  
+  private static final class Compare implements Node {
+    private final Node left, right;
+    private final String op;
+    Compare(Node left, String op, Node right) { this.left = left; this.op = op; this.right = right; }
+    @Override
+    public Object eval(Document doc) {
+      Object l = left.eval(doc);
+      Object r = right.eval(doc);
+      if (op.equals("==") || op.equals("!=")) {
+        boolean equal;
+        if (l == null || r == null) {
+          equal = l == r;
+        } else {
+          double ln = toNumber(l);
+          double rn = toNumber(r);
+          if (!Double.isNaN(ln) && !Double.isNaN(rn)) {
+            equal = ln == rn;
+          } else {
+            equal = l.toString().equals(r.toString());
+          }
+        }
+        return op.equals("==") ? equal : !equal;
+      }
+      if (l == null || r == null) {
+        return false;
+      }
+      int cmp;
+      double ln = toNumber(l);
+      double rn = toNumber(r);
+      if (!Double.isNaN(ln) && !Double.isNaN(rn)) {
+        cmp = Double.compare(ln, rn);
+      } else {
+        cmp = l.toString().compareTo(r.toString());
+      }
+      switch (op) {
+        case "<": return cmp < 0;
+        case "<=": return cmp <= 0;
+        case ">": return cmp > 0;
+        default: return cmp >= 0;
+      }
+    }
+  }
+  
+  //// the parser
+  
+  private static final class Parser {
+    private final String source;
+    private final List<String> tokens = new ArrayList<>();
+    private final List<Integer> positions = new ArrayList<>();
+    private int next = 0;
+    
+    Parser(String source) {
+      this.source = source;
+      tokenize();
+    }
+    
+    GateRuntimeException error(String msg) {
+      int pos = next < positions.size() ? positions.get(next) : source.length();
+      return new GateRuntimeException("Cannot parse run condition \"" + source + "\" at position " + pos + ": " + msg);
+    }
+    
+    private void tokenize() {
+      int i = 0;
+      int n = source.length();
+      while (i < n) {
+        char c = source.charAt(i);
+        int start = i;
+        if (Character.isWhitespace(c)) {
+          i++;
+          continue;
+        } else if (c == '"' || c == '\'') {
+          StringBuilder sb = new StringBuilder();
+          sb.append('"');
+          i++;
+          while (i < n && source.charAt(i) != c) {
+            if (source.charAt(i) == '\\' && i + 1 < n &&
+                (source.charAt(i + 1) == c || source.charAt(i + 1) == '\\')) {
+              i++;
+            }
+            sb.append(source.charAt(i));
+            i++;
+          }
+          if (i >= n) {
+            positions.add(start);
+            next = positions.size() - 1;
+            throw error("unterminated string");
+          }
+          i++;
+          tokens.add(sb.toString());
+        } else if (Character.isDigit(c) || (c == '-' && i + 1 < n && Character.isDigit(source.charAt(i + 1)))) {
+          i++;
+          while (i < n && (Character.isDigit(source.charAt(i)) || source.charAt(i) == '.')) {
+            i++;
+          }
+          tokens.add(source.substring(start, i));
+        } else if (Character.isLetter(c) || c == '_') {
+          while (i < n && (Character.isLetterOrDigit(source.charAt(i)) || "_.-".indexOf(source.charAt(i)) >= 0)) {
+            i++;
+          }
+          tokens.add(source.substring(start, i));
+        } else {
+          String two = i + 1 < n ? source.substring(i, i + 2) : "";
+          if (two.equals("==") || two.equals("!=") || two.equals("<=") || two.equals(">=") ||
+              two.equals("&&") || two.equals("||") || two.equals("=~")) {
+            tokens.add(two);
+            i += 2;
+          } else if ("()[]<>!".indexOf(c) >= 0) {
+            tokens.add(String.valueOf(c));
+            i++;
+          } else {
+            positions.add(start);
+            next = positions.size() - 1;
+            throw error("unexpected character '" + c + "'");
+          }
+        }
+        positions.add(start);
+      }
+    }
+    
+    String peek() {
+      return next < tokens.size() ? tokens.get(next) : null;
+    }
+    
+    String take() {
+      String token = peek();
+      if (token == null) {
+        throw error("unexpected end of expression");
+      }
+      next++;
+      return token;
+    }
+    
+    void expect(String token) {
+      if (!token.equals(peek())) {
+        throw error("expected " + token);
+      }
+      next++;
+    }
+    
+    Node parseExpression() {
+      Node node = parseAnd();
+      while ("||".equals(peek()) || "or".equals(peek())) {
+        next++;
+        node = new Or(node, parseAnd());
+      }
+      return node;
+    }
+    
+    Node parseAnd() {
+      Node node = parseNot();
+      while ("&&".equals(peek()) || "and".equals(peek())) {
+        next++;
+        node = new And(node, parseNot());
+      }
+      return node;
+    }
+    
+    Node parseNot() {
+      if ("!".equals(peek()) || "not".equals(peek())) {
+        next++;
+        return new Not(parseNot());
+      }
+      return parseComparison();
+    }
+    
+    Node parseComparison() {
+      Node left = parseValue();
+      String op = peek();
+      if (op == null) {
+        return left;
+      }
+      if (op.equals("=~")) {
+        next++;
+        String regex = take();
+        if (!regex.startsWith("\"")) {
+          throw error("regular expression must be a string");
+        }
+        try {
+          return new Matches(left, Pattern.compile(regex.substring(1)));
+        } catch (PatternSyntaxException ex) {
+          throw error("invalid regular expression: " + ex.getMessage());
+        }
+      }
+      if (op.equals("==") || op.equals("!=") || op.equals("<") || op.equals("<=") ||
+          op.equals(">") || op.equals(">=")) {
+        next++;
+        return new Compare(left, op, parseValue());
+      }
+      return left;
+    }
+    
+    Node parseValue() {
+      String token = take();
+      if (token.equals("(")) {
+        Node node = parseExpression();
+        expect(")");
+        return node;
+      } else if (token.startsWith("\"")) {
+        return new Constant(token.substring(1));
+      } else if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '-') {
+        try {
+          if (token.contains(".")) {
+            return new Constant(Double.valueOf(token));
+          } else {
+            return new Constant(Long.valueOf(token));
+          }
+        } catch (NumberFormatException ex) {
+          next--;
+          throw error("invalid number " + token);
+        }
+      } else if (token.equals("true")) {
+        return new Constant(Boolean.TRUE);
+      } else if (token.equals("false")) {
+        return new Constant(Boolean.FALSE);
+      } else if (token.equals("null")) {
+        return new Constant(null);
+      } else if (token.equals("size")) {
+        return new Size();
+      } else if (token.equals("mimetype")) {
+        return new FeatureValue("MimeType");
+      } else if (token.equals("name")) {
+        return new Name();
+      } else if (token.startsWith("feature.") && token.length() > "feature.".length()) {
+        return new FeatureValue(token.substring("feature.".length()));
+      } else if (token.equals("feature")) {
+        expect("[");
+        String name = take();
+        if (!name.startsWith("\"")) {
+          throw error("feature name must be a string");
+        }
+        expect("]");
+        return new FeatureValue(name.substring(1));
+      } else {
+        next--;
+        throw error("unexpected " + token);
+      }
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.LanguageAnalyser;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * A small fixed pool of controllers shared by all the duplicates of a 
+ * Pipeline PR.
+ * 
+ * Instead of each duplicate having its own copy of the sub-pipeline, all
+ * of them use the controllers of the pool, so at most as many documents as
+ * there are controllers get processed at the same time and the other 
+ * duplicates wait. If the batch size is greater than one, a duplicate which
+ * gets a controller also takes the documents of other waiting duplicates 
+ * and runs the controller on all of them as a corpus, so that PRs which
+ * process a corpus in batches can make use of this.
+ * <p>
+ * The controllers of the pool get the controller started callback when the
+ * first duplicate gets it and the finished callback when the last one
+ * gets it. The pool is deleted when all the duplicates have been deleted.
+ * 
+ * @author Johann Petrak
+ */
+public class SharedControllerPool {
+  
+  protected static final Logger LOGGER = Logger.getLogger(SharedControllerPool.class);
+  
+  private final List<Controller> controllers;
+  private final int batchSize;
+  private int members = 0;
+  private int running = 0;
+  
+  // The idle controllers and the requests which are not part of a batch 
+  // yet, both guarded by the lock. The condition gets signalled whenever a
+  // batch is done, which returns a controller and completes requests.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition batchDone = lock.newCondition();
+  private final ArrayDeque<Controller> idle;
+  private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+  
+  private static class Request {
+    final Document document;
+    // guarded by the lock
+    boolean done = false;
+    Throwable error = null;
+    Request(Document document) {
+      this.document = document;
+    }
+  }
+  
+  /**
+   * Create the pool from a controller and duplicates of it.
+   * 
+   * @param controller the controller, which becomes part of the pool
+   * @param size how many controllers the pool has
+   * @param batchSize the maximum number of documents to process in one run
+   * @throws ResourceInstantiationException if the controller cannot be 
+   * duplicated
+   */
+  public SharedControllerPool(Controller controller, int size, int batchSize) throws ResourceInstantiationException {
+    if(!(controller instanceof LanguageAnalyser && controller instanceof CorpusController)) {
+      throw new GateRuntimeException("A shared pipeline must be a corpus controller which can process single documents: "+controller.getName());
+    }
+    List<Controller> all = new ArrayList<>(size);
+    all.add(controller);
+    if(size > 1) {
+      all.addAll(ParallelDuplicator.duplicate(controller, size - 1).getDuplicates());
+    }
+    controllers = Collections.unmodifiableList(all);
+    idle = new ArrayDeque<>(all);
+    this.batchSize = Math.max(1, batchSize);
+  }
+  
+  public List<Controller> getControllers() {
+    return controllers;
+  }
+  
+  synchronized void addMember() {
+    members++;
+  }
+  
+  /**
+   * Remove a member and delete the controllers once there are no members
+   * left.
+   */
+  synchronized void removeMember() {
+    members--;
+    if(members == 0) {
+      for(Controller c : controllers) {
+        Factory.deleteResource(c);
+      }
+    }
+  }
+  
+  synchronized void started(Controller parent, Corpus corpus) throws ExecutionException {
+    if(running++ == 0) {
+      for(Controller c : controllers) {
+        if(c instanceof ControllerAwarePR) {
+          ((CorpusController)c).setCorpus(corpus);
+          ((ControllerAwarePR)c).controllerExecutionStarted(parent);
+        }
+      }
+    }
+  }
+  
+  synchronized void finished(Controller parent, Corpus corpus, Throwable t) throws ExecutionException {
+    if(running > 0 && --running == 0) {
+      for(Controller c : controllers) {
+        if(c instanceof ControllerAwarePR) {
+          ((CorpusController)c).setCorpus(corpus);
+          if(t == null) {
+            ((ControllerAwarePR)c).controllerExecutionFinished(parent);
+          } else {
+            ((ControllerAwarePR)c).controllerExecutionAborted(parent, t);
+          }
+          ((CorpusController)c).setCorpus(null);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Process a document with one of the controllers of the pool, waiting 
+   * until one is available or another thread has processed the document 
+   * as part of a batch.
+   * 
+   * If the thread gets interrupted while its document is still waiting, 
+   * the document is not processed. If the document is already part of a 
+   * batch another thread is running, this waits until the batch is done 
+   * and keeps the interrupt status of the thread.
+   * 
+   * @param document the document
+   * @param corpus the corpus to set for the controller when processing a
+   * single document
+   * @throws ExecutionException if processing the document, or the batch it
+   * was part of, failed, or the thread was interrupted before the document
+   * got processed
+   */
+  public void process(Document document, Corpus corpus) throws ExecutionException {
+    Request request = new Request(document);
+    boolean interrupted = false;
+    lock.lock();
+    try {
+      waiting.add(request);
+      while(!request.done) {
+        Controller c = waiting.isEmpty() ? null : idle.poll();
+        if(c != null) {
+          List<Request> batch = takeBatch();
+          lock.unlock();
+          try {
+            runBatch(c, batch, corpus);
+          } finally {
+            lock.lock();
+            idle.add(c);
+            for(Request done : batch) {
+              done.done = true;
+            }
+            batchDone.signalAll();
+          }
+        } else {
+          try {
+            batchDone.await();
+          } catch(InterruptedException ex) {
+            if(waiting.remove(request)) {
+              Thread.currentThread().interrupt();
+              throw new ExecutionException("Interrupted while waiting for a shared pipeline", ex);
+            }
+            // another thread is processing the document already
+            interrupted = true;
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+      if(interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if(request.error != null) {
+      if(request.error instanceof ExecutionException) {
+        throw (ExecutionException)request.error;
+      }
+      throw new ExecutionException("Error in shared pipeline", request.error);
+    }
+  }
+  
+  // must be called with the lock held
+  private List<Request> takeBatch() {
+    List<Request> batch = new ArrayList<>(Math.min(batchSize, waiting.size()));
+    Request r;
+    while(batch.size() < batchSize && (r = waiting.poll()) != null) {
+      batch.add(r);
+    }
+    return batch;
+  }
+  
+  // the errors are published to the waiting threads by the lock, which 
+  // gets acquired before the requests are marked as done
+  private void runBatch(Controller c, List<Request> batch, Corpus corpus) {
+    Throwable error = null;
+    try {
+      if(batch.size() == 1) {
+        ((CorpusController)c).setCorpus(corpus);
+        ((LanguageAnalyser)c).setDocument(batch.get(0).document);
+        try {
+          c.execute();
+        } finally {
+          ((LanguageAnalyser)c).setDocument(null);
+        }
+      } else {
+        runCorpus(c, batch);
+      }
+    } catch(ExecutionException | RuntimeException | Error ex) {
+      // also for errors, the other threads must not take the batch as done
+      error = ex;
+    }
+    for(Request done : batch) {
+      done.error = error;
+    }
+  }
+  
+  private void runCorpus(Controller c, List<Request> batch) throws ExecutionException {
+    Corpus batchCorpus;
+    try {
+      FeatureMap features = Factory.newFeatureMap();
+      Gate.setHiddenAttribute(features, true);
+      batchCorpus = (Corpus)Factory.createResource("gate.corpora.CorpusImpl", 
+              Factory.newFeatureMap(), features, "shared pipeline batch");
+    } catch(ResourceInstantiationException ex) {
+      throw new ExecutionException("Could not create the corpus for a batch", ex);
+    }
+    try {
+      for(Request request : batch) {
+        batchCorpus.add(request.document);
+      }
+      ((CorpusController)c).setCorpus(batchCorpus);
+      c.execute();
+    } finally {
+      ((CorpusController)c).setCorpus(null);
+      batchCorpus.clear();
+      Factory.deleteResource(batchCorpus);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+/**
+ * What to do when a document exceeds the time budget of a Pipeline PR or
+ * a ParametrizedCorpusController.
+ * 
+ * @author Johann Petrak
+ */
+public enum TimeoutPolicy {
+  /**
+   * Abort processing with an exception, as if the sub-pipeline had failed.
+   */
+  FAIL,
+  /**
+   * Skip the rest of the processing for the document, set the document 
+   * feature TimeoutPolicy.FEATURE_NAME to the name of the pipeline or 
+   * controller which timed out and continue with the next document.
+   */
+  SKIP;
+  
+  /**
+   * The name of the document feature set for a document which got skipped.
+   */
+  public static final String FEATURE_NAME = "modularpipelines.timedOut";
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * A simple hashed timer wheel for running a task once a time budget is
+ * exceeded.
+ * 
+ * All timeouts of a wheel are handled by a single daemon thread which 
+ * advances the wheel by one bucket every tick. Scheduling a timeout only
+ * adds it to a queue and cancelling it only sets a flag, cancelled timeouts
+ * get dropped when their bucket is reached. This is what we need for
+ * per-document time budgets where almost every timeout gets cancelled 
+ * long before it would expire. Timeouts expire with the precision of
+ * one tick. While there are no timeouts left which may still expire, the 
+ * thread parks until the next one gets scheduled.
+ * 
+ * @author Johann Petrak
+ */
+public class TimerWheel {
+  
+  protected static final Logger LOGGER = Logger.getLogger(TimerWheel.class);
+  
+  private static TimerWheel shared = null;
+  
+  /**
+   * Return the timer wheel shared by all pipelines and controllers.
+   * 
+   * @return the shared timer wheel, with a tick of 10 milliseconds
+   */
+  public static synchronized TimerWheel getShared() {
+    if (shared == null) {
+      shared = new TimerWheel(10, 512);
+    }
+    return shared;
+  }
+  
+  private final long tickNanos;
+  private final List<ArrayDeque<Timeout>> buckets;
+  private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+  // number of timeouts which have neither expired nor been cancelled
+  private final AtomicInteger active = new AtomicInteger();
+  // set by the worker before it checks if it can park
+  private volatile boolean idle = false;
+  private volatile Thread worker = null;
+  
+  public TimerWheel(long tickMillis, int nrBuckets) {
+    if (tickMillis < 1 || nrBuckets < 1) {
+      throw new IllegalArgumentException("tick and number of buckets must be at least 1");
+    }
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    buckets = new ArrayList<>(nrBuckets);
+    for (int i = 0; i < nrBuckets; i++) {
+      buckets.add(new ArrayDeque<>());
+    }
+  }
+  
+  /**
+   * Run the task once the given number of milliseconds has passed, unless
+   * the returned timeout gets cancelled before that. 
+   * 
+   * The task is run on the timer thread, so it should only do something 
+   * quick like setting a flag or interrupting a controller.
+   * 
+   * @param task the task to run
+   * @param delayMillis the time after which to run the task
+   * @return the timeout, which can be used to cancel running the task
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    ensureStarted();
+    Timeout timeout = new Timeout(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    active.incrementAndGet();
+    pending.add(timeout);
+    if (idle) {
+      LockSupport.unpark(worker);
+    }
+    return timeout;
+  }
+  
+  private synchronized void ensureStarted() {
+    if (worker == null) {
+      worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runWheel();
+        }
+      }, "modularpipelines-timerwheel");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+  
+  private void runWheel() {
+    long startNanos = System.nanoTime();
+    long tick = 0;
+    while (true) {
+      if (active.get() == 0) {
+        // nothing can expire: forget the cancelled timeouts and wait until
+        // something gets scheduled, then start counting ticks from there
+        idle = true;
+        if (active.get() == 0) {
+          for (ArrayDeque<Timeout> bucket : buckets) {
+            bucket.clear();
+          }
+          while (active.get() == 0) {
+            LockSupport.park(this);
+          }
+          startNanos = System.nanoTime();
+          tick = 0;
+        }
+        idle = false;
+      }
+      // wait until the end of the current tick
+      long deadline = startNanos + (tick + 1) * tickNanos;
+      long now = System.nanoTime();
+      while (now < deadline) {
+        LockSupport.parkNanos(deadline - now);
+        now = System.nanoTime();
+      }
+      // put all the newly scheduled timeouts into their buckets
+      Timeout timeout;
+      while ((timeout = pending.poll()) != null) {
+        if (timeout.cancelled) {
+          continue;
+        }
+        long expiresAtTick = Math.max((timeout.deadline - startNanos) / tickNanos, tick);
+        timeout.remainingRounds = (expiresAtTick - tick) / buckets.size();
+        buckets.get((int) (expiresAtTick % buckets.size())).add(timeout);
+      }
+      // expire or age all the timeouts in the bucket for this tick
+      ArrayDeque<Timeout> bucket = buckets.get((int) (tick % buckets.size()));
+      for (int n = bucket.size(); n > 0; n--) {
+        timeout = bucket.poll();
+        if (timeout.cancelled) {
+          continue;
+        }
+        if (timeout.remainingRounds <= 0) {
+          if (timeout.finish()) {
+            timeout.expired = true;
+            try {
+              timeout.task.run();
+            } catch (Throwable t) {
+              LOGGER.error("Timeout task failed", t);
+            }
+          }
+        } else {
+          timeout.remainingRounds--;
+          bucket.add(timeout);
+        }
+      }
+      tick++;
+    }
+  }
+  
+  /**
+   * A scheduled task which can get cancelled.
+   */
+  public static final class Timeout {
+    private static final AtomicIntegerFieldUpdater<Timeout> FINISHED = 
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "finished");
+    private final TimerWheel wheel;
+    private final Runnable task;
+    private final long deadline;
+    private volatile boolean cancelled = false;
+    private volatile boolean expired = false;
+    // set to 1 by whichever comes first, cancelling or expiring
+    private volatile int finished = 0;
+    private long remainingRounds;
+    
+    private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+      this.wheel = wheel;
+      this.task = task;
+      this.deadline = deadline;
+    }
+    
+    private boolean finish() {
+      if (FINISHED.compareAndSet(this, 0, 1)) {
+        wheel.active.decrementAndGet();
+        return true;
+      }
+      return false;
+    }
+    
+    public void cancel() {
+      cancelled = true;
+      finish();
+    }
+    
+    public boolean isCancelled() {
+      return cancelled;
+    }
+    
+    public boolean isExpired() {
+      return expired;
+    }
+  }
+}
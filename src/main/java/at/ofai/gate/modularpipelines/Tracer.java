@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+
+/**
+ * A low-overhead tracer for how pipelines, controllers and PRs execute.
+ * 
+ * Each thread records begin and end events into its own preallocated ring 
+ * buffer, so recording an event never allocates or synchronizes and once
+ * the buffer is full, the oldest events get overwritten. When tracing
+ * is disabled, each trace point only costs a check of a volatile flag.
+ * <p>
+ * The buffers can be written out in the Chrome trace event format
+ * which can be viewed in chrome://tracing or Perfetto. This can be done
+ * on demand, or automatically whenever a document takes longer than a
+ * configured number of milliseconds.
+ * <p>
+ * Tracing is configured with the following system properties:
+ * <ul>
+ * <li>modularpipelines.trace: if "true", tracing is enabled
+ * <li>modularpipelines.trace.bufferSize: number of events kept per thread, 
+ * default 65536
+ * <li>modularpipelines.trace.slowDocMillis: if set, the trace is written 
+ * whenever a document takes at least that long
+ * <li>modularpipelines.trace.dir: directory where trace files are written, 
+ * default is the temporary directory
+ * </ul>
+ * Events recorded while a dump is in progress may or may not be included 
+ * in the dump. Slow document dumps are written by a background thread, 
+ * at most one at a time, so they may also contain events recorded after 
+ * the slow document finished.
+ * <p>
+ * The buffer of a thread which has terminated is kept until it has been
+ * included in a dump or until some other thread starts tracing.
+ * 
+ * @author Johann Petrak
+ */
+public class Tracer {
+  
+  protected static final Logger LOGGER = Logger.getLogger(Tracer.class);
+  
+  public static final String CONTROLLER = "controller";
+  public static final String CALLBACK = "callback";
+  public static final String DOCUMENT = "document";
+  public static final String PIPELINE = "pipeline";
+  public static final String PR = "pr";
+  
+  private static final String PROPERTY_PREFIX = "modularpipelines.trace";
+  
+  private static final byte BEGIN = 'B';
+  private static final byte END = 'E';
+  
+  private static volatile boolean enabled = 
+          Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX, "false"));
+  private static volatile int bufferSize = 
+          Integer.parseInt(System.getProperty(PROPERTY_PREFIX+".bufferSize", "65536"));
+  private static volatile long slowDocMillis = 
+          Long.parseLong(System.getProperty(PROPERTY_PREFIX+".slowDocMillis", "0"));
+  private static volatile File dumpDir = 
+          new File(System.getProperty(PROPERTY_PREFIX+".dir", System.getProperty("java.io.tmpdir")));
+  
+  private static final List<Ring> rings = new CopyOnWriteArrayList<>();
+  
+  private static final ThreadLocal<Ring> ring = new ThreadLocal<Ring>() {
+    @Override
+    protected Ring initialValue() {
+      pruneRings();
+      Ring r = new Ring(Thread.currentThread(), bufferSize);
+      rings.add(r);
+      return r;
+    }
+  };
+  
+  // slow document dumps are written by this thread so the worker thread 
+  // does not wait for the file to get written
+  private static final ExecutorService dumper = 
+          Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "modularpipelines-trace-dump");
+            t.setDaemon(true);
+            return t;
+          });
+  private static final AtomicBoolean dumpPending = new AtomicBoolean(false);
+  
+  private Tracer() {}
+  
+  public static boolean isEnabled() {
+    return enabled;
+  }
+  
+  public static void setEnabled(boolean value) {
+    enabled = value;
+  }
+  
+  /**
+   * Set the number of events kept per thread. 
+   * 
+   * This only affects threads which did not record any events yet.
+   * 
+   * @param size number of events
+   */
+  public static void setBufferSize(int size) {
+    if(size < 1) {
+      throw new IllegalArgumentException("Buffer size must be at least 1");
+    }
+    bufferSize = size;
+  }
+  
+  public static void setSlowDocMillis(long millis) {
+    slowDocMillis = millis;
+  }
+  
+  public static long getSlowDocMillis() {
+    return slowDocMillis;
+  }
+  
+  public static void setDumpDir(File dir) {
+    dumpDir = dir;
+  }
+  
+  public static File getDumpDir() {
+    return dumpDir;
+  }
+  
+  /**
+   * Record the start of something.
+   * 
+   * The category and name should be strings which already exist, e.g. 
+   * constants or resource names, so that no garbage is created.
+   * 
+   * @param category the kind of thing, e.g. "pr" or "document"
+   * @param name the name of the thing
+   */
+  public static void begin(String category, String name) {
+    if(enabled) {
+      ring.get().add(BEGIN, category, name);
+    }
+  }
+  
+  /**
+   * Record the end of something started with begin.
+   * 
+   * @param category the kind of thing
+   * @param name the name of the thing
+   */
+  public static void end(String category, String name) {
+    if(enabled) {
+      ring.get().add(END, category, name);
+    }
+  }
+  
+  /**
+   * Write the trace to a file if a document took too long.
+   * 
+   * The file is written in the background. If a dump is still being 
+   * written, no new one is started.
+   * 
+   * @param docName name of the document
+   * @param startNanos value of System.nanoTime() when processing the 
+   * document started
+   */
+  public static void documentFinished(String docName, long startNanos) {
+    long limit = slowDocMillis;
+    if(!enabled || limit <= 0) {
+      return;
+    }
+    long millis = (System.nanoTime() - startNanos) / 1000000L;
+    if(millis >= limit && dumpPending.compareAndSet(false, true)) {
+      try {
+        dumper.execute(() -> {
+          try {
+            File file = dump();
+            LOGGER.info("Document "+docName+" took "+millis+"ms, trace written to "+file);
+          } catch(IOException ex) {
+            LOGGER.error("Could not write trace for document "+docName, ex);
+          } finally {
+            dumpPending.set(false);
+          }
+        });
+      } catch(RejectedExecutionException ex) {
+        dumpPending.set(false);
+        LOGGER.error("Could not write trace for document "+docName, ex);
+      }
+    }
+  }
+  
+  /**
+   * Write the trace to a new file in the dump directory.
+   * 
+   * @return the file written
+   * @throws IOException if the file cannot be written
+   */
+  public static File dump() throws IOException {
+    File file = File.createTempFile("modularpipelines-trace-", ".json", dumpDir);
+    dump(file);
+    return file;
+  }
+  
+  /**
+   * Write the trace to the given file.
+   * 
+   * @param file the file to write to
+   * @throws IOException if the file cannot be written
+   */
+  public static void dump(File file) throws IOException {
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      dump(out);
+    }
+  }
+  
+  /**
+   * Write the events of all threads in Chrome trace event JSON format.
+   * 
+   * @param out where to write to, this does not get closed
+   * @throws IOException if writing fails
+   */
+  public static void dump(Writer out) throws IOException {
+    out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    boolean first = true;
+    for(Ring r : rings) {
+      if(!first) {
+        out.write(",\n");
+      }
+      first = false;
+      out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+      out.write(Long.toString(r.threadId));
+      out.write(",\"args\":{\"name\":");
+      writeString(out, r.threadName);
+      out.write("}}");
+      r.dump(out);
+    }
+    out.write("]}\n");
+    out.flush();
+    pruneRings();
+  }
+  
+  /**
+   * Drop the buffers of threads which have terminated.
+   */
+  private static void pruneRings() {
+    rings.removeIf(r -> !r.isAlive());
+  }
+  
+  /**
+   * Forget all recorded events.
+   */
+  public static void clear() {
+    for(Ring r : rings) {
+      r.clear();
+    }
+  }
+  
+  private static void writeString(Writer out, String str) throws IOException {
+    out.write('"');
+    if(str != null) {
+      for(int i = 0; i < str.length(); i++) {
+        char c = str.charAt(i);
+        if(c == '"' || c == '\\') {
+          out.write('\\');
+          out.write(c);
+        } else if(c < 0x20) {
+          out.write(String.format("\\u%04x", (int)c));
+        } else {
+          out.write(c);
+        }
+      }
+    }
+    out.write('"');
+  }
+  
+  /**
+   * The event buffer of one thread. Only the owning thread writes to it.
+   */
+  private static class Ring {
+    // weak, so that the ring does not keep a terminated thread around
+    final WeakReference<Thread> thread;
+    final long threadId;
+    final String threadName;
+    final long[] micros;
+    final byte[] phases;
+    final String[] categories;
+    final String[] names;
+    // total number of events ever added, the next event goes to 
+    // count % size
+    volatile long count = 0;
+    
+    Ring(Thread thread, int size) {
+      this.thread = new WeakReference<>(thread);
+      threadId = thread.getId();
+      threadName = thread.getName();
+      micros = new long[size];
+      phases = new byte[size];
+      categories = new String[size];
+      names = new String[size];
+    }
+    
+    void add(byte phase, String category, String name) {
+      long n = count;
+      int i = (int)(n % micros.length);
+      micros[i] = System.nanoTime() / 1000L;
+      phases[i] = phase;
+      categories[i] = category;
+      names[i] = name;
+      count = n + 1;
+    }
+    
+    boolean isAlive() {
+      Thread t = thread.get();
+      return t != null && t.isAlive();
+    }
+    
+    void clear() {
+      count = 0;
+    }
+    
+    void dump(Writer out) throws IOException {
+      long n = count;
+      long from = Math.max(0, n - micros.length);
+      for(long k = from; k < n; k++) {
+        int i = (int)(k % micros.length);
+        out.write(",\n{\"name\":");
+        writeString(out, names[i]);
+        out.write(",\"cat\":");
+        writeString(out, categories[i]);
+        out.write(",\"ph\":\"");
+        out.write((char)phases[i]);
+        out.write("\",\"ts\":");
+        out.write(Long.toString(micros[i]));
+        out.write(",\"pid\":1,\"tid\":");
+        out.write(Long.toString(threadId));
+        out.write("}");
+      }
+    }
+  }
+}
@@ -21,23 +21,58 @@
 package at.ofai.gate.modularpipelines;
 
 import gate.Controller;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
 import gate.FeatureMap;
+import gate.Gate;
+import gate.LanguageAnalyser;
 import gate.ProcessingResource;
+import gate.creole.AbstractController;
+import gate.creole.AbstractResource;
 import gate.creole.AnalyserRunningStrategy;
 import gate.creole.ConditionalController;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.Parameter;
+import gate.creole.ParameterException;
+import gate.creole.ResourceData;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.RunningStrategy;
 import gate.util.GateRuntimeException;
+import java.beans.IntrospectionException;
+import java.beans.PropertyDescriptor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import org.apache.log4j.Logger;
 import org.yaml.snakeyaml.Yaml;
 
@@ -109,13 +144,8 @@ public class Utils {
                 if (controller == null || prname == null || name == null) {
                   throw new GateRuntimeException("config setting prparm: controller, prname, or name not given: "+config);
                 }
-                String prId = controller + "\t" + prname;
-                Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
-                if (prparm == null) {
-                  prparm = new HashMap<>();
-                }
-                prparm.put(name, value);
-                configData.prRuntimeParms.put(prId, prparm);
+                addPrSetting(configData.prRuntimeParms, configData.prRuntimePatterns, config, 
+                        controller, prname, name, value);
               } else if (what.equals("prinit")) {
                 String controller = (String) config.get("controller");
                 String prname = (String) config.get("prname");
@@ -124,13 +154,8 @@ public class Utils {
                 if (controller == null || prname == null || name == null) {
                   throw new GateRuntimeException("config setting prinit: controller, prname, or name not given: "+config);
                 }
-                String prId = controller + "\t" + prname;
-                Map<String, Object> prparm = configData.prInitParms.get(prId);
-                if (prparm == null) {
-                  prparm = new HashMap<>();
-                }
-                prparm.put(name, value);
-                configData.prInitParms.put(prId, prparm);
+                addPrSetting(configData.prInitParms, configData.prInitPatterns, config, 
+                        controller, prname, name, value);
               } else if (what.equals("prrun")) {
                 // we manage the run setting by using the fake PR parameter "$$RUNFLAG$$"
                 String controller = (String) config.get("controller");
@@ -143,13 +168,35 @@ public class Utils {
                 if (!(value instanceof Boolean)) {
                   throw new GateRuntimeException("config setting value for prrun is not true or false: "+config);
                 }
-                String prId = controller + "\t" + prname;
-                Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
-                if (prparm == null) {
-                  prparm = new HashMap<>();
+                addPrSetting(configData.prRuntimeParms, configData.prRuntimePatterns, config, 
+                        controller, prname, name, value);
+              } else if (what.equals("prcond")) {
+                // we manage the run condition by using the fake PR parameter "$$RUNCOND$$"
+                String controller = (String) config.get("controller");
+                String prname = (String) config.get("prname");
+                if (controller == null || prname == null) {
+                  throw new GateRuntimeException("config setting prcond: controller or prname is not given: "+config);
+                }
+                Object value = config.get("value");
+                if (!(value instanceof String)) {
+                  throw new GateRuntimeException("config setting value for prcond is not an expression: "+config);
+                }
+                addPrSetting(configData.prRuntimeParms, configData.prRuntimePatterns, config, 
+                        controller, prname, "$$RUNCOND$$", RunCondition.compile((String)value));
+              } else if (what.equals("prio")) {
+                // we manage the read/write declaration by using the fake PR parameter "$$PRIO$$"
+                String controller = (String) config.get("controller");
+                String prname = (String) config.get("prname");
+                if (controller == null || prname == null) {
+                  throw new GateRuntimeException("config setting prio: controller or prname is not given: "+config);
+                }
+                Object reads = config.get("reads");
+                Object writes = config.get("writes");
+                if ((reads != null && !(reads instanceof List)) || (writes != null && !(writes instanceof List))) {
+                  throw new GateRuntimeException("config setting prio: reads and writes must be lists: "+config);
                 }
-                prparm.put(name, value);
-                configData.prRuntimeParms.put(prId, prparm);
+                addPrSetting(configData.prRuntimeParms, configData.prRuntimePatterns, config, 
+                        controller, prname, "$$PRIO$$", new PrIo((List<?>)reads, (List<?>)writes));
               } else if (what.equals("docfeature")) {
                 String name = (String) config.get("name");
                 Object value = config.get("value");
@@ -171,6 +218,81 @@ public class Utils {
                 }
                 configData.docFeaturesOverridable.put(name, override);
                 configData.docFeatures.put(name, value);
+                configData.docFeaturesChanged();
+              } else if (what.equals("warmup")) {
+                Object file = config.get("file");
+                Object iterations = config.get("iterations");
+                if (file == null) {
+                  throw new GateRuntimeException("config setting warmup: file not given: "+config);
+                }
+                File warmupFile = new File(file.toString());
+                if (!warmupFile.isAbsolute()) {
+                  warmupFile = new File(configFile.getAbsoluteFile().getParentFile(), file.toString());
+                }
+                configData.warmupFile = warmupFile;
+                if (iterations == null) {
+                  configData.warmupIterations = 1;
+                } else {
+                  try {
+                    configData.warmupIterations = iterations instanceof Number ? 
+                            ((Number)iterations).intValue() : Integer.parseInt(iterations.toString().trim());
+                  } catch (NumberFormatException ex) {
+                    throw new GateRuntimeException("config setting warmup: iterations is not an integer: "+config, ex);
+                  }
+                }
+                if (config.get("textfield") != null) {
+                  configData.warmupTextField = config.get("textfield").toString();
+                }
+              } else if (what.equals("deleteset") || what.equals("deletedocfeature")) {
+                String controller = (String) config.get("controller");
+                String prname = (String) config.get("prname");
+                Object name = config.get("name");
+                if (controller == null || name == null) {
+                  throw new GateRuntimeException("config setting "+what+": controller or name not given: "+config);
+                }
+                NameMatcher.MatchType type = NameMatcher.MatchType.fromSetting(config.get("match"));
+                List<?> names = name instanceof List ? (List<?>)name : Collections.singletonList(name);
+                String target;
+                if (type == NameMatcher.MatchType.REGEX) {
+                  target = "(?:" + controller + ")\t(?:" + (prname == null ? "" : prname) + ")";
+                } else {
+                  target = controller + "\t" + (prname == null ? "" : prname);
+                }
+                configData.deletions.add(target, type, 
+                        new Deletion(what.equals("deletedocfeature"), names, type));
+              } else if (what.equals("shard")) {
+                Object index = config.get("index");
+                Object count = config.get("count");
+                if (!(index instanceof Integer) || !(count instanceof Integer)) {
+                  throw new GateRuntimeException("config setting shard: index and count must be integers: "+config);
+                }
+                configData.shardIndex = (Integer)index;
+                configData.shardCount = (Integer)count;
+                if (config.get("mode") != null) {
+                  configData.shardMode = config.get("mode").toString();
+                }
+              } else if (what.equals("journal")) {
+                Object file = config.get("file");
+                if (file == null) {
+                  throw new GateRuntimeException("config setting journal: file not given: "+config);
+                }
+                File journalFile = new File(file.toString());
+                if (!journalFile.isAbsolute()) {
+                  journalFile = new File(configFile.getAbsoluteFile().getParentFile(), file.toString());
+                }
+                configData.journalFile = journalFile;
+                Object syncEvery = config.get("syncEvery");
+                if (syncEvery instanceof Integer) {
+                  configData.journalSyncEvery = (Integer)syncEvery;
+                } else if (syncEvery != null) {
+                  throw new GateRuntimeException("config setting journal: syncEvery is not an integer: "+config);
+                }
+                Object syncMillis = config.get("syncMillis");
+                if (syncMillis instanceof Number) {
+                  configData.journalSyncMillis = ((Number)syncMillis).longValue();
+                } else if (syncMillis != null) {
+                  throw new GateRuntimeException("config setting journal: syncMillis is not a number: "+config);
+                }
               } else if (what.equals("propset")) {
                 String name = (String) config.get("name");
                 Object value = config.get("value");
@@ -207,9 +329,39 @@ public class Utils {
       }
     }
     add2ConfigFromProperties(configData);
+    configData.checkShard();
     return configData;
   }
   
+  /**
+   * Add a setting for a PR parameter to the config.
+   * 
+   * If the setting has a "match" key with the value "glob" or "regex",
+   * the controller and prname are patterns and the setting gets added to 
+   * the pattern matcher, otherwise it is stored for the exact names.
+   */
+  private static void addPrSetting(Map<String,Map<String,Object>> exact, 
+          NameMatcher<Map<String,Object>> patterns, Map<String,Object> setting,
+          String controller, String prname, String name, Object value) {
+    NameMatcher.MatchType type = NameMatcher.MatchType.fromSetting(setting.get("match"));
+    if (type == NameMatcher.MatchType.EXACT) {
+      String prId = controller + "\t" + prname;
+      Map<String, Object> prparm = exact.get(prId);
+      if (prparm == null) {
+        prparm = new HashMap<>();
+      }
+      prparm.put(name, value);
+      exact.put(prId, prparm);
+    } else {
+      Map<String, Object> prparm = new HashMap<>();
+      prparm.put(name, value);
+      String pattern = type == NameMatcher.MatchType.GLOB ?
+              controller + "\t" + prname : 
+              "(?:" + controller + ")\t(?:" + prname + ")";
+      patterns.add(pattern, type, prparm);
+    }
+  }
+  
   protected static void add2ConfigFromProperties(Config configData) {
     String prefix = System.getProperty("at.ofai.gate.modularpipelines.propertyPrefix");
     String sep = System.getProperty("at.ofai.gate.modularpipelines.separator");
@@ -251,14 +403,31 @@ public class Utils {
           }
           prparm.put("$$RUNFLAG$$", Boolean.parseBoolean(System.getProperty(key)));
           configData.prRuntimeParms.put(prId, prparm);          
+        } else if(key.startsWith(prefix+"prcond.")) {
+          ctlAndPr = getCtrlPrParm(key,prefix+"prcond.",sep,false);
+          String prId = ctlAndPr.s1 + "\t" + ctlAndPr.s2;
+          Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
+          if (prparm == null) {
+            prparm = new HashMap<>();
+          }
+          prparm.put("$$RUNCOND$$", RunCondition.compile(System.getProperty(key)));
+          configData.prRuntimeParms.put(prId, prparm);          
         } else if(key.startsWith(prefix+"docfeature.")) {
           String fname = key.substring((prefix+"docfeature.").length());
           configData.docFeaturesOverridable.put(fname, true);
           configData.docFeatures.put(fname, System.getProperty(key));          
+          configData.docFeaturesChanged();
         } else if(key.startsWith(prefix+"udocfeature.")) {
           String fname = key.substring((prefix+"docfeature.").length());
           configData.docFeaturesOverridable.put(fname, false);
           configData.docFeatures.put(fname, System.getProperty(key));          
+          configData.docFeaturesChanged();
+        } else if(key.equals(prefix+"shard.index")) {
+          configData.shardIndex = Integer.parseInt(System.getProperty(key));
+        } else if(key.equals(prefix+"shard.count")) {
+          configData.shardCount = Integer.parseInt(System.getProperty(key));
+        } else if(key.equals(prefix+"shard.mode")) {
+          configData.shardMode = System.getProperty(key);
         } else {
           throw new GateRuntimeException("Odd property with the modular pipelines prefix encountered: "+key);
         }
@@ -307,9 +476,75 @@ public class Utils {
   }
   
   
+  /**
+   * Resolve the pattern settings of the config for the PRs of a controller.
+   * 
+   * This returns a config where the runtime settings of all pattern settings
+   * which match the controller and one of its PRs have been added to the
+   * settings for the exact names, so that setControllerParms does not need
+   * to know about patterns. The given config is not modified. If there 
+   * are no pattern settings, the config itself is returned.
+   * 
+   * @param cntrlr the controller
+   * @param config the config
+   * @return the config to use for the controller
+   */
+  protected static Config resolvePatterns(Controller cntrlr, Config config) {
+    if (config.prRuntimePatterns == null || config.prRuntimePatterns.isEmpty()) {
+      return config;
+    }
+    Config resolved = config.copy();
+    resolved.prRuntimeParms = new HashMap<>(config.prRuntimeParms);
+    String cName = cntrlr.getName();
+    for (ProcessingResource pr : (Collection<ProcessingResource>) cntrlr.getPRs()) {
+      String prId = cName + "\t" + pr.getName();
+      List<Map<String,Object>> matches = config.prRuntimePatterns.match(prId);
+      if (matches.isEmpty()) {
+        continue;
+      }
+      Map<String,Object> merged = new HashMap<>();
+      for (Map<String,Object> prparm : matches) {
+        merged.putAll(prparm);
+      }
+      Map<String,Object> exact = config.prRuntimeParms.get(prId);
+      if (exact != null) {
+        merged.putAll(exact);
+      }
+      resolved.prRuntimeParms.put(prId, merged);
+    }
+    return resolved;
+  }
+  
   // NOTE: this method should be thread-safe!!!
   protected static void setControllerParms(Controller cntrlr, Config config) {
+    setControllerParms(cntrlr, config, null);
+  }
+  
+  /**
+   * Set the runtime parameters and run modes of the PRs of a controller from
+   * the config, but only those which changed since the last time.
+   * 
+   * The applied parameter is a snapshot of the runtime parameter settings 
+   * which were applied to the controller the last time, as created by
+   * snapshotRuntimeParms. Only settings which are missing from that snapshot,
+   * have a different value there or were changed on the PR since then 
+   * are actually set on the PR. If applied is
+   * null, all settings are applied. 
+   * Settings which are in the snapshot but not in the config any more are
+   * reported but the PR parameter is not changed, since we do not know 
+   * the value it had before the config got applied. Run conditions and 
+   * read/write declarations which are not in the config any more get removed.
+   * 
+   * @param cntrlr the controller whose PRs should get parametrized
+   * @param config the config to use
+   * @param applied the previously applied settings or null
+   * @return a list of descriptions of all the changes, empty if nothing was changed
+   */
+  // NOTE: this method should be thread-safe!!!
+  protected static List<String> setControllerParms(Controller cntrlr, Config config, 
+          Map<String,Map<String,Object>> applied) {
     LOGGER.debug("Setting controller parms for " + cntrlr.getName());
+    List<String> changes = new ArrayList<>();
     // we store both the actual runtime parameters and the run modes in 
     // config.prRuntimeParms so this is != null if either or both are set
     // in the config.
@@ -344,8 +579,14 @@ public class Utils {
           }
           ProcessingResource pr = prs.get(id);
           Map<String, Object> prparm = config.prRuntimeParms.get(prId);
+          Map<String, Object> oldparm = applied == null ? null : applied.get(prId);
           for (String parmName : prparm.keySet()) {
             Object parmValue = prparm.get(parmName);
+            if (oldparm != null && oldparm.containsKey(parmName) && 
+                Objects.equals(oldparm.get(parmName), parmValue) &&
+                isCurrentValue(pr, parmName, parmValue)) {
+              continue;
+            }
             LOGGER.debug("Debug: trying to process PR setting " + parmValue + " for parm " + parmName + " in PR " + prId + " of " + cName);
             if (parmName.equals("$$RUNFLAG$$")) {
               LOGGER.debug("Trying to set a runflag");
@@ -355,22 +596,552 @@ public class Utils {
                 AnalyserRunningStrategy str = (AnalyserRunningStrategy) strategies.get(id);
                 LOGGER.debug("Setting the run mode: " + flag);
                 str.setRunMode(flag ? AnalyserRunningStrategy.RUN_ALWAYS : AnalyserRunningStrategy.RUN_NEVER);
+                changes.add(prId.replace('\t', '/') + " run=" + flag);
+              }
+            } else if (parmName.equals("$$RUNCOND$$")) {
+              if (cntrlr instanceof ParametrizedCorpusController) {
+                LOGGER.debug("Setting the run condition: " + parmValue);
+                ((ParametrizedCorpusController) cntrlr).setRunCondition(id, (RunCondition) parmValue);
+                changes.add(prId.replace('\t', '/') + " runif=" + parmValue);
+              } else {
+                LOGGER.warn("Run condition for " + prId + " ignored, not a Parametrized Corpus Controller");
+              }
+            } else if (parmName.equals("$$PRIO$$")) {
+              if (cntrlr instanceof ParametrizedCorpusController) {
+                ((ParametrizedCorpusController) cntrlr).setPrIo(id, (PrIo) parmValue);
+                changes.add(prId.replace('\t', '/') + " io=" + parmValue);
+              } else {
+                LOGGER.warn("Read/write declaration for " + prId + " ignored, not a Parametrized Corpus Controller");
               }
             } else {
               try {
                 pr.setParameterValue(parmName, parmValue);
               } catch (ResourceInstantiationException ex) {
+                if (setPrimitiveParm(pr, parmName, parmValue)) {
+                  changes.add(prId.replace('\t', '/') + " " + parmName + "=" + parmValue);
+                  continue;
+                }
                 throw new GateRuntimeException("Could not set parameter " + parmName + " for PR id " + prId + " to value " + parmValue,ex);
               }
+              changes.add(prId.replace('\t', '/') + " " + parmName + "=" + parmValue);
             }
           } // for parmName : prparm.keySet
         } // if controller names match
       }
+      // report what has been removed from the config since the last time
+      if (applied != null) {
+        for (String prId : applied.keySet()) {
+          if (!prId.split("\t")[0].equals(cName)) {
+            continue;
+          }
+          Map<String, Object> prparm = config.prRuntimeParms.get(prId);
+          for (String parmName : applied.get(prId).keySet()) {
+            if (prparm == null || !prparm.containsKey(parmName)) {
+              Integer id = prNums.get(prId);
+              // run conditions and read/write declarations only exist because
+              // of the config, so removing them from the config removes them
+              if (id != null && cntrlr instanceof ParametrizedCorpusController &&
+                  parmName.equals("$$RUNCOND$$")) {
+                ((ParametrizedCorpusController) cntrlr).setRunCondition(id, null);
+                changes.add(prId.replace('\t', '/') + " runif removed");
+              } else if (id != null && cntrlr instanceof ParametrizedCorpusController &&
+                  parmName.equals("$$PRIO$$")) {
+                ((ParametrizedCorpusController) cntrlr).setPrIo(id, null);
+                changes.add(prId.replace('\t', '/') + " io removed");
+              } else {
+                changes.add(prId.replace('\t', '/') + " " + parmName + " removed from config, left unchanged");
+              }
+            }
+          }
+        }
+      }
     } else {
       LOGGER.debug("prRuntimeParms is null!");
     }
+    return changes;
   } // method setControllerParms
   
+  /**
+   * Run the warm-up of the duplicates created for worker threads, each in 
+   * its own thread.
+   * 
+   * Controllers which are not Parametrized Corpus Controllers are left 
+   * alone. If the warm-up of any duplicate fails, all the duplicates get
+   * deleted.
+   * 
+   * @param duplicates the duplicates
+   * @throws ResourceInstantiationException if the warm-up of a duplicate 
+   * failed
+   */
+  protected static void warmUpDuplicates(List<? extends Controller> duplicates) 
+          throws ResourceInstantiationException {
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (Controller duplicate : duplicates) {
+      if (duplicate instanceof ParametrizedCorpusController) {
+        Thread thread = new Thread(() -> {
+          try {
+            ((ParametrizedCorpusController) duplicate).warmUp();
+          } catch (RuntimeException | Error ex) {
+            error.compareAndSet(null, ex);
+          }
+        }, "modularpipelines-warmup-" + threads.size());
+        thread.start();
+        threads.add(thread);
+      }
+    }
+    boolean interrupted = false;
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        try {
+          thread.join();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    Throwable ex = error.get();
+    if (ex != null) {
+      for (Controller duplicate : duplicates) {
+        Factory.deleteResource(duplicate);
+      }
+      if (ex instanceof Error) {
+        throw (Error) ex;
+      }
+      throw new ResourceInstantiationException("Warm-up of a duplicate failed", (Exception) ex);
+    }
+  }
+  
+  // Check if a runtime parameter of the PR still has the value which got
+  // applied from the config, it may have been changed on the PR since then.
+  // The run flag, run condition and read/write declaration only get changed
+  // through the config, so they are always current.
+  protected static boolean isCurrentValue(ProcessingResource pr, String parmName, Object value) {
+    if (parmName.startsWith("$$")) {
+      return true;
+    }
+    try {
+      return Objects.equals(pr.getParameterValue(parmName), value);
+    } catch (ResourceInstantiationException ex) {
+      return false;
+    }
+  }
+  
+  /**
+   * Convert the runtime parameter values in the config for the PRs of the 
+   * controller to the types declared for these parameters.
+   * 
+   * Values read from a properties file are always strings and values
+   * read from a YAML file are whatever the YAML parser created, so without 
+   * this, GATE would have to convert the value every time the parameter
+   * gets set. This uses the CREOLE metadata of each PR to convert the 
+   * value once, so a value which cannot be converted causes an error when 
+   * the config gets bound to the controller and not when the controller is 
+   * run. The given config is not modified since it may be shared by the 
+   * duplicates of the controller, the converted values go into a copy.
+   * Collection values, e.g. YAML lists, are converted element by element,
+   * values for parameters of a primitive type to the wrapper type.
+   * 
+   * @param cntrlr the controller the config gets bound to
+   * @param config the config
+   * @return the config with converted values, the config itself if nothing
+   * needed to be converted
+   */
+  protected static Config coerceRuntimeParms(Controller cntrlr, Config config) {
+    if (config.prRuntimeParms == null) {
+      return config;
+    }
+    Config coerced = null;
+    String cName = cntrlr.getName();
+    for (ProcessingResource pr : (List<ProcessingResource>) cntrlr.getPRs()) {
+      String prId = cName + "\t" + pr.getName();
+      Map<String, Object> prparm = config.prRuntimeParms.get(prId);
+      if (prparm == null) {
+        continue;
+      }
+      // a copy of prparm, created when the first value gets converted
+      Map<String, Object> convertedParms = null;
+      ResourceData rd = Gate.getCreoleRegister().get(pr.getClass().getName());
+      if (rd == null) {
+        LOGGER.debug("No CREOLE metadata, not converting parameters for PR " + prId);
+        continue;
+      }
+      PropertyDescriptor[] props;
+      try {
+        props = AbstractResource.getBeanInfo(pr.getClass()).getPropertyDescriptors();
+      } catch (IntrospectionException ex) {
+        throw new GateRuntimeException("Could not get the properties for PR " + prId, ex);
+      }
+      for (Entry<String, Object> entry : prparm.entrySet()) {
+        String parmName = entry.getKey();
+        Object value = entry.getValue();
+        // the run mode and other settings we store as fake parameters
+        if (parmName.startsWith("$$") || value == null) {
+          continue;
+        }
+        Parameter parm = null;
+        for (List<Parameter> disjunction : rd.getParameterList().getRuntimeParameters()) {
+          for (Parameter p : disjunction) {
+            if (p.getName().equals(parmName)) {
+              parm = p;
+            }
+          }
+        }
+        Class<?> type = null;
+        Method setter = null;
+        for (PropertyDescriptor prop : props) {
+          if (prop.getName().equals(parmName)) {
+            type = prop.getPropertyType();
+            setter = prop.getWriteMethod();
+          }
+        }
+        if (parm == null || type == null) {
+          LOGGER.warn("Config setting for " + parmName + " in PR " + prId + 
+                  ": not a runtime parameter of " + pr.getClass().getName());
+          continue;
+        }
+        boolean isPrimitive = type.isPrimitive();
+        if (isPrimitive) {
+          // the setter gets the unboxed value of the wrapper
+          type = wrapperType(type);
+        }
+        boolean isCollection = value instanceof Collection && Collection.class.isAssignableFrom(type);
+        if (type.isInstance(value) && !isCollection) {
+          continue;
+        }
+        Object converted;
+        try {
+          if (isPrimitive) {
+            converted = convertPrimitive(value, type);
+          } else if (value instanceof Map && type.isAssignableFrom(FeatureMap.class)) {
+            FeatureMap fm = Factory.newFeatureMap();
+            fm.putAll((Map<?, ?>) value);
+            converted = fm;
+          } else if (isCollection) {
+            converted = convertCollection((Collection<?>) value, type, parm, setter);
+            if (type.isInstance(value) && converted.equals(value)) {
+              // the elements already have the right type
+              continue;
+            }
+          } else {
+            converted = parm.calculateValueFromString(value.toString());
+          }
+        } catch (ParameterException ex) {
+          throw new GateRuntimeException("Cannot convert value " + value + " for parameter " + 
+                  parmName + " of PR " + prId + " to " + type.getName(), ex);
+        }
+        if (converted != null && !type.isInstance(converted)) {
+          throw new GateRuntimeException("Cannot convert value " + value + " for parameter " + 
+                  parmName + " of PR " + prId + " to " + type.getName() + ", got " + 
+                  converted.getClass().getName());
+        }
+        LOGGER.debug("Converted value for parameter " + parmName + " of PR " + prId + " to " + type.getName());
+        if (convertedParms == null) {
+          convertedParms = new HashMap<>(prparm);
+        }
+        convertedParms.put(parmName, converted);
+      }
+      if (convertedParms != null) {
+        if (coerced == null) {
+          coerced = config.copy();
+          coerced.prRuntimeParms = new HashMap<>(config.prRuntimeParms);
+        }
+        coerced.prRuntimeParms.put(prId, convertedParms);
+      }
+    }
+    return coerced == null ? config : coerced;
+  }
+  
+  // GATE cannot convert a value to a primitive type when setting a 
+  // parameter, so for these we call the setter with the converted wrapper
+  // value, see coerceRuntimeParms
+  private static boolean setPrimitiveParm(ProcessingResource pr, String parmName, Object value) {
+    try {
+      for (PropertyDescriptor prop : AbstractResource.getBeanInfo(pr.getClass()).getPropertyDescriptors()) {
+        if (prop.getName().equals(parmName) && prop.getPropertyType() != null && 
+            prop.getPropertyType().isPrimitive() && prop.getWriteMethod() != null &&
+            wrapperType(prop.getPropertyType()).isInstance(value)) {
+          prop.getWriteMethod().invoke(pr, value);
+          return true;
+        }
+      }
+    } catch (IntrospectionException | ReflectiveOperationException ex) {
+      LOGGER.debug("Could not set primitive parameter " + parmName, ex);
+    }
+    return false;
+  }
+  
+  private static Class<?> wrapperType(Class<?> type) {
+    if (type == int.class) {
+      return Integer.class;
+    } else if (type == long.class) {
+      return Long.class;
+    } else if (type == boolean.class) {
+      return Boolean.class;
+    } else if (type == double.class) {
+      return Double.class;
+    } else if (type == float.class) {
+      return Float.class;
+    } else if (type == short.class) {
+      return Short.class;
+    } else if (type == byte.class) {
+      return Byte.class;
+    } else if (type == char.class) {
+      return Character.class;
+    } else {
+      return type;
+    }
+  }
+  
+  /**
+   * Convert a value to the wrapper type of a primitive parameter. The 
+   * CREOLE metadata cannot do this since there is no class for the 
+   * type name of a primitive.
+   */
+  private static Object convertPrimitive(Object value, Class<?> wrapper) throws ParameterException {
+    String str = value.toString().trim();
+    if (wrapper == Character.class) {
+      if (str.length() != 1) {
+        throw new ParameterException("Not a single character: " + value);
+      }
+      return str.charAt(0);
+    }
+    if (wrapper == Boolean.class) {
+      if (!str.equalsIgnoreCase("true") && !str.equalsIgnoreCase("false")) {
+        throw new ParameterException("Not a boolean: " + value);
+      }
+      return Boolean.valueOf(str);
+    }
+    try {
+      return wrapper.getConstructor(String.class).newInstance(str);
+    } catch (InvocationTargetException ex) {
+      throw new ParameterException("Cannot convert " + value + " to " + wrapper.getName() + ": " + ex.getCause());
+    } catch (ReflectiveOperationException ex) {
+      throw new ParameterException("Cannot convert " + value + " to " + wrapper.getName() + ": " + ex);
+    }
+  }
+  
+  /**
+   * Convert a collection, e.g. a list from a YAML file, to the collection
+   * type of a parameter, converting each element to the item class of the
+   * parameter if necessary. If the CREOLE metadata does not give the item
+   * class, the type argument of the setter parameter is used.
+   */
+  @SuppressWarnings("unchecked")
+  private static Collection<Object> convertCollection(Collection<?> value, Class<?> type, 
+          Parameter parm, Method setter) throws ParameterException {
+    Collection<Object> ret;
+    try {
+      if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+        ret = (Collection<Object>) type.getDeclaredConstructor().newInstance();
+      } else if (type.isAssignableFrom(ArrayList.class)) {
+        ret = new ArrayList<>();
+      } else if (type.isAssignableFrom(HashSet.class)) {
+        ret = new HashSet<>();
+      } else if (type.isAssignableFrom(TreeSet.class)) {
+        ret = new TreeSet<>();
+      } else {
+        throw new ParameterException("No known collection implementation for " + type.getName());
+      }
+      Class<?> itemClass = null;
+      if (parm.getItemClassName() != null) {
+        itemClass = Class.forName(parm.getItemClassName(), true, Gate.getClassLoader());
+      } else if (setter != null && setter.getGenericParameterTypes()[0] instanceof ParameterizedType) {
+        Type arg = ((ParameterizedType) setter.getGenericParameterTypes()[0]).getActualTypeArguments()[0];
+        if (arg instanceof Class) {
+          itemClass = (Class<?>) arg;
+        }
+      }
+      for (Object item : value) {
+        if (item == null || itemClass == null || itemClass.isInstance(item)) {
+          ret.add(item);
+        } else {
+          ret.add(itemClass.getConstructor(String.class).newInstance(item.toString()));
+        }
+      }
+    } catch (ReflectiveOperationException ex) {
+      throw new ParameterException("Cannot convert " + value + " to " + type.getName() + ": " + ex);
+    }
+    return ret;
+  }
+  
+  /**
+   * Create a copy of the runtime parameter settings of the config.
+   * 
+   * This is what gets passed as the previously applied settings to 
+   * setControllerParms in order to only apply settings which changed.
+   * 
+   * @param config
+   * @return a copy of the runtime parameter settings, never null
+   */
+  protected static Map<String,Map<String,Object>> snapshotRuntimeParms(Config config) {
+    Map<String,Map<String,Object>> snapshot = new HashMap<>();
+    if (config.prRuntimeParms != null) {
+      for (Entry<String,Map<String,Object>> entry : config.prRuntimeParms.entrySet()) {
+        snapshot.put(entry.getKey(), new HashMap<>(entry.getValue()));
+      }
+    }
+    return snapshot;
+  }
+  
+  /**
+   * Create a new SHA-256 message digest.
+   * 
+   * @return the digest
+   */
+  protected static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new GateRuntimeException("SHA-256 not available", ex);
+    }
+  }
+  
+  /**
+   * Update a digest with a string, followed by a separator so that 
+   * different sequences of strings do not end up with the same digest.
+   * 
+   * @param digest the digest to update
+   * @param value the string, may be null
+   */
+  protected static void updateDigest(MessageDigest digest, String value) {
+    if (value != null) {
+      digest.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update((byte) 0);
+  }
+  
+  /**
+   * Convert the bytes of a digest to a hex string.
+   * 
+   * @param bytes the digest bytes
+   * @return the hex string
+   */
+  protected static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Check if an exception was caused by interrupting the PR or controller,
+   * e.g. because it exceeded its time budget.
+   * 
+   * @param ex the exception
+   * @return true if the exception or one of its causes is an 
+   * ExecutionInterruptedException or InterruptedException
+   */
+  protected static boolean isInterruption(Throwable ex) {
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      if (t instanceof ExecutionInterruptedException || t instanceof InterruptedException) {
+        return true;
+      }
+      if (t.getCause() == t) {
+        break;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Calculate the hash of the content at some URL, e.g. a pipeline or 
+   * config file. 
+   * 
+   * @param url the URL, may be null
+   * @return the hex SHA-256 hash of the content or "" if the URL is null 
+   */
+  protected static String hashUrlContent(URL url) {
+    if (url == null) {
+      return "";
+    }
+    MessageDigest digest = newDigest();
+    try (InputStream is = url.openStream()) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = is.read(buffer)) > 0) {
+        digest.update(buffer, 0, n);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read " + url + " for calculating the hash", ex);
+    }
+    return toHex(digest.digest());
+  }
+  
+  /**
+   * Calculate a fingerprint of the settings in a config. 
+   * 
+   * The fingerprint is independent of the order of the settings and of 
+   * where they came from: two configs with the same effective settings 
+   * have the same fingerprint.
+   * 
+   * @param config the config, may be null
+   * @return the hex SHA-256 fingerprint
+   */
+  protected static String configFingerprint(Config config) {
+    MessageDigest digest = newDigest();
+    if (config != null) {
+      updateDigest(digest, "docFeatures");
+      if (config.docFeatures != null) {
+        Map<String,Object> sorted = new TreeMap<>();
+        for (Object key : config.docFeatures.keySet()) {
+          sorted.put(String.valueOf(key), key);
+        }
+        for (Object key : sorted.values()) {
+          updateDigest(digest, String.valueOf(key));
+          updateDigest(digest, String.valueOf(config.docFeatures.get(key)));
+          updateDigest(digest, String.valueOf(config.docFeaturesOverridable.get(key)));
+        }
+      }
+      updateDigest(digest, "runtimeParms");
+      updateParmsDigest(digest, config.prRuntimeParms);
+      updateDigest(digest, "initParms");
+      updateParmsDigest(digest, config.prInitParms);
+      updateDigest(digest, "runtimePatterns");
+      updatePatternsDigest(digest, config.prRuntimePatterns);
+      updateDigest(digest, "initPatterns");
+      updatePatternsDigest(digest, config.prInitPatterns);
+      updateDigest(digest, "deletions");
+      if (config.deletions != null) {
+        for (Map.Entry<String,Deletion> entry : config.deletions.entries()) {
+          updateDigest(digest, entry.getKey());
+          updateDigest(digest, entry.getValue().toString());
+        }
+      }
+    }
+    return toHex(digest.digest());
+  }
+  
+  private static void updatePatternsDigest(MessageDigest digest, NameMatcher<Map<String,Object>> patterns) {
+    if (patterns == null) {
+      return;
+    }
+    // here the order matters, since later settings override earlier ones
+    for (Map.Entry<String,Map<String,Object>> entry : patterns.entries()) {
+      updateDigest(digest, entry.getKey());
+      updateDigest(digest, new TreeMap<>(entry.getValue()).toString());
+    }
+  }
+  
+  private static void updateParmsDigest(MessageDigest digest, Map<String,Map<String,Object>> parms) {
+    if (parms == null) {
+      return;
+    }
+    for (String prId : new TreeSet<>(parms.keySet())) {
+      updateDigest(digest, prId);
+      Map<String,Object> prparm = parms.get(prId);
+      for (String name : new TreeSet<>(prparm.keySet())) {
+        updateDigest(digest, name);
+        updateDigest(digest, String.valueOf(prparm.get(name)));
+      }
+    }
+  }
+  
   /**
    * Set values in the feature map based on the document feature settings of
    * the config.
@@ -379,34 +1150,113 @@ public class Utils {
    * @param config 
    */
   protected static void setDocumentFeatures(FeatureMap theFeatures, Config config) {
-    if(config.docFeatures != null) {
-      for(Object keyObj : config.docFeatures.keySet()) {
-        String key = (String)keyObj;
-        // only set it unless we have a flag not to override an existing value
-        // and there is an existing value
-        if(theFeatures.get(key) != null) {
-          // there is a value, make sure we do not have a flag that 
-          // prevents overriding the value
-          // If we do not have any information or if the info is set to true,
-          // override, otherwise (we do have information and it is false) 
-          // do not override.
-          if(config.docFeaturesOverridable == null ||
-             config.docFeaturesOverridable.get(keyObj) == null ||
-             ((Boolean)config.docFeaturesOverridable.get(keyObj))
-            ) {
-            //System.out.println("Setting document feature, there was a value already: "+key+" to "+config.docFeatures.get(keyObj));
-            //System.out.println("overridable was "+config.docFeaturesOverridable);
-            theFeatures.put(key,config.docFeatures.get(keyObj));
-          } else {
-            //System.out.println("NOT setting document feature, there was a value already: "+key+" to "+config.docFeatures.get(keyObj));
+    config.setDocumentFeatures(theFeatures);
+  }
+
+  
+  /**
+   * Check if the controller invokes the callbacks itself when executed, 
+   * GATE has no getter for this.
+   */
+  private static boolean callbacksEnabled(AbstractController controller) {
+    try {
+      Field field = AbstractController.class.getDeclaredField("controllerCallbacksEnabled");
+      field.setAccessible(true);
+      return field.getBoolean(controller);
+    } catch(ReflectiveOperationException | RuntimeException ex) {
+      // the default
+      return true;
+    }
+  }
+  
+  /**
+   * Run the controller over a stream of documents without a corpus holding
+   * all of them.
+   * 
+   * The controller callbacks are invoked once for the whole stream, each
+   * document is then processed the same way as when the controller is run
+   * as a sub pipeline. After a document has been processed and handed to 
+   * the processed or failed consumer it gets deleted. If the controller does
+   * not have a corpus, a temporary empty corpus is used while the stream is 
+   * processed.
+   * 
+   * @param controller the controller to run
+   * @param documents the documents to process, fetched one at a time
+   * @param processed gets each successfully processed document, may be null
+   * @param failed gets each document for which processing failed together 
+   * with the exception, if null, the first failure aborts the stream
+   * @throws ExecutionException if a document fails and there is no failed
+   * consumer or the controller callbacks fail
+   */
+  protected static <C extends AbstractController & LanguageAnalyser> void executeStream(C controller, 
+          Iterator<Document> documents, Consumer<Document> processed, 
+          BiConsumer<Document,Exception> failed) throws ExecutionException {
+    executeStream(controller, documents, processed, failed, true);
+  }
+  
+  /**
+   * Run the controller over a stream of documents, optionally keeping the 
+   * documents after processing.
+   * 
+   * @param controller the controller to run
+   * @param documents the documents to process, fetched one at a time
+   * @param processed gets each successfully processed document, may be null
+   * @param failed gets each document for which processing failed, if null, 
+   * the first failure aborts the stream
+   * @param deleteDocuments if false, the documents are left for the caller
+   * @throws ExecutionException if a document fails and there is no failed
+   * consumer or the controller callbacks fail
+   */
+  protected static <C extends AbstractController & LanguageAnalyser> void executeStream(C controller, 
+          Iterator<Document> documents, Consumer<Document> processed, 
+          BiConsumer<Document,Exception> failed, boolean deleteDocuments) throws ExecutionException {
+    Corpus tmpCorpus = null;
+    if(controller.getCorpus() == null) {
+      try {
+        tmpCorpus = Factory.newCorpus(controller.getName()+" stream");
+      } catch(ResourceInstantiationException ex) {
+        throw new ExecutionException("Could not create a corpus for the document stream", ex);
+      }
+      controller.setCorpus(tmpCorpus);
+    }
+    // execute() must not invoke the callbacks again for each document
+    boolean callbacks = callbacksEnabled(controller);
+    controller.setControllerCallbacksEnabled(false);
+    try {
+      controller.invokeControllerExecutionStarted();
+      try {
+        while(documents.hasNext()) {
+          Document doc = documents.next();
+          try {
+            controller.setDocument(doc);
+            controller.execute();
+            if(processed != null) {
+              processed.accept(doc);
+            }
+          } catch(ExecutionException | RuntimeException ex) {
+            if(failed == null) {
+              throw ex;
+            }
+            failed.accept(doc, ex);
+          } finally {
+            controller.setDocument(null);
+            if(deleteDocuments) {
+              Factory.deleteResource(doc);
+            }
           }
-        } else {
-          // there is no value yet, we can set it
-          //System.out.println("Setting document feature, there was no value yet: "+key+" to "+config.docFeatures.get(keyObj));
-          theFeatures.put(key,config.docFeatures.get(keyObj));
         }
+      } catch(ExecutionException | RuntimeException ex) {
+        controller.invokeControllerExecutionAborted(ex);
+        throw ex;
+      }
+      controller.invokeControllerExecutionFinished();
+    } finally {
+      controller.setControllerCallbacksEnabled(callbacks);
+      if(tmpCorpus != null) {
+        controller.setCorpus(null);
+        Factory.deleteResource(tmpCorpus);
       }
     }
   }
-  
+
 }
@@ -0,0 +1,205 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import at.ofai.gate.modularpipelines.Pipeline;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.ConditionalSerialAnalyserController;
+import gate.test.GATEPluginTests;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Make sure that running a document through a Parametrized Corpus 
+ * Controller does not allocate more than running it through the plain
+ * GATE controller it is based on.
+ */
+public class AllocationTest extends GATEPluginTests {
+  
+  private static final int WARMUP = 10000;
+  private static final int DOCS = 20000;
+  private static final int MAX_ROUNDS = 10;
+  // allowed extra bytes per document, to tolerate measurement noise
+  private static final long TOLERANCE = 64;
+  // GATE allocates much more per document for the nested controllers and
+  // the callbacks, so there is more noise
+  private static final long NESTED_TOLERANCE = 256;
+  
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+  
+  @Test
+  public void testPerDocumentAllocation() throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    TestPRs.register();
+    
+    System.setProperty("modularpipelines.docfeature.lang", "en");
+    ConditionalSerialAnalyserController pcc;
+    try {
+      pcc = (ConditionalSerialAnalyserController)Factory.createResource(
+              ParametrizedCorpusController.class.getName(), Factory.newFeatureMap(), null, "ctl1");
+    } finally {
+      System.clearProperty("modularpipelines.docfeature.lang");
+    }
+    ConditionalSerialAnalyserController plain = (ConditionalSerialAnalyserController)
+            Factory.createResource(ConditionalSerialAnalyserController.class.getName(), 
+                    Factory.newFeatureMap(), null, "ctl2");
+    Corpus corpus = Factory.newCorpus("allocation");
+    Document doc = Factory.newDocument("Some text");
+    corpus.add(doc);
+    // GATE creates benchmark ids from the resource names, so use names of 
+    // the same length for both controllers
+    for(ConditionalSerialAnalyserController c : new ConditionalSerialAnalyserController[]{pcc, plain}) {
+      c.add((ProcessingResource)Factory.createResource(TestPRs.NoopPR.class.getName(), Factory.newFeatureMap(), null, "pr1"));
+      c.add((ProcessingResource)Factory.createResource(TestPRs.NoopPR.class.getName(), Factory.newFeatureMap(), null, "pr2"));
+      c.setCorpus(corpus);
+      c.setDocument(doc);
+    }
+    
+    long[] bytes = measure(threadBean, pcc, plain);
+    long pccBytes = bytes[0];
+    long plainBytes = bytes[1];
+    assertEquals("en", doc.getFeatures().get("lang"));
+    assertTrue("Parametrized controller allocates "+pccBytes+
+            " bytes per document, plain controller "+plainBytes,
+            pccBytes <= plainBytes + TOLERANCE);
+    
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(plain);
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(doc);
+  }
+  
+  /**
+   * The same for a Parametrized Corpus Controller with a config file which
+   * is loaded by a Pipeline PR, like the sub-pipelines in the test directory.
+   * The pipelines there need plugins which may not be available, so the
+   * same nesting is created from the test PRs.
+   */
+  @Test
+  public void testNestedPipelineAllocation() throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    TestPRs.register();
+    
+    File config = tmp.newFile("configSub.yaml");
+    Files.write(config.toPath(), ("- set: docfeature\n  name: lang\n  value: en\n" +
+            "- set: prrun\n  controller: sub1\n  prname: pr2\n  value: true\n").getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController sub = (ParametrizedCorpusController)Factory.createResource(
+            ParametrizedCorpusController.class.getName(), parms, null, "sub1");
+    ConditionalSerialAnalyserController plainSub = (ConditionalSerialAnalyserController)
+            Factory.createResource(ConditionalSerialAnalyserController.class.getName(), 
+                    Factory.newFeatureMap(), null, "sub2");
+    for(ConditionalSerialAnalyserController c : new ConditionalSerialAnalyserController[]{sub, plainSub}) {
+      c.add((ProcessingResource)Factory.createResource(TestPRs.NoopPR.class.getName(), Factory.newFeatureMap(), null, "pr1"));
+      c.add((ProcessingResource)Factory.createResource(TestPRs.NoopPR.class.getName(), Factory.newFeatureMap(), null, "pr2"));
+    }
+    ConditionalSerialAnalyserController main = (ConditionalSerialAnalyserController)
+            Factory.createResource(ConditionalSerialAnalyserController.class.getName(), 
+                    Factory.newFeatureMap(), null, "ctl1");
+    ConditionalSerialAnalyserController plain = (ConditionalSerialAnalyserController)
+            Factory.createResource(ConditionalSerialAnalyserController.class.getName(), 
+                    Factory.newFeatureMap(), null, "ctl2");
+    main.add(loadedByPipeline(sub, "p1"));
+    plain.add(loadedByPipeline(plainSub, "p2"));
+    Corpus corpus = Factory.newCorpus("allocation");
+    Document doc = Factory.newDocument("Some text");
+    corpus.add(doc);
+    // run over the corpus, so the nested controllers get the controller 
+    // callbacks for every document
+    main.setCorpus(corpus);
+    plain.setCorpus(corpus);
+    
+    long[] bytes = measure(threadBean, main, plain);
+    assertEquals("en", doc.getFeatures().get("lang"));
+    assertTrue("Parametrized controller loaded by a Pipeline PR allocates "+bytes[0]+
+            " bytes per document, plain controller loaded by a Pipeline PR "+bytes[1],
+            bytes[0] <= bytes[1] + NESTED_TOLERANCE);
+    
+    Factory.deleteResource(main);
+    Factory.deleteResource(plain);
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(doc);
+  }
+  
+  /**
+   * Save the controller to a pipeline file, delete it and return a Pipeline
+   * PR which loads it from there.
+   */
+  private ProcessingResource loadedByPipeline(ConditionalSerialAnalyserController controller, String name) 
+          throws Exception {
+    File file = tmp.newFile(controller.getName()+".xgapp");
+    PersistenceManager.saveObjectToFile(controller, file);
+    Factory.deleteResource(controller);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", file.toURI().toURL());
+    return (ProcessingResource)Factory.createResource(Pipeline.class.getName(), parms, null, name);
+  }
+  
+  /**
+   * Measure both controllers in turn until the numbers are stable.
+   * 
+   * @return the bytes per document for the first and the second controller
+   */
+  private long[] measure(com.sun.management.ThreadMXBean threadBean,
+          ConditionalSerialAnalyserController first, ConditionalSerialAnalyserController second) 
+          throws Exception {
+    // the tests may run with debug logging, which of course allocates
+    Logger logger = Logger.getLogger("at.ofai.gate.modularpipelines");
+    Level level = logger.getLevel();
+    logger.setLevel(Level.INFO);
+    // The JIT keeps changing how much GATE itself allocates for a while, so 
+    // measure both controllers in turn until the numbers are stable
+    long[] bytes = new long[] { -1, -1 };
+    try {
+      for(int round = 0; round < MAX_ROUNDS; round++) {
+        long firstNow = bytesPerDocument(threadBean, first);
+        long secondNow = bytesPerDocument(threadBean, second);
+        boolean stable = firstNow == bytes[0] && secondNow == bytes[1];
+        bytes[0] = firstNow;
+        bytes[1] = secondNow;
+        if(stable) {
+          break;
+        }
+      }
+    } finally {
+      logger.setLevel(level);
+    }
+    return bytes;
+  }
+  
+  private long bytesPerDocument(com.sun.management.ThreadMXBean threadBean,
+          ConditionalSerialAnalyserController controller) throws Exception {
+    for(int i = 0; i < WARMUP; i++) {
+      controller.execute();
+    }
+    long tid = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(tid);
+    for(int i = 0; i < DOCS; i++) {
+      controller.execute();
+    }
+    return (threadBean.getThreadAllocatedBytes(tid) - before) / DOCS;
+  }
+}
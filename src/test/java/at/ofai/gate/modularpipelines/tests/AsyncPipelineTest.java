@@ -0,0 +1,107 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.AsyncPipeline;
+import at.ofai.gate.modularpipelines.AsyncPipelineJoin;
+import at.ofai.gate.modularpipelines.DocumentProjection;
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.SerialAnalyserController;
+import gate.test.GATEPluginTests;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+import org.apache.log4j.SimpleLayout;
+import org.apache.log4j.WriterAppender;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Running a pipeline in the background until it gets joined.
+ */
+public class AsyncPipelineTest extends GATEPluginTests {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static ProcessingResource mark(String name, String outputASName) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("outputASName", outputASName);
+    return (ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), parms, null, name);
+  }
+
+  // an async pipeline which marks the document in set "out" and feature "a"
+  private AsyncPipeline async() throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(),
+                    Factory.newFeatureMap(), null, "inner");
+    pcc.add(mark("a", "out"));
+    File file = new File(tmp.getRoot(), "inner.xgapp");
+    PersistenceManager.saveObjectToFile(pcc, file);
+    Factory.deleteResource(pcc);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", file.toURI().toURL());
+    AsyncPipeline async = (AsyncPipeline)Factory.createResource(AsyncPipeline.class.getName(), parms, null, "async");
+    async.setOutputAnnotationSets(Arrays.asList("out"));
+    async.setOutputFeatures(Arrays.asList("a"));
+    return async;
+  }
+
+  @Test
+  public void testConflict() throws Exception {
+    TestPRs.register();
+    SerialAnalyserController top = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    top.add(async());
+    // writes what the async pipeline writes before the join
+    top.add(mark("a", "out"));
+    top.add((ProcessingResource)Factory.createResource(AsyncPipelineJoin.class.getName()));
+    StringWriter log = new StringWriter();
+    WriterAppender appender = new WriterAppender(new SimpleLayout(), log);
+    Logger.getLogger(DocumentProjection.class).addAppender(appender);
+    Document doc = Factory.newDocument("Some text");
+    Corpus corpus = Factory.newCorpus("async test");
+    corpus.add(doc);
+    top.setCorpus(corpus);
+    try {
+      top.execute();
+    } finally {
+      Logger.getLogger(DocumentProjection.class).removeAppender(appender);
+      top.setCorpus(null);
+      Factory.deleteResource(corpus);
+    }
+    assertTrue(log.toString(), log.toString().contains("annotation set 'out'"));
+    assertTrue(log.toString(), log.toString().contains("feature 'a'"));
+    // the result of the async pipeline wins
+    assertEquals(1, doc.getFeatures().get("a"));
+    Factory.deleteResource(doc);
+    Factory.deleteResource(top);
+  }
+
+  @Test
+  public void testUnjoinedRunReleasesDocument() throws Exception {
+    TestPRs.register();
+    AsyncPipeline async = async();
+    Document doc = Factory.newDocument("Some text");
+    async.setDocument(doc);
+    async.execute();
+    async.setDocument(null);
+    WeakReference<Document> ref = new WeakReference<>(doc);
+    Factory.deleteResource(doc);
+    doc = null;
+    for(int i = 0; i < 50 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertNull("document of an unjoined run is still referenced", ref.get());
+    Factory.deleteResource(async);
+  }
+}
@@ -0,0 +1,90 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.BatchRunner;
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.test.GATEPluginTests;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Running a pipeline over the documents of a file with the BatchRunner.
+ */
+public class BatchRunnerTest extends GATEPluginTests {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File pipeline() throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(),
+                    Factory.newFeatureMap(), null, "batch");
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.CountingPR.class.getName(), 
+            Factory.newFeatureMap(), null, "c"));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("outputASName", "");
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), parms, null, "m"));
+    File file = new File(tmp.getRoot(), "batch.xgapp");
+    PersistenceManager.saveObjectToFile(pcc, file);
+    Factory.deleteResource(pcc);
+    return file;
+  }
+
+  private File lines(int n) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < n; i++) {
+      sb.append("Text of document ").append(i).append('\n');
+    }
+    File file = new File(tmp.getRoot(), "docs.txt");
+    Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static long outputs(File dir) throws Exception {
+    try (Stream<Path> files = Files.walk(dir.toPath())) {
+      return files.filter(p -> p.toString().endsWith(".xml")).count();
+    }
+  }
+
+  private BatchRunner runner(File out, int threads) throws Exception {
+    BatchRunner runner = new BatchRunner();
+    runner.parseArgs(new String[] { 
+      "-p", pipeline().getPath(), "-l", lines(40).getPath(), 
+      "-o", out.getPath(), "-t", String.valueOf(threads), "-r", "0" });
+    return runner;
+  }
+
+  @Test
+  public void testRun() throws Exception {
+    TestPRs.register();
+    File out = tmp.newFolder("out");
+    assertTrue(runner(out, 3).run());
+    assertEquals(40, outputs(out));
+  }
+
+  @Test
+  public void testAbortedWorker() throws Exception {
+    TestPRs.register();
+    File out = tmp.newFolder("out");
+    BatchRunner runner = runner(out, 2);
+    // one of the two workers aborts right away
+    TestPRs.CountingPR.failStarted.set(1);
+    try {
+      // the other one processes all the documents
+      assertTrue(runner.run());
+    } finally {
+      TestPRs.CountingPR.failStarted.set(0);
+    }
+    assertEquals(40, outputs(out));
+  }
+}
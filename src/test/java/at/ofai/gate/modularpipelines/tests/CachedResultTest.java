@@ -0,0 +1,61 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.CachedResult;
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.test.GATEPluginTests;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Capturing what a sub-pipeline did and replaying it on another document.
+ */
+public class CachedResultTest extends GATEPluginTests {
+  
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCaptureReplay() throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    List<String> tags = new ArrayList<>(Arrays.asList("a"));
+    doc.getFeatures().put("tags", tags);
+    doc.getFeatures().put("gone", "x");
+    CachedResult.Before before = CachedResult.snapshot(doc);
+    // what the sub-pipeline does: change a value in place, add an annotation
+    tags.add("b");
+    doc.getFeatures().remove("gone");
+    FeatureMap fm = Factory.newFeatureMap();
+    List<String> annTags = new ArrayList<>(Arrays.asList("x"));
+    fm.put("tags", annTags);
+    doc.getAnnotations("out").add(0L, 4L, "Token", fm);
+    CachedResult result = CachedResult.capture(doc, before);
+    assertEquals(1, result.getNrAnnotations());
+    // changing the original values after capturing must not change the result
+    tags.add("c");
+    annTags.add("y");
+    
+    Document other = Factory.newDocument("Some text");
+    other.getFeatures().put("tags", new ArrayList<>(Arrays.asList("a")));
+    other.getFeatures().put("gone", "x");
+    result.replay(other);
+    assertEquals(Arrays.asList("a", "b"), other.getFeatures().get("tags"));
+    assertFalse(other.getFeatures().containsKey("gone"));
+    Annotation ann = other.getAnnotations("out").get("Token").iterator().next();
+    assertEquals(Arrays.asList("x"), ann.getFeatures().get("tags"));
+    // changing the replayed values must not change the result either
+    ((List<String>)other.getFeatures().get("tags")).add("d");
+    ((List<String>)ann.getFeatures().get("tags")).add("z");
+    Document third = Factory.newDocument("Some text");
+    result.replay(third);
+    assertEquals(Arrays.asList("a", "b"), third.getFeatures().get("tags"));
+    ann = third.getAnnotations("out").get("Token").iterator().next();
+    assertEquals(Arrays.asList("x"), ann.getFeatures().get("tags"));
+    Factory.deleteResource(doc);
+    Factory.deleteResource(other);
+    Factory.deleteResource(third);
+  }
+}
@@ -0,0 +1,150 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import at.ofai.gate.modularpipelines.TimeoutPolicy;
+import gate.Annotation;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.ExecutionException;
+import gate.test.GATEPluginTests;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Running PRs with read/write declarations which do not conflict concurrently.
+ */
+public class ConcurrentGroupTest extends GATEPluginTests {
+  
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+  
+  private ParametrizedCorpusController controller(String config, ProcessingResource... prs) throws Exception {
+    File file = new File(tmp.getRoot(), "config.yaml");
+    Files.write(file.toPath(), config.getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", file.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    for(ProcessingResource pr : prs) {
+      pcc.add(pr);
+    }
+    return pcc;
+  }
+  
+  private static String prio(String prName, String writes) {
+    return "- set: prio\n  controller: ctrl\n  prname: "+prName+"\n  reads: []\n  writes: "+writes+"\n";
+  }
+  
+  private static ProcessingResource pr(Class<?> cls, String name, String parm, Object value) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put(parm, value);
+    return (ProcessingResource)Factory.createResource(cls.getName(), parms, null, name);
+  }
+  
+  private static void run(ParametrizedCorpusController pcc, Document doc) throws Exception {
+    Corpus corpus = Factory.newCorpus("concurrent test");
+    corpus.add(doc);
+    pcc.setCorpus(corpus);
+    try {
+      pcc.execute();
+    } finally {
+      pcc.setCorpus(null);
+      corpus.clear();
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  @Test
+  public void testAnnotationIdsKept() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            prio("m1", "[a, 'feature:m1', 'feature:m1Id']") + prio("m2", "[b, 'feature:m2', 'feature:m2Id']"),
+            pr(TestPRs.MarkPR.class, "m1", "outputASName", "a"),
+            pr(TestPRs.MarkPR.class, "m2", "outputASName", "b"));
+    Document doc = Factory.newDocument("Some text");
+    doc.getAnnotations().add(0L, 4L, "Existing", Factory.newFeatureMap());
+    run(pcc, doc);
+    // the ids stored in the features still refer to the annotations
+    Annotation m1 = doc.getAnnotations("a").get((Integer)doc.getFeatures().get("m1Id"));
+    Annotation m2 = doc.getAnnotations("b").get((Integer)doc.getFeatures().get("m2Id"));
+    assertNotNull(m1);
+    assertNotNull(m2);
+    assertEquals("m1", m1.getType());
+    assertEquals("m2", m2.getType());
+    // new annotations do not reuse the ids
+    Integer id = doc.getAnnotations().add(0L, 4L, "New", Factory.newFeatureMap());
+    assertTrue(id > m1.getId() && id > m2.getId());
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testTimeoutSkip() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            prio("s1", "[s1]") + prio("s2", "[s2]"),
+            pr(TestPRs.SleepPR.class, "s1", "millis", 2000),
+            pr(TestPRs.SleepPR.class, "s2", "millis", 2000),
+            pr(TestPRs.MarkPR.class, "m", "outputASName", ""));
+    pcc.setMaxMillisPerDocument(100L);
+    pcc.setTimeoutPolicy(TimeoutPolicy.SKIP);
+    Document doc = Factory.newDocument("Some text");
+    run(pcc, doc);
+    assertEquals("ctrl", doc.getFeatures().get(TimeoutPolicy.FEATURE_NAME));
+    // the PRs after the group got skipped
+    assertNull(doc.getFeatures().get("m"));
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testTimeoutSkipKeepsFailure() throws Exception {
+    TestPRs.register();
+    // a PR which fails on its own after the time budget is exceeded
+    ParametrizedCorpusController pcc = controller(
+            prio("s1", "[s1]") + prio("s2", "[s2]"),
+            pr(TestPRs.SleepPR.class, "s1", "millis", 10),
+            pr(TestPRs.SleepPR.class, "s2", "millis", 10),
+            failing("f", 300));
+    pcc.setMaxMillisPerDocument(100L);
+    pcc.setTimeoutPolicy(TimeoutPolicy.SKIP);
+    assertFails(pcc, "f failed");
+    Factory.deleteResource(pcc);
+    // the same when the failing PR is part of a concurrent group
+    pcc = controller(
+            prio("s1", "[s1]") + prio("f", "[f]"),
+            pr(TestPRs.SleepPR.class, "s1", "millis", 2000),
+            failing("f", 300));
+    pcc.setMaxMillisPerDocument(100L);
+    pcc.setTimeoutPolicy(TimeoutPolicy.SKIP);
+    assertFails(pcc, "f failed");
+    Factory.deleteResource(pcc);
+  }
+  
+  private static ProcessingResource failing(String name, int millis) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("millis", millis);
+    parms.put("fail", true);
+    return (ProcessingResource)Factory.createResource(TestPRs.SleepPR.class.getName(), parms, null, name);
+  }
+  
+  private static void assertFails(ParametrizedCorpusController pcc, String message) throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    try {
+      run(pcc, doc);
+      fail("Expected the failure of the PR");
+    } catch(ExecutionException ex) {
+      assertEquals(message, ex.getMessage());
+    } finally {
+      Factory.deleteResource(doc);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.test.GATEPluginTests;
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Applying the config of a controller to its PRs.
+ */
+public class ConfigReloadTest extends GATEPluginTests {
+  
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+  
+  private File config(String name, String content) throws Exception {
+    File file = new File(tmp.getRoot(), name);
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+  
+  private static void run(ParametrizedCorpusController pcc, Document doc) throws Exception {
+    Corpus corpus = Factory.newCorpus("reload test");
+    corpus.add(doc);
+    pcc.setCorpus(corpus);
+    pcc.execute();
+    pcc.setCorpus(null);
+    corpus.clear();
+    Factory.deleteResource(corpus);
+  }
+  
+  @Test
+  public void testRemovedRunCondition() throws Exception {
+    TestPRs.register();
+    File withCond = config("withcond.yaml", 
+            "- set: prcond\n  controller: ctrl\n  prname: counter\n  value: \"feature.run == 'yes'\"\n");
+    File without = config("without.yaml", "- set: docfeature\n  name: x\n  value: y\n");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", withCond.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    TestPRs.CountingPR pr = (TestPRs.CountingPR)Factory.createResource(
+            TestPRs.CountingPR.class.getName(), Factory.newFeatureMap(), null, "counter");
+    pcc.add((ProcessingResource)pr);
+    Document doc = Factory.newDocument("Some text");
+    run(pcc, doc);
+    assertEquals(0, pr.executed);
+    // once the condition is gone from the config, the PR runs again
+    pcc.setConfigFileUrl(without.toURI().toURL());
+    pcc.reInit();
+    run(pcc, doc);
+    assertEquals(1, pr.executed);
+    assertTrue(pcc.getLastAppliedChanges().toString(), 
+            pcc.getLastAppliedChanges().contains("ctrl/counter runif removed"));
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testCollectionParameters() throws Exception {
+    TestPRs.register();
+    File config = config("collections.yaml", 
+            "- set: prparm\n  controller: ctrl\n  prname: pr\n  name: names\n  value: [a, b]\n" +
+            "- set: prparm\n  controller: ctrl\n  prname: pr\n  name: numbers\n  value: ['1', '2']\n");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    TestPRs.CollectionParmsPR pr = (TestPRs.CollectionParmsPR)Factory.createResource(
+            TestPRs.CollectionParmsPR.class.getName(), Factory.newFeatureMap(), null, "pr");
+    pcc.add((ProcessingResource)pr);
+    Document doc = Factory.newDocument("Some text");
+    run(pcc, doc);
+    assertEquals(new HashSet<>(Arrays.asList("a", "b")), pr.getNames());
+    assertEquals(Arrays.asList(1, 2), pr.getNumbers());
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testPrimitiveParameter() throws Exception {
+    TestPRs.register();
+    File config = config("primitive.yaml", 
+            "- set: prparm\n  controller: ctrl\n  prname: pr\n  name: limit\n  value: '7'\n");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    TestPRs.PrimitiveParmsPR pr = (TestPRs.PrimitiveParmsPR)Factory.createResource(
+            TestPRs.PrimitiveParmsPR.class.getName(), Factory.newFeatureMap(), null, "pr");
+    pcc.add((ProcessingResource)pr);
+    Document doc = Factory.newDocument("Some text");
+    run(pcc, doc);
+    assertEquals(7, pr.getLimit());
+    // a value which is not a number fails when the config gets bound
+    File bad = config("bad.yaml", 
+            "- set: prparm\n  controller: ctrl\n  prname: pr\n  name: limit\n  value: many\n");
+    pcc.setConfigFileUrl(bad.toURI().toURL());
+    pcc.reInit();
+    try {
+      run(pcc, doc);
+      fail("Expected the conversion to fail");
+    } catch(GateRuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("Cannot convert value many for parameter limit"));
+    }
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testReapplyChangedParameter() throws Exception {
+    TestPRs.register();
+    File config = config("parm.yaml", 
+            "- set: prparm\n  controller: ctrl\n  prname: m\n  name: outputASName\n  value: out\n");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    ProcessingResource pr = (ProcessingResource)Factory.createResource(
+            TestPRs.MarkPR.class.getName(), Factory.newFeatureMap(), null, "m");
+    pcc.add(pr);
+    Document doc = Factory.newDocument("Some text");
+    run(pcc, doc);
+    assertEquals("out", pr.getParameterValue("outputASName"));
+    // a value changed on the PR gets replaced by the config on a reload
+    pr.setParameterValue("outputASName", "other");
+    pcc.reInit();
+    run(pcc, doc);
+    assertEquals("out", pr.getParameterValue("outputASName"));
+    assertTrue(pcc.getLastAppliedChanges().toString(), 
+            pcc.getLastAppliedChanges().contains("ctrl/m outputASName=out"));
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testConfigOverridesChangedParameter() throws Exception {
+    TestPRs.register();
+    File config = config("parm.yaml", 
+            "- set: prparm\n  controller: ctrl\n  prname: m\n  name: outputASName\n  value: out\n");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    ProcessingResource pr = (ProcessingResource)Factory.createResource(
+            TestPRs.MarkPR.class.getName(), Factory.newFeatureMap(), null, "m");
+    pcc.add(pr);
+    Document doc = Factory.newDocument("Some text");
+    run(pcc, doc);
+    assertEquals("out", pr.getParameterValue("outputASName"));
+    // nothing to set again as long as the PR keeps the value
+    run(pcc, doc);
+    assertTrue(pcc.getLastAppliedChanges().isEmpty());
+    // a value changed on the PR gets replaced by the config on the next run
+    pr.setParameterValue("outputASName", "other");
+    run(pcc, doc);
+    assertEquals("out", pr.getParameterValue("outputASName"));
+    assertEquals(Arrays.asList("ctrl/m outputASName=out"), pcc.getLastAppliedChanges());
+    Factory.deleteResource(pcc);
+    Factory.deleteResource(doc);
+  }
+}
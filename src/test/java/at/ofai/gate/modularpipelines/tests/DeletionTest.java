@@ -0,0 +1,160 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.test.GATEPluginTests;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Deleting annotation sets and document features with the "deleteset" and
+ * "deletedocfeature" config settings.
+ */
+public class DeletionTest extends GATEPluginTests {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  // a controller with the MarkPRs "m1" and "m2" which add to the set "tmp"
+  // and between them the SetsPR "s" which records the set names it sees
+  private ParametrizedCorpusController controller(String config) throws Exception {
+    File file = new File(tmp.getRoot(), "deletion.yaml");
+    Files.write(file.toPath(), config.getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", file.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    pcc.add(mark("m1"));
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.SetsPR.class.getName(), 
+            Factory.newFeatureMap(), null, "s"));
+    pcc.add(mark("m2"));
+    return pcc;
+  }
+
+  private static ProcessingResource mark(String name) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("outputASName", "tmp");
+    return (ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), parms, null, name);
+  }
+
+  // a document with annotations in the default set and the sets "keep",
+  // "tmp1", "tmp22" and "tmpx" and the features "a", "b", "ab", "tmpA"
+  // and "tmpB"
+  private static Document doc() throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    for(String set : new String[] { "", "keep", "tmp1", "tmp22", "tmpx" }) {
+      doc.getAnnotations(set).add(0L, 4L, "Token", Factory.newFeatureMap());
+    }
+    for(String name : new String[] { "a", "b", "ab", "tmpA", "tmpB" }) {
+      doc.getFeatures().put(name, name);
+    }
+    return doc;
+  }
+
+  private static Document run(ParametrizedCorpusController pcc) throws Exception {
+    Document doc = doc();
+    Corpus corpus = Factory.newCorpus("deletion test");
+    corpus.add(doc);
+    pcc.setCorpus(corpus);
+    pcc.execute();
+    pcc.setCorpus(null);
+    corpus.clear();
+    Factory.deleteResource(corpus);
+    return doc;
+  }
+
+  private static void cleanUp(ParametrizedCorpusController pcc, Document doc) {
+    Factory.deleteResource(doc);
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testExactFeatureNames() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            "- set: deletedocfeature\n  controller: ctrl\n  name: [a, b]\n");
+    Document doc = run(pcc);
+    assertFalse(doc.getFeatures().containsKey("a"));
+    assertFalse(doc.getFeatures().containsKey("b"));
+    assertEquals("ab", doc.getFeatures().get("ab"));
+    assertEquals("tmpA", doc.getFeatures().get("tmpA"));
+    assertEquals(2, pcc.getMetrics().get("deletions"));
+    cleanUp(pcc, doc);
+  }
+
+  @Test
+  public void testGlobFeatureNames() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            "- set: deletedocfeature\n  controller: ct*\n  name: 'tmp*'\n  match: glob\n");
+    Document doc = run(pcc);
+    assertFalse(doc.getFeatures().containsKey("tmpA"));
+    assertFalse(doc.getFeatures().containsKey("tmpB"));
+    assertEquals("a", doc.getFeatures().get("a"));
+    assertEquals("ab", doc.getFeatures().get("ab"));
+    cleanUp(pcc, doc);
+  }
+
+  @Test
+  public void testRegexSetNames() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            "- set: deleteset\n  controller: c.*l\n  name: 'tmp\\d+'\n  match: regex\n");
+    Document doc = run(pcc);
+    assertEquals(new HashSet<>(Arrays.asList("keep", "tmp", "tmpx")),
+            new HashSet<>(doc.getAnnotationSetNames()));
+    assertEquals(1, doc.getAnnotations().size());
+    cleanUp(pcc, doc);
+  }
+
+  @Test
+  public void testDefaultSet() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            "- set: deleteset\n  controller: ctrl\n  name: ''\n");
+    Document doc = run(pcc);
+    // the default set gets cleared, all the named sets are kept
+    assertTrue(doc.getAnnotations().isEmpty());
+    assertEquals(new HashSet<>(Arrays.asList("keep", "tmp", "tmp1", "tmp22", "tmpx")),
+            new HashSet<>(doc.getAnnotationSetNames()));
+    assertEquals(1, pcc.getMetrics().get("deletions"));
+    cleanUp(pcc, doc);
+  }
+
+  @Test
+  public void testAfterPR() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            "- set: deleteset\n  controller: ctrl\n  prname: m1\n  name: tmp\n");
+    Document doc = run(pcc);
+    // deleted right after m1, so only the annotation of m2 is left
+    assertEquals("[keep, tmp1, tmp22, tmpx]", doc.getFeatures().get("s"));
+    assertEquals(new HashSet<>(Arrays.asList("m2")), doc.getAnnotations("tmp").getAllTypes());
+    assertEquals(1, pcc.getMetrics().get("deletions"));
+    cleanUp(pcc, doc);
+  }
+
+  @Test
+  public void testAfterController() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(
+            "- set: deleteset\n  controller: ctrl\n  name: tmp\n");
+    Document doc = run(pcc);
+    // only deleted once all the PRs are done
+    assertEquals("[keep, tmp, tmp1, tmp22, tmpx]", doc.getFeatures().get("s"));
+    assertFalse(doc.getAnnotationSetNames().contains("tmp"));
+    assertEquals(1, pcc.getMetrics().get("deletions"));
+    cleanUp(pcc, doc);
+  }
+}
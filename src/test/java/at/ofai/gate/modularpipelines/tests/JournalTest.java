@@ -0,0 +1,87 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.Journal;
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.test.GATEPluginTests;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * The journal of completed documents.
+ */
+public class JournalTest extends GATEPluginTests {
+  
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+  
+  @Test
+  public void testSharedByDuplicates() throws Exception {
+    File config = new File(tmp.getRoot(), "config.yaml");
+    Files.write(config.toPath(), "- set: journal\n  file: journal.txt\n".getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms);
+    Journal journal = pcc.getJournal();
+    ParametrizedCorpusController dup = (ParametrizedCorpusController)Factory.duplicate(pcc);
+    assertSame(journal, dup.getJournal());
+    // deleting a duplicate must not close the journal the others still use
+    Factory.deleteResource(dup);
+    journal.record("doc1");
+    journal.sync();
+    assertTrue(Files.readAllLines(journal.getFile().toPath()).contains("doc1"));
+    Factory.deleteResource(pcc);
+    journal.record("doc2");
+    assertFalse(Files.readAllLines(journal.getFile().toPath()).contains("doc2"));
+  }
+  
+  @Test
+  public void testResumeSkipsCompleted() throws Exception {
+    TestPRs.register();
+    File config = new File(tmp.getRoot(), "config.yaml");
+    Files.write(config.toPath(), ("- set: journal\n  file: journal.txt\n" +
+            "- set: docfeature\n  name: x\n  value: y\n").getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms);
+    FeatureMap prParms = Factory.newFeatureMap();
+    prParms.put("outputASName", "");
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), prParms, null, "m"));
+    Corpus corpus = Factory.newCorpus("resume");
+    for(int i = 0; i < 3; i++) {
+      Document doc = Factory.newDocument("Some text");
+      doc.setName("doc"+i);
+      corpus.add(doc);
+    }
+    // completed by an earlier run
+    pcc.getJournal().record("doc1");
+    pcc.setCorpus(corpus);
+    pcc.execute();
+    pcc.setCorpus(null);
+    // the completed document is not touched at all
+    assertNull(corpus.get(1).getFeatures().get("x"));
+    assertNull(corpus.get(1).getFeatures().get("m"));
+    for(int i : new int[] { 0, 2 }) {
+      assertEquals("y", corpus.get(i).getFeatures().get("x"));
+      assertEquals(1, corpus.get(i).getFeatures().get("m"));
+    }
+    assertEquals(1, pcc.getMetrics().get("journalSkipped"));
+    assertTrue(pcc.getJournal().isCompleted("doc2"));
+    for(Document doc : corpus.toArray(new Document[0])) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(pcc);
+  }
+}
@@ -0,0 +1,113 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.MemoryReport;
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.test.GATEPluginTests;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Estimating the memory used by a controller and its duplicates.
+ */
+public class MemoryReportTest extends GATEPluginTests {
+
+  /**
+   * An object of a class which gets loaded by its own class loader.
+   */
+  public static class Payload {
+    public final long[] data = new long[100];
+  }
+
+  private static ParametrizedCorpusController controller() throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(),
+                    Factory.newFeatureMap(), null, "ctrl");
+    for(String name : new String[] { "m1", "m2" }) {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put("outputASName", "");
+      pcc.add((ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), parms, null, name));
+    }
+    return pcc;
+  }
+
+  private static long sharedBytes(MemoryReport.Node node) {
+    long shared = node.getSharedBytes();
+    for(MemoryReport.Node child : node.getChildren()) {
+      shared += sharedBytes(child);
+    }
+    return shared;
+  }
+
+  @Test
+  public void testReport() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller();
+    ParametrizedCorpusController dup = (ParametrizedCorpusController)Factory.duplicate(pcc);
+    MemoryReport report = MemoryReport.create(pcc, Arrays.asList(dup));
+    MemoryReport.Node root = report.getRoot();
+    assertEquals("controller", root.getKind());
+    assertEquals("ctrl", root.getName());
+    assertEquals(2, root.getChildren().size());
+    long total = root.getBytes();
+    for(MemoryReport.Node child : root.getChildren()) {
+      assertEquals("pr", child.getKind());
+      assertEquals(TestPRs.MarkPR.class.getName(), child.getClassName());
+      assertTrue(child.getBytes() > 0);
+      total += child.getTotalBytes();
+    }
+    assertEquals(total, root.getTotalBytes());
+    assertEquals(1, report.getDuplicates().size());
+    MemoryReport.Node copy = report.getDuplicates().get(0);
+    assertEquals(2, copy.getChildren().size());
+    assertTrue(copy.getTotalBytes() > 0);
+    // e.g. the PR names are the same strings
+    assertTrue(sharedBytes(copy) > 0);
+
+    JsonNode json = new ObjectMapper().readTree(report.toString());
+    assertEquals("controller", json.get("root").get("kind").asText());
+    assertEquals(root.getTotalBytes(), json.get("root").get("totalBytes").asLong());
+    assertEquals("m2", json.get("root").get("children").get(1).get("name").asText());
+    assertEquals(1, json.get("duplicates").size());
+    Factory.deleteResource(dup);
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testClassesNotKept() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller();
+    URL classes = MemoryReportTest.class.getProtectionDomain().getCodeSource().getLocation();
+    URLClassLoader loader = new URLClassLoader(new URL[] { classes }, null);
+    Object payload = loader.loadClass(Payload.class.getName()).getDeclaredConstructor().newInstance();
+    assertNotSame(Payload.class, payload.getClass());
+    WeakReference<ClassLoader> ref = new WeakReference<>(loader);
+    ProcessingResource pr = pcc.getPRs().get(0);
+    pr.getFeatures().put("payload", payload);
+    MemoryReport report = MemoryReport.create(pcc, Collections.<ParametrizedCorpusController>emptyList());
+    // the payload is counted for the PR
+    assertTrue(report.getRoot().getChildren().get(0).getBytes() > 800);
+    pr.getFeatures().remove("payload");
+    payload = null;
+    loader.close();
+    loader = null;
+    long end = System.currentTimeMillis() + 10000;
+    while(ref.get() != null && System.currentTimeMillis() < end) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    // the report does not keep the class and its class loader alive
+    assertNull(ref.get());
+    assertNotNull(report.getRoot());
+    Factory.deleteResource(pcc);
+  }
+}
@@ -0,0 +1,45 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.NameMatcher;
+import at.ofai.gate.modularpipelines.NameMatcher.MatchType;
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for matching controller and PR names against patterns.
+ */
+public class NameMatcherTest {
+
+  @Test
+  public void testMatching() {
+    NameMatcher<String> matcher = new NameMatcher<>();
+    matcher.add("main\tTokeniser*", MatchType.GLOB, "a");
+    matcher.add("*\t*", MatchType.GLOB, "b");
+    matcher.add("main\tTokeniser", MatchType.EXACT, "c");
+    matcher.add("(?:sub\\d+)\t(?:.*Gazetteer)", MatchType.REGEX, "d");
+    matcher.add("ma?n\tT[aeiou]kenizer", MatchType.GLOB, "e");
+    
+    assertEquals(Arrays.asList("a", "b", "c"), matcher.match("main\tTokeniser"));
+    assertEquals(Arrays.asList("a", "b"), matcher.match("main\tTokeniser 2"));
+    assertEquals(Arrays.asList("b", "d"), matcher.match("sub12\tList Gazetteer"));
+    assertEquals(Arrays.asList("b", "e"), matcher.match("main\tTokenizer"));
+    // a glob wildcard never matches across the tab
+    assertEquals(Collections.emptyList(), matcher.match("main\tTokeniser\tx"));
+    assertEquals(Collections.emptyList(), matcher.match("main"));
+    assertEquals(5, matcher.size());
+  }
+  
+  @Test
+  public void testMatchType() {
+    assertEquals(MatchType.EXACT, MatchType.fromSetting(null));
+    assertEquals(MatchType.GLOB, MatchType.fromSetting("Glob"));
+  }
+  
+  @Test(expected = GateRuntimeException.class)
+  public void testBadMatchType() {
+    MatchType.fromSetting("wildcard");
+  }
+}
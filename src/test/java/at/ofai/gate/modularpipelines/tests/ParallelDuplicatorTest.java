@@ -0,0 +1,96 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParallelDuplicator;
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.creole.ResourceInstantiationException;
+import gate.test.GATEPluginTests;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Creating duplicates of a controller in parallel.
+ */
+public class ParallelDuplicatorTest extends GATEPluginTests {
+
+  private static ParametrizedCorpusController controller() throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(),
+                    Factory.newFeatureMap(), null, "dup");
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.CountingPR.class.getName(),
+            Factory.newFeatureMap(), null, "c"));
+    return pcc;
+  }
+
+  private static int instances(Class<?> cls) throws Exception {
+    return Gate.getCreoleRegister().getAllInstances(cls.getName()).size();
+  }
+
+  @Test
+  public void testIndependentDuplicates() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller();
+    ParallelDuplicator.Report<ParametrizedCorpusController> report =
+            ParallelDuplicator.duplicate(pcc, 4, 2);
+    List<ParametrizedCorpusController> dups = report.getDuplicates();
+    assertEquals(4, dups.size());
+    Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    seen.add(pcc);
+    seen.add(pcc.getPRs().get(0));
+    for(int i = 0; i < dups.size(); i++) {
+      assertEquals(i, report.getCopies().get(i).getIndex());
+      ParametrizedCorpusController dup = dups.get(i);
+      assertTrue(seen.add(dup));
+      assertEquals(1, dup.getPRs().size());
+      assertTrue(seen.add(dup.getPRs().get(0)));
+    }
+    // running one duplicate does not affect the others
+    Document doc = Factory.newDocument("Some text");
+    Corpus corpus = Factory.newCorpus("dup test");
+    corpus.add(doc);
+    dups.get(1).setCorpus(corpus);
+    dups.get(1).execute();
+    dups.get(1).setCorpus(null);
+    for(int i = 0; i < dups.size(); i++) {
+      TestPRs.CountingPR pr = (TestPRs.CountingPR)dups.get(i).getPRs().get(0);
+      assertEquals(i == 1 ? 1 : 0, pr.executed);
+    }
+    assertEquals(0, ((TestPRs.CountingPR)pcc.getPRs().get(0)).executed);
+    corpus.clear();
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(doc);
+    for(ParametrizedCorpusController dup : dups) {
+      Factory.deleteResource(dup);
+    }
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testFailedDuplicate() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller();
+    int controllers = instances(ParametrizedCorpusController.class);
+    int prs = instances(TestPRs.CountingPR.class);
+    TestPRs.CountingPR.failInit.set(1);
+    try {
+      ParallelDuplicator.duplicate(pcc, 6, 3);
+      fail("Expected duplicating to fail");
+    } catch(ResourceInstantiationException ex) {
+      // expected
+    } finally {
+      TestPRs.CountingPR.failInit.set(0);
+    }
+    // the copies which got created before the failure are gone again
+    assertEquals(controllers, instances(ParametrizedCorpusController.class));
+    assertEquals(prs, instances(TestPRs.CountingPR.class));
+    Factory.deleteResource(pcc);
+  }
+}
@@ -0,0 +1,251 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import at.ofai.gate.modularpipelines.PipelineService;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.creole.ResourceInstantiationException;
+import gate.test.GATEPluginTests;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Submitting documents to a pipeline service.
+ */
+public class PipelineServiceTest extends GATEPluginTests {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static ParametrizedCorpusController controller(ProcessingResource... prs) throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(),
+                    Factory.newFeatureMap(), null, "service");
+    for(ProcessingResource pr : prs) {
+      pcc.add(pr);
+    }
+    return pcc;
+  }
+
+  private static ProcessingResource pr(Class<?> cls, String name, String parm, Object value) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put(parm, value);
+    return (ProcessingResource)Factory.createResource(cls.getName(), parms, null, name);
+  }
+
+  private static Document doc(String name) throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    doc.setName(name);
+    return doc;
+  }
+
+  // submit a document and wait until a worker has taken it
+  private static CompletableFuture<Document> submitTaken(PipelineService service, Document doc)
+          throws Exception {
+    CompletableFuture<Document> future = service.submit(doc);
+    long end = System.currentTimeMillis() + 5000;
+    while(service.getQueueLength() > 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(5);
+    }
+    assertEquals(0, service.getQueueLength());
+    return future;
+  }
+
+  private static Throwable failure(CompletableFuture<Document> future) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("Expected the request to fail");
+      return null;
+    } catch(ExecutionException ex) {
+      return ex.getCause();
+    }
+  }
+
+  @Test
+  public void testSubmit() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(pr(TestPRs.MarkPR.class, "m", "outputASName", ""));
+    List<Document> docs = new ArrayList<>();
+    List<CompletableFuture<Document>> futures = new ArrayList<>();
+    try (PipelineService service = new PipelineService(pcc, 2, 10)) {
+      for(int i = 0; i < 5; i++) {
+        Document doc = doc("d"+i);
+        docs.add(doc);
+        futures.add(service.submit(doc));
+      }
+      for(int i = 0; i < 5; i++) {
+        assertSame(docs.get(i), futures.get(i).get(10, TimeUnit.SECONDS));
+        assertEquals(1, docs.get(i).getFeatures().get("m"));
+      }
+      assertEquals(5, service.getMetrics().get("completed"));
+    }
+    for(Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testPriority() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(pr(TestPRs.SleepPR.class, "s", "millis", 200));
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    List<Document> docs = new ArrayList<>();
+    try (PipelineService service = new PipelineService(pcc, 1, 10)) {
+      docs.add(doc("first"));
+      List<CompletableFuture<Document>> futures = new ArrayList<>();
+      futures.add(submitTaken(service, docs.get(0)));
+      // these wait while the worker processes the first document
+      docs.add(doc("low"));
+      futures.add(service.submit(docs.get(1), PipelineService.Priority.LOW, 0L));
+      docs.add(doc("normal1"));
+      futures.add(service.submit(docs.get(2), PipelineService.Priority.NORMAL, 0L));
+      docs.add(doc("high"));
+      futures.add(service.submit(docs.get(3), PipelineService.Priority.HIGH, 0L));
+      docs.add(doc("normal2"));
+      futures.add(service.submit(docs.get(4), PipelineService.Priority.NORMAL, 0L));
+      for(CompletableFuture<Document> future : futures) {
+        future.thenAccept(d -> order.add(d.getName()));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+    }
+    assertEquals(5, order.size());
+    assertEquals("first", order.get(0));
+    assertEquals(Arrays.asList("high", "normal1", "normal2", "low"), 
+            new ArrayList<>(order.subList(1, 5)));
+    for(Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testRejection() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(pr(TestPRs.SleepPR.class, "s", "millis", 200));
+    Document first = doc("first");
+    Document queued = doc("queued");
+    Document rejected = doc("rejected");
+    PipelineService service = new PipelineService(pcc, 1, 1);
+    try {
+      CompletableFuture<Document> f1 = submitTaken(service, first);
+      CompletableFuture<Document> f2 = service.submit(queued);
+      // the queue only has room for one request
+      assertTrue(failure(service.submit(rejected)) instanceof RejectedExecutionException);
+      assertSame(first, f1.get(10, TimeUnit.SECONDS));
+      assertSame(queued, f2.get(10, TimeUnit.SECONDS));
+    } finally {
+      service.close();
+    }
+    // nothing is accepted once the service is closed
+    assertTrue(failure(service.submit(rejected)) instanceof RejectedExecutionException);
+    assertEquals(2, service.getMetrics().get("rejected"));
+    assertEquals(2, service.getMetrics().get("completed"));
+    Factory.deleteResource(first);
+    Factory.deleteResource(queued);
+    Factory.deleteResource(rejected);
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(pr(TestPRs.SleepPR.class, "s", "millis", 2000));
+    Document first = doc("first");
+    Document waiting = doc("waiting");
+    try (PipelineService service = new PipelineService(pcc, 1, 10)) {
+      // interrupted while processing
+      long start = System.nanoTime();
+      CompletableFuture<Document> f1 = service.submit(first, PipelineService.Priority.NORMAL, 100L);
+      // the deadline passes while waiting for the first document
+      CompletableFuture<Document> f2 = service.submit(waiting, PipelineService.Priority.NORMAL, 50L);
+      Throwable ex1 = failure(f1);
+      assertTrue(ex1 instanceof TimeoutException);
+      assertEquals("Deadline reached while processing", ex1.getMessage());
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+      Throwable ex2 = failure(f2);
+      assertTrue(ex2 instanceof TimeoutException);
+      assertEquals("Deadline reached before processing", ex2.getMessage());
+      assertEquals(2, service.getMetrics().get("expired"));
+    }
+    Factory.deleteResource(first);
+    Factory.deleteResource(waiting);
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testDeadlineWhileQueued() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(pr(TestPRs.SleepPR.class, "s", "millis", 1000));
+    Document first = doc("first");
+    Document waiting = doc("waiting");
+    try (PipelineService service = new PipelineService(pcc, 1, 10)) {
+      CompletableFuture<Document> f1 = submitTaken(service, first);
+      long start = System.nanoTime();
+      CompletableFuture<Document> f2 = service.submit(waiting, PipelineService.Priority.NORMAL, 50L);
+      // fails at its deadline, not when the worker is done with the first
+      Throwable ex2 = failure(f2);
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+      assertTrue(ex2 instanceof TimeoutException);
+      assertEquals("Deadline reached before processing", ex2.getMessage());
+      assertFalse(f1.isDone());
+      assertEquals(0, service.getQueueLength());
+      assertSame(first, f1.get(10, TimeUnit.SECONDS));
+      assertEquals(1, service.getMetrics().get("expired"));
+      assertEquals(1, service.getMetrics().get("completed"));
+    }
+    Factory.deleteResource(first);
+    Factory.deleteResource(waiting);
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testWarmUpDuplicates() throws Exception {
+    TestPRs.register();
+    File samples = tmp.newFile("samples.txt");
+    Files.write(samples.toPath(), "First text\nSecond text\n".getBytes(StandardCharsets.UTF_8));
+    File config = tmp.newFile("warmup.yaml");
+    Files.write(config.toPath(), 
+            "- set: warmup\n  file: samples.txt\n  iterations: 1\n".getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "service");
+    pcc.add(pr(TestPRs.MarkPR.class, "m", "outputASName", ""));
+    // duplicating alone does not run the warm-up
+    Factory.deleteResource(Factory.duplicate(pcc));
+    assertEquals(0, pcc.getMetrics().get("warmupDocuments"));
+    try (PipelineService service = new PipelineService(pcc, 3, 10)) {
+      // both duplicates, but not the controller itself
+      assertEquals(4, pcc.getMetrics().get("warmupDocuments"));
+    }
+    // a failed warm-up deletes the duplicates
+    Files.delete(samples.toPath());
+    String type = ParametrizedCorpusController.class.getName();
+    int instances = Gate.getCreoleRegister().getAllInstances(type).size();
+    try {
+      new PipelineService(pcc, 3, 10).close();
+      fail("Expected the warm-up to fail");
+    } catch(ResourceInstantiationException ex) {
+      assertEquals(instances, Gate.getCreoleRegister().getAllInstances(type).size());
+    }
+    Factory.deleteResource(pcc);
+  }
+}
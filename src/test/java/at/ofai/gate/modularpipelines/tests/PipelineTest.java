@@ -0,0 +1,328 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import at.ofai.gate.modularpipelines.Pipeline;
+import gate.Annotation;
+import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.creole.SerialAnalyserController;
+import gate.test.GATEPluginTests;
+import gate.util.GateRuntimeException;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Pipeline PR.
+ */
+public class PipelineTest extends GATEPluginTests {
+  
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+  
+  /**
+   * Save a controller with the given PRs to a pipeline file and delete it.
+   */
+  private File save(String name, ProcessingResource... prs) throws Exception {
+    return save(new File(tmp.getRoot(), name+".xgapp"), name, prs);
+  }
+  
+  private static File save(File file, String name, ProcessingResource... prs) throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), 
+                    Factory.newFeatureMap(), null, name);
+    for(ProcessingResource pr : prs) {
+      pcc.add(pr);
+    }
+    PersistenceManager.saveObjectToFile(pcc, file);
+    Factory.deleteResource(pcc);
+    return file;
+  }
+  
+  private static ProcessingResource mark(String name) throws Exception {
+    return (ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), 
+            Factory.newFeatureMap(), null, name);
+  }
+  
+  private static Pipeline pipeline(String name, File file, boolean skipUnchanged) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", file.toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource(Pipeline.class.getName(), parms, null, name);
+    pipeline.setSkipUnchanged(skipUnchanged);
+    return pipeline;
+  }
+  
+  private static Document run(Controller controller, String text) throws Exception {
+    Document doc = Factory.newDocument(text);
+    try {
+      run(controller, doc);
+    } finally {
+      Factory.deleteResource(doc);
+    }
+    return doc;
+  }
+  
+  private static void run(Controller controller, Document doc) throws Exception {
+    Corpus corpus = Factory.newCorpus("pipeline test");
+    corpus.add(doc);
+    ((CorpusController)controller).setCorpus(corpus);
+    try {
+      controller.execute();
+    } finally {
+      ((CorpusController)controller).setCorpus(null);
+      corpus.clear();
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  /**
+   * Stages of a nested pipeline only depend on the stages before them in
+   * the same pipeline, so they are skipped when the outer Pipeline PR runs
+   * again for a change they do not depend on.
+   */
+  @Test
+  public void testSkipUnchangedNested() throws Exception {
+    TestPRs.register();
+    File stage1 = save("stage1", mark("m1"));
+    File stage2 = save("stage2", mark("m2"));
+    File middle = save("middle", pipeline("s1", stage1, true), pipeline("s2", stage2, true));
+    Pipeline outer = pipeline("outer", middle, true);
+    outer.setCacheInputAnnotationSets(Arrays.asList("trigger"));
+    SerialAnalyserController top = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    top.add(outer);
+    Document doc = Factory.newDocument("Some text");
+    run(top, doc);
+    assertEquals(1, doc.getFeatures().get("m1"));
+    assertEquals(1, doc.getFeatures().get("m2"));
+    // the outer pipeline must run again, the stages must not
+    doc.getAnnotations("trigger").add(0L, 4L, "Trigger", Factory.newFeatureMap());
+    run(top, doc);
+    assertEquals(1, doc.getAnnotations().get("m1").size());
+    assertEquals(1, doc.getAnnotations().get("m2").size());
+    Factory.deleteResource(top);
+    Factory.deleteResource(doc);
+  }
+  
+  private static int markInstances(String name) throws Exception {
+    int n = 0;
+    for(Resource r : Gate.getCreoleRegister().getAllInstances(TestPRs.MarkPR.class.getName())) {
+      if(r.getName().equals(name)) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
+  @Test
+  public void testIncrementalReInit() throws Exception {
+    TestPRs.register();
+    File stage = save("incremental", mark("old"));
+    Pipeline pipeline = pipeline("p", stage, false);
+    pipeline.setIncrementalReInit(true);
+    SerialAnalyserController top = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    top.add(pipeline);
+    assertEquals(1, run(top, "Some text").getFeatures().get("old"));
+    // nothing changed, nothing gets reloaded
+    pipeline.reInit();
+    assertEquals(1, markInstances("old"));
+    save(stage, "incremental", mark("new"));
+    pipeline.reInit();
+    assertEquals(0, markInstances("old"));
+    Document doc = run(top, "Some text");
+    assertEquals(1, doc.getFeatures().get("new"));
+    assertNull(doc.getFeatures().get("old"));
+    Factory.deleteResource(top);
+    Factory.deleteResource(pipeline);
+  }
+  
+  private static Resource markInstance(String name) throws Exception {
+    for(Resource r : Gate.getCreoleRegister().getAllInstances(TestPRs.MarkPR.class.getName())) {
+      if(r.getName().equals(name)) {
+        return r;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * A config file given by the system property is checked for changes
+   * by its content, not just by its name.
+   */
+  @Test
+  public void testIncrementalReInitConfigProperty() throws Exception {
+    TestPRs.register();
+    File config = tmp.newFile("config.yaml");
+    Files.write(config.toPath(), "- set: docfeature\n  name: f\n  value: one\n".getBytes(StandardCharsets.UTF_8));
+    System.setProperty("at.ofai.gate.modularpipelines.configFile", config.getPath());
+    try {
+      File stage = save("property", mark("prop"));
+      Pipeline pipeline = pipeline("p", stage, false);
+      pipeline.setIncrementalReInit(true);
+      Resource loaded = markInstance("prop");
+      pipeline.reInit();
+      assertSame(loaded, markInstance("prop"));
+      Files.write(config.toPath(), "- set: docfeature\n  name: f\n  value: two\n".getBytes(StandardCharsets.UTF_8));
+      pipeline.reInit();
+      assertNotNull(markInstance("prop"));
+      assertNotSame(loaded, markInstance("prop"));
+      Factory.deleteResource(pipeline);
+    } finally {
+      System.clearProperty("at.ofai.gate.modularpipelines.configFile");
+    }
+  }
+  
+  /**
+   * Two documents, the action is run before the second one gets created.
+   */
+  private static Iterator<Document> twoDocuments(Callable<Object> beforeSecond) {
+    return new Iterator<Document>() {
+      int n = 0;
+      @Override
+      public boolean hasNext() {
+        return n < 2;
+      }
+      @Override
+      public Document next() {
+        try {
+          if(n++ == 1) {
+            beforeSecond.call();
+          }
+          return Factory.newDocument("Document "+n);
+        } catch(Exception ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    };
+  }
+  
+  private static void waitForInstance(String name) throws Exception {
+    for(int i = 0; i < 200 && markInstances(name) == 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, markInstances(name));
+  }
+  
+  @Test
+  public void testBackgroundReInit() throws Exception {
+    TestPRs.register();
+    File stage = save("background", mark("before"), 
+            (ProcessingResource)Factory.createResource(TestPRs.CountingPR.class.getName()));
+    Pipeline pipeline = pipeline("p", stage, false);
+    pipeline.setBackgroundReInit(true);
+    ParametrizedCorpusController top = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName());
+    top.add(pipeline);
+    List<Object> marks = new ArrayList<>();
+    
+    // if the old pipeline fails while switching, the new one gets deleted
+    // and the old one stays
+    try {
+      top.execute(twoDocuments(() -> {
+        save(stage, "background", mark("after"));
+        pipeline.reInit();
+        waitForInstance("after");
+        TestPRs.CountingPR.failFinished = true;
+        return null;
+      }), d -> marks.add(d.getFeatures().get("before")), null);
+      fail("switching should have failed");
+    } catch(GateRuntimeException ex) {
+      // expected
+    } finally {
+      TestPRs.CountingPR.failFinished = false;
+    }
+    assertEquals(Arrays.asList(1), marks);
+    assertEquals(0, markInstances("after"));
+    assertEquals(1, markInstances("before"));
+    
+    // otherwise the new one replaces the old one between two documents
+    marks.clear();
+    top.execute(twoDocuments(() -> {
+      pipeline.reInit();
+      waitForInstance("after");
+      return null;
+    }), d -> marks.add(d.getFeatures().containsKey("before") ? "before" : "after"), null);
+    assertEquals(Arrays.asList("before", "after"), marks);
+    assertEquals(0, markInstances("before"));
+    Factory.deleteResource(top);
+  }
+  
+  /**
+   * The warm-up neither fills the result cache nor counts in the metrics.
+   */
+  @Test
+  public void testWarmUpSideEffects() throws Exception {
+    TestPRs.register();
+    File stage = save("warm", mark("w"));
+    Pipeline pipeline = pipeline("p", stage, false);
+    pipeline.setUseResultCache(true);
+    ParametrizedCorpusController top = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), 
+                    Factory.newFeatureMap(), null, "top");
+    top.add(pipeline);
+    File samples = tmp.newFile("samples.txt");
+    Files.write(samples.toPath(), "First text\nSecond text\n".getBytes(StandardCharsets.UTF_8));
+    File config = tmp.newFile("warmup.yaml");
+    Files.write(config.toPath(), 
+            "- set: warmup\n  file: samples.txt\n  iterations: \"2\"\n".getBytes(StandardCharsets.UTF_8));
+    top.setConfigFileUrl(config.toURI().toURL());
+    top.reInit();
+    assertEquals(2, top.warmUp().length);
+    assertEquals(4, top.getMetrics().get("warmupDocuments"));
+    assertEquals(0, pipeline.getMetrics().get("cacheMisses"));
+    assertEquals(0, pipeline.getMetrics().get("cacheStores"));
+    run(top, "First text");
+    assertEquals(1, pipeline.getMetrics().get("cacheMisses"));
+    Factory.deleteResource(top);
+  }
+  
+  /**
+   * Annotation ids in the given features refer to the same annotations 
+   * after the fan-out sections have been merged.
+   */
+  @Test
+  public void testFanOutIdFeatures() throws Exception {
+    TestPRs.register();
+    File stage = save("link", (ProcessingResource)Factory.createResource(TestPRs.LinkPR.class.getName()));
+    Pipeline pipeline = pipeline("p", stage, false);
+    pipeline.setFanOutType("Section");
+    pipeline.setFanOutThreads(2);
+    pipeline.setFanOutIdFeatures(Arrays.asList("target", "targets"));
+    SerialAnalyserController top = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    top.add(pipeline);
+    Document doc = Factory.newDocument("first second third");
+    doc.getAnnotations().add(0L, 5L, "Section", Factory.newFeatureMap());
+    doc.getAnnotations().add(6L, 12L, "Section", Factory.newFeatureMap());
+    doc.getAnnotations().add(13L, 18L, "Section", Factory.newFeatureMap());
+    run(top, doc);
+    assertEquals(3, doc.getAnnotations().get("Link").size());
+    for(Annotation link : doc.getAnnotations().get("Link")) {
+      Integer target = (Integer)link.getFeatures().get("target");
+      Annotation ann = doc.getAnnotations().get(target);
+      assertEquals("Target", ann.getType());
+      assertEquals(link.getStartNode().getOffset(), ann.getStartNode().getOffset());
+      assertEquals(Arrays.asList(target), link.getFeatures().get("targets"));
+    }
+    Factory.deleteResource(top);
+    Factory.deleteResource(doc);
+  }
+}
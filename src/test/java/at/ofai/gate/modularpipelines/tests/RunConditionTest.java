@@ -0,0 +1,81 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.RunCondition;
+import gate.Document;
+import gate.Factory;
+import gate.test.GATEPluginTests;
+import gate.util.GateRuntimeException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for compiling and evaluating prcond run conditions.
+ */
+public class RunConditionTest extends GATEPluginTests {
+
+  @Test
+  public void testConditions() throws Exception {
+    Document doc = Factory.newDocument("Some text content");
+    doc.getFeatures().put("lang", "en");
+    doc.getFeatures().put("count", 25);
+    doc.getFeatures().put("MimeType", "text/html");
+    doc.getFeatures().put("my feature", "x");
+    
+    assertTrue(RunCondition.compile("feature.lang == 'en'").test(doc));
+    assertFalse(RunCondition.compile("feature.lang != \"en\"").test(doc));
+    assertTrue(RunCondition.compile("feature.count > 20 && feature.count <= 25").test(doc));
+    assertTrue(RunCondition.compile("feature.count == '25'").test(doc));
+    assertTrue(RunCondition.compile("size < 100 and size >= 17").test(doc));
+    assertTrue(RunCondition.compile("mimetype =~ 'html'").test(doc));
+    assertFalse(RunCondition.compile("feature.missing").test(doc));
+    assertTrue(RunCondition.compile("!feature.missing || feature.lang == 'de'").test(doc));
+    assertTrue(RunCondition.compile("feature[\"my feature\"] == 'x'").test(doc));
+    assertFalse(RunCondition.compile("not (feature.lang == 'en' or false)").test(doc));
+    assertTrue(RunCondition.compile("feature.missing == null").test(doc));
+    // without a document the condition is always true
+    assertTrue(RunCondition.compile("false").test(null));
+    assertEquals(RunCondition.compile("size > 1"), RunCondition.compile("size > 1"));
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testEscapes() throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    doc.getFeatures().put("id", "abc123");
+    doc.getFeatures().put("letter", "d");
+    doc.getFeatures().put("path", "a\\b");
+    doc.getFeatures().put("quoted", "it's");
+    // backslashes in regular expressions are kept
+    assertTrue(RunCondition.compile("feature.id =~ \"\\d+\"").test(doc));
+    assertFalse(RunCondition.compile("feature.letter =~ '\\d'").test(doc));
+    // only the quote character and the backslash are escaped
+    assertTrue(RunCondition.compile("feature.path == 'a\\\\b'").test(doc));
+    assertTrue(RunCondition.compile("feature.quoted == 'it\\'s'").test(doc));
+    Factory.deleteResource(doc);
+  }
+  
+  @Test
+  public void testNumericEquality() throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    doc.getFeatures().put("str", "5");
+    doc.getFeatures().put("num", 5);
+    assertTrue(RunCondition.compile("feature.str == 5.0").test(doc));
+    assertFalse(RunCondition.compile("feature.str != 5.0").test(doc));
+    assertTrue(RunCondition.compile("feature.num == '5.0'").test(doc));
+    assertTrue(RunCondition.compile("feature.str == feature.num").test(doc));
+    assertFalse(RunCondition.compile("feature.str == 6").test(doc));
+    // strings which are not numbers are still compared as strings
+    assertFalse(RunCondition.compile("feature.str == 'five'").test(doc));
+    Factory.deleteResource(doc);
+  }
+  
+  @Test(expected = GateRuntimeException.class)
+  public void testParseError() {
+    RunCondition.compile("feature.lang == ");
+  }
+  
+  @Test(expected = GateRuntimeException.class)
+  public void testBadRegex() {
+    RunCondition.compile("name =~ '('");
+  }
+}
@@ -0,0 +1,174 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.DataStore;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.corpora.SerialCorpusImpl;
+import gate.event.CreoleEvent;
+import gate.event.CreoleListener;
+import gate.test.GATEPluginTests;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Processing only the documents of one shard of a corpus.
+ */
+public class ShardTest extends GATEPluginTests {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File config(String name, String content) throws Exception {
+    File file = new File(tmp.getRoot(), name);
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  // a controller with a MarkPR which sets the document feature "m"
+  private static ParametrizedCorpusController controller(File config) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", config.toURI().toURL());
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(), parms, null, "ctrl");
+    FeatureMap prParms = Factory.newFeatureMap();
+    prParms.put("outputASName", "");
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), prParms, null, "m"));
+    return pcc;
+  }
+
+  private static Corpus openCorpus(DataStore ds, Object id) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put(DataStore.DATASTORE_FEATURE_NAME, ds);
+    parms.put(DataStore.LR_ID_FEATURE_NAME, id);
+    return (Corpus)Factory.createResource("gate.corpora.SerialCorpusImpl", parms);
+  }
+
+  // run the controller over the corpus and return the names of all
+  // documents which got loaded meanwhile
+  private static Set<String> run(ParametrizedCorpusController pcc, Corpus corpus) throws Exception {
+    Set<String> loaded = Collections.synchronizedSet(new HashSet<>());
+    CreoleListener listener = new CreoleListener() {
+      @Override
+      public void resourceLoaded(CreoleEvent e) {
+        if(e.getResource() instanceof Document) {
+          loaded.add(((Document)e.getResource()).getName());
+        }
+      }
+      @Override
+      public void resourceUnloaded(CreoleEvent e) { }
+      @Override
+      public void datastoreOpened(CreoleEvent e) { }
+      @Override
+      public void datastoreCreated(CreoleEvent e) { }
+      @Override
+      public void datastoreClosed(CreoleEvent e) { }
+      @Override
+      public void resourceRenamed(Resource resource, String oldName, String newName) { }
+    };
+    Gate.getCreoleRegister().addCreoleListener(listener);
+    try {
+      pcc.setCorpus(corpus);
+      pcc.execute();
+      pcc.setCorpus(null);
+    } finally {
+      Gate.getCreoleRegister().removeCreoleListener(listener);
+    }
+    return loaded;
+  }
+
+  @Test
+  public void testHashShardsInDatastore() throws Exception {
+    TestPRs.register();
+    DataStore ds = Factory.createDataStore("gate.persist.SerialDataStore",
+            new File(tmp.getRoot(), "ds").toURI().toURL().toString());
+    Corpus transientCorpus = Factory.newCorpus("shards");
+    List<String> names = new ArrayList<>();
+    for(int i = 0; i < 20; i++) {
+      Document doc = Factory.newDocument("Text of document " + i);
+      doc.setName("doc" + i);
+      names.add("doc" + i);
+      transientCorpus.add(doc);
+    }
+    Corpus adopted = (Corpus)ds.adopt(transientCorpus);
+    ds.sync(adopted);
+    Object corpusId = adopted.getLRPersistenceId();
+    for(Document doc : new ArrayList<>(transientCorpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(transientCorpus);
+    Factory.deleteResource(adopted);
+
+    Set<String> processed = new HashSet<>();
+    for(int shard = 0; shard < 2; shard++) {
+      ParametrizedCorpusController pcc = controller(config("shard" + shard + ".yaml",
+              "- set: shard\n  index: " + shard + "\n  count: 2\n" +
+              "- set: docfeature\n  name: shard\n  value: " + shard + "\n"));
+      Corpus corpus = openCorpus(ds, corpusId);
+      Set<String> loaded = run(pcc, corpus);
+      Set<String> inShard = new HashSet<>();
+      for(int i = 0; i < corpus.size(); i++) {
+        Document doc = corpus.get(i);
+        Object written = doc.getFeatures().get("shard");
+        if(String.valueOf(shard).equals(String.valueOf(written))) {
+          inShard.add(doc.getName());
+          assertEquals(1, doc.getFeatures().get("m"));
+        } else if(!processed.contains(doc.getName())) {
+          // documents of the other shard are not written back
+          assertNull(written);
+          assertNull(doc.getFeatures().get("m"));
+        }
+        ((SerialCorpusImpl)corpus).unloadDocument(doc, false);
+        Factory.deleteResource(doc);
+      }
+      // only the documents of the shard were loaded at all
+      assertEquals(inShard, loaded);
+      assertFalse(inShard.isEmpty());
+      assertTrue(Collections.disjoint(processed, inShard));
+      processed.addAll(inShard);
+      Factory.deleteResource(corpus);
+      Factory.deleteResource(pcc);
+    }
+    assertEquals(new HashSet<>(names), processed);
+    ds.close();
+  }
+
+  @Test
+  public void testRangeShards() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(config("range.yaml",
+            "- set: shard\n  index: 1\n  count: 2\n  mode: range\n"));
+    Corpus corpus = Factory.newCorpus("range");
+    for(int i = 0; i < 6; i++) {
+      corpus.add(Factory.newDocument("Text of document " + i));
+    }
+    run(pcc, corpus);
+    List<Boolean> marked = new ArrayList<>();
+    for(Document doc : corpus) {
+      marked.add(doc.getFeatures().containsKey("m"));
+    }
+    assertEquals(Arrays.asList(false, false, false, true, true, true), marked);
+    assertEquals(3, pcc.getMetrics().get("shardSkipped"));
+    for(Document doc : new ArrayList<>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(pcc);
+  }
+}
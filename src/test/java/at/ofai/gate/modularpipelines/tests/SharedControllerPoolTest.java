@@ -0,0 +1,164 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import at.ofai.gate.modularpipelines.SharedControllerPool;
+import gate.Controller;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.ExecutionException;
+import gate.test.GATEPluginTests;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Processing documents with the controllers of a shared pool.
+ */
+public class SharedControllerPoolTest extends GATEPluginTests {
+
+  // a controller which marks the document with feature "m" and then sleeps
+  private static ParametrizedCorpusController controller(int millis) throws Exception {
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName(),
+                    Factory.newFeatureMap(), null, "shared");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("outputASName", "");
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.MarkPR.class.getName(), parms, null, "m"));
+    parms = Factory.newFeatureMap();
+    parms.put("millis", millis);
+    pcc.add((ProcessingResource)Factory.createResource(TestPRs.SleepPR.class.getName(), parms, null, "s"));
+    return pcc;
+  }
+
+  // a thread which processes the document and records what happened
+  private static class Worker extends Thread {
+    final SharedControllerPool pool;
+    final Document doc;
+    final Corpus corpus;
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    volatile boolean markedOnReturn = false;
+    volatile boolean interruptedOnReturn = false;
+    Worker(SharedControllerPool pool, Document doc, Corpus corpus) {
+      this.pool = pool;
+      this.doc = doc;
+      this.corpus = corpus;
+    }
+    @Override
+    public void run() {
+      try {
+        pool.process(doc, corpus);
+      } catch(Throwable ex) {
+        error.set(ex);
+      }
+      markedOnReturn = doc.getFeatures().containsKey("m");
+      interruptedOnReturn = isInterrupted();
+    }
+  }
+
+  private static Worker start(SharedControllerPool pool, String name, Corpus corpus) throws Exception {
+    Document doc = Factory.newDocument("Some text");
+    doc.setName(name);
+    Worker worker = new Worker(pool, doc, corpus);
+    worker.start();
+    return worker;
+  }
+
+  // wait until the thread is parked waiting for the pool, not sleeping in a PR
+  private static boolean waitForParked(Thread thread) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while(System.currentTimeMillis() < end) {
+      if(LockSupport.getBlocker(thread) != null) {
+        return true;
+      }
+      Thread.sleep(1);
+    }
+    return false;
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(20);
+    SharedControllerPool pool = new SharedControllerPool(pcc, 2, 3);
+    Corpus corpus = Factory.newCorpus("pool test");
+    List<Worker> workers = new ArrayList<>();
+    for(int i = 0; i < 12; i++) {
+      workers.add(start(pool, "doc"+i, corpus));
+    }
+    for(Worker worker : workers) {
+      worker.join(10000);
+      assertFalse(worker.isAlive());
+      assertNull(worker.error.get());
+      assertTrue(worker.markedOnReturn);
+      assertEquals(1, worker.doc.getFeatures().get("m"));
+      Factory.deleteResource(worker.doc);
+    }
+    Factory.deleteResource(corpus);
+    for(Controller c : pool.getControllers()) {
+      Factory.deleteResource(c);
+    }
+  }
+
+  @Test
+  public void testInterruptWhileWaiting() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(300);
+    SharedControllerPool pool = new SharedControllerPool(pcc, 1, 1);
+    Corpus corpus = Factory.newCorpus("pool test");
+    Worker running = start(pool, "running", corpus);
+    Thread.sleep(50);
+    Worker waiting = start(pool, "waiting", corpus);
+    assertTrue(waitForParked(waiting));
+    waiting.interrupt();
+    waiting.join(5000);
+    // gives up right away and the document is never processed
+    assertTrue(running.isAlive());
+    assertTrue(waiting.error.get() instanceof ExecutionException);
+    running.join(5000);
+    assertNull(running.error.get());
+    assertFalse(waiting.doc.getFeatures().containsKey("m"));
+    Factory.deleteResource(running.doc);
+    Factory.deleteResource(waiting.doc);
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(pcc);
+  }
+
+  @Test
+  public void testInterruptInRunningBatch() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = controller(300);
+    SharedControllerPool pool = new SharedControllerPool(pcc, 1, 2);
+    Corpus corpus = Factory.newCorpus("pool test");
+    Worker first = start(pool, "first", corpus);
+    Thread.sleep(50);
+    // these two get processed together once the first is done
+    Worker one = start(pool, "one", corpus);
+    Worker two = start(pool, "two", corpus);
+    first.join(5000);
+    Thread.sleep(100);
+    // the thread which is not running the batch waits for it
+    Worker waiter = LockSupport.getBlocker(one) != null ? one : two;
+    Worker runner = waiter == one ? two : one;
+    assertTrue(waitForParked(waiter));
+    assertTrue(runner.isAlive());
+    waiter.interrupt();
+    waiter.join(5000);
+    runner.join(5000);
+    // the interrupted thread only returned once its document was done
+    assertNull(waiter.error.get());
+    assertTrue(waiter.markedOnReturn);
+    assertTrue(waiter.interruptedOnReturn);
+    assertNull(runner.error.get());
+    for(Worker worker : new Worker[] { first, one, two }) {
+      Factory.deleteResource(worker.doc);
+    }
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(pcc);
+  }
+}
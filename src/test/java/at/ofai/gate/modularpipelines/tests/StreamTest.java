@@ -0,0 +1,47 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.test.GATEPluginTests;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Running a controller over a stream of documents.
+ */
+public class StreamTest extends GATEPluginTests {
+  
+  @Test
+  public void testCallbacksOncePerStream() throws Exception {
+    TestPRs.register();
+    ParametrizedCorpusController pcc = (ParametrizedCorpusController)
+            Factory.createResource(ParametrizedCorpusController.class.getName());
+    TestPRs.CountingPR pr = (TestPRs.CountingPR)Factory.createResource(TestPRs.CountingPR.class.getName());
+    pcc.add((ProcessingResource)pr);
+    List<Document> docs = new ArrayList<>();
+    for(int i = 0; i < 3; i++) {
+      docs.add(Factory.newDocument("Document "+i));
+    }
+    List<Document> processed = new ArrayList<>();
+    pcc.execute(docs.iterator(), processed::add, null);
+    assertEquals(3, processed.size());
+    assertEquals(3, pr.executed);
+    assertEquals(1, pr.started);
+    assertEquals(1, pr.finished);
+    assertEquals(0, pr.aborted);
+    
+    // the controller invokes the callbacks itself again for a corpus
+    Corpus corpus = Factory.newCorpus("stream test");
+    corpus.add(Factory.newDocument("Another document"));
+    pcc.setCorpus(corpus);
+    pcc.execute();
+    assertEquals(2, pr.started);
+    assertEquals(2, pr.finished);
+    Factory.deleteResource(pcc);
+  }
+}
@@ -0,0 +1,302 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import gate.Controller;
+import gate.Factory;
+import gate.Gate;
+import gate.Resource;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.Plugin;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jdom.Document;
+import org.jdom.Element;
+
+/**
+ * Processing resources used by the tests.
+ * 
+ * GATE considers all component plugins to be the same plugin, so they are
+ * all registered together as one plugin, see {@link #register()}.
+ */
+public class TestPRs extends Plugin.Component {
+  
+  private static final List<Class<? extends Resource>> CLASSES = Arrays.asList(
+          NoopPR.class, CountingPR.class, MarkPR.class, SleepPR.class, CollectionParmsPR.class,
+          LinkPR.class, SetsPR.class);
+  
+  private static boolean registered = false;
+  
+  private TestPRs() throws MalformedURLException {
+    super(NoopPR.class);
+  }
+  
+  /**
+   * Register all the test PRs, this can be called any number of times.
+   * 
+   * @throws Exception if registering fails
+   */
+  public static synchronized void register() throws Exception {
+    if(!registered) {
+      Gate.getCreoleRegister().registerPlugin(new TestPRs());
+      registered = true;
+    }
+  }
+  
+  @Override
+  public String getName() {
+    return "ModularPipelines test PRs";
+  }
+  
+  @Override
+  public Document getCreoleXML() throws Exception {
+    Element creole = new Element("CREOLE");
+    for(Class<? extends Resource> cls : CLASSES) {
+      creole.addContent(new Element("RESOURCE").addContent(new Element("CLASS").setText(cls.getName())));
+    }
+    // declared in the XML since GATE cannot handle primitive types for
+    // annotated parameters
+    creole.addContent(new Element("RESOURCE")
+            .addContent(new Element("NAME").setText("PrimitiveParmsTestPR"))
+            .addContent(new Element("CLASS").setText(PrimitiveParmsPR.class.getName()))
+            .addContent(new Element("PARAMETER").setAttribute("NAME", "limit")
+                    .setAttribute("RUNTIME", "true").setAttribute("OPTIONAL", "true")
+                    .setText(Integer.class.getName())));
+    return new Document(new Element("CREOLE-DIRECTORY").addContent(creole));
+  }
+  
+  @CreoleResource(name = "NoopTestPR")
+  public static class NoopPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    @Override
+    public void execute() {
+    }
+  }
+  
+  /**
+   * Counts how often it gets executed and gets each callback.
+   */
+  @CreoleResource(name = "CountingTestPR")
+  public static class CountingPR extends AbstractLanguageAnalyser implements ControllerAwarePR {
+    private static final long serialVersionUID = 1L;
+    int started = 0;
+    int finished = 0;
+    int aborted = 0;
+    int executed = 0;
+    // if set, all instances fail in the finished callback
+    static volatile boolean failFinished = false;
+    // how many more started callbacks fail, counted over all instances
+    static final AtomicInteger failStarted = new AtomicInteger();
+    // how many more inits fail, counted over all instances
+    static final AtomicInteger failInit = new AtomicInteger();
+    @Override
+    public Resource init() throws ResourceInstantiationException {
+      if(failInit.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        throw new ResourceInstantiationException("Init failed for "+getName());
+      }
+      return this;
+    }
+    @Override
+    public void execute() {
+      executed++;
+    }
+    @Override
+    public void controllerExecutionStarted(Controller c) throws ExecutionException {
+      started++;
+      if(failStarted.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        throw new ExecutionException("Started callback failed for "+getName());
+      }
+    }
+    @Override
+    public void controllerExecutionFinished(Controller c) throws ExecutionException {
+      finished++;
+      if(failFinished) {
+        throw new ExecutionException("Finished callback failed for "+getName());
+      }
+    }
+    @Override
+    public void controllerExecutionAborted(Controller c, Throwable t) {
+      aborted++;
+    }
+  }
+  
+  /**
+   * Adds an annotation with its own name as the type over the whole 
+   * document to the output set and sets the document feature with its 
+   * own name to the number of annotations of that type in the set and the
+   * feature with its name and "Id" to the id of the new annotation.
+   */
+  @CreoleResource(name = "MarkTestPR")
+  public static class MarkPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    private String outputASName = "";
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "The output annotation set", defaultValue = "")
+    public void setOutputASName(String value) {
+      outputASName = value;
+    }
+    public String getOutputASName() {
+      return outputASName;
+    }
+    @Override
+    public void execute() {
+      gate.AnnotationSet set = document.getAnnotations(outputASName);
+      try {
+        Integer id = set.add(0L, document.getContent().size(), getName(), Factory.newFeatureMap());
+        document.getFeatures().put(getName()+"Id", id);
+      } catch(InvalidOffsetException ex) {
+        throw new GateRuntimeException(ex);
+      }
+      document.getFeatures().put(getName(), set.get(getName()).size());
+    }
+  }
+  
+  /**
+   * Adds a Target annotation over the whole document and a Link annotation
+   * which refers to it with the features "target" (the id) and "targets" 
+   * (a list with the id).
+   */
+  @CreoleResource(name = "LinkTestPR")
+  public static class LinkPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    @Override
+    public void execute() {
+      try {
+        Integer id = document.getAnnotations().add(0L, document.getContent().size(), "Target", Factory.newFeatureMap());
+        gate.FeatureMap fm = Factory.newFeatureMap();
+        fm.put("target", id);
+        fm.put("targets", Arrays.asList(id));
+        document.getAnnotations().add(0L, document.getContent().size(), "Link", fm);
+      } catch(InvalidOffsetException ex) {
+        throw new GateRuntimeException(ex);
+      }
+    }
+  }
+  
+  /**
+   * Sets the document feature with its own name to the sorted names of the 
+   * annotation sets of the document.
+   */
+  @CreoleResource(name = "SetsTestPR")
+  public static class SetsPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    @Override
+    public void execute() {
+      document.getFeatures().put(getName(), new TreeSet<>(document.getAnnotationSetNames()).toString());
+    }
+  }
+  
+  /**
+   * Waits for the given time unless it gets interrupted.
+   */
+  @CreoleResource(name = "SleepTestPR")
+  public static class SleepPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    private Integer millis = 0;
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "How long to sleep", defaultValue = "0")
+    public void setMillis(Integer value) {
+      millis = value;
+    }
+    public Integer getMillis() {
+      return millis;
+    }
+    private Boolean fail = false;
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "If true, ignore interrupts and fail after sleeping", defaultValue = "false")
+    public void setFail(Boolean value) {
+      fail = value;
+    }
+    public Boolean getFail() {
+      return fail;
+    }
+    @Override
+    public void execute() throws ExecutionException {
+      interrupted = false;
+      long end = System.currentTimeMillis() + millis;
+      if(fail) {
+        while(System.currentTimeMillis() < end) {
+          try {
+            Thread.sleep(5);
+          } catch(InterruptedException ex) {
+            // keep sleeping
+          }
+        }
+        throw new ExecutionException(getName()+" failed");
+      }
+      while(System.currentTimeMillis() < end) {
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException(getName()+" interrupted");
+        }
+        try {
+          Thread.sleep(5);
+        } catch(InterruptedException ex) {
+          throw new ExecutionInterruptedException(getName()+" interrupted");
+        }
+      }
+    }
+  }
+  
+  /**
+   * Has runtime parameters of collection types.
+   */
+  @CreoleResource(name = "CollectionParmsTestPR")
+  public static class CollectionParmsPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    private Set<String> names;
+    private List<Integer> numbers;
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Some names")
+    public void setNames(Set<String> value) {
+      names = value;
+    }
+    public Set<String> getNames() {
+      return names;
+    }
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Some numbers")
+    public void setNumbers(List<Integer> value) {
+      numbers = value;
+    }
+    public List<Integer> getNumbers() {
+      return numbers;
+    }
+    @Override
+    public void execute() {
+    }
+  }
+  
+  /**
+   * Has a runtime parameter of a primitive type, see {@link #getCreoleXML()}.
+   */
+  public static class PrimitiveParmsPR extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    private int limit;
+    public void setLimit(int value) {
+      limit = value;
+    }
+    public int getLimit() {
+      return limit;
+    }
+    @Override
+    public void execute() {
+    }
+  }
+}
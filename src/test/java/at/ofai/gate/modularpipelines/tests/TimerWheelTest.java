@@ -0,0 +1,69 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.TimerWheel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Expiring, cancelling and idling of the timer wheel.
+ */
+public class TimerWheelTest {
+
+  @Test
+  public void testExpire() throws Exception {
+    TimerWheel wheel = new TimerWheel(1, 4);
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    // more than one round of the wheel
+    TimerWheel.Timeout timeout = wheel.schedule(latch::countDown, 30);
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+    assertTrue(timeout.isExpired());
+    assertFalse(timeout.isCancelled());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    TimerWheel wheel = new TimerWheel(1, 16);
+    AtomicBoolean ran = new AtomicBoolean(false);
+    TimerWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), 20);
+    timeout.cancel();
+    Thread.sleep(100);
+    assertFalse(ran.get());
+    assertFalse(timeout.isExpired());
+    assertTrue(timeout.isCancelled());
+  }
+
+  @Test
+  public void testIdle() throws Exception {
+    TimerWheel wheel = new TimerWheel(1, 16);
+    // a long timeout which gets cancelled leaves nothing to do
+    wheel.schedule(() -> {}, 60000).cancel();
+    Thread worker = waitForIdle(wheel);
+    assertNotNull("timer thread did not park", worker);
+    // once parked, a new timeout still expires
+    CountDownLatch latch = new CountDownLatch(1);
+    wheel.schedule(latch::countDown, 10);
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+
+  // wait until the timer thread parks without a timeout
+  private static Thread waitForIdle(TimerWheel wheel) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while(System.currentTimeMillis() < end) {
+      for(Thread t : Thread.getAllStackTraces().keySet()) {
+        if(t.getName().equals("modularpipelines-timerwheel") &&
+           LockSupport.getBlocker(t) == wheel &&
+           t.getState() == Thread.State.WAITING) {
+          return t;
+        }
+      }
+      Thread.sleep(10);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,89 @@
+package at.ofai.gate.modularpipelines.tests;
+
+import at.ofai.gate.modularpipelines.Tracer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Recording trace events and writing them in Chrome trace event format.
+ */
+public class TracerTest {
+
+  @After
+  public void reset() {
+    Tracer.setEnabled(false);
+    Tracer.setBufferSize(65536);
+    Tracer.clear();
+  }
+
+  private static JsonNode dump() throws Exception {
+    StringWriter out = new StringWriter();
+    Tracer.dump(out);
+    return new ObjectMapper().readTree(out.toString());
+  }
+
+  // the events of one thread, as "ph name" strings
+  private static List<String> events(JsonNode trace, long tid) {
+    List<String> ret = new ArrayList<>();
+    for(JsonNode event : trace.get("traceEvents")) {
+      if(event.get("tid").asLong() == tid) {
+        ret.add(event.get("ph").asText()+" "+event.get("name").asText());
+      }
+    }
+    return ret;
+  }
+
+  @Test
+  public void testRingWrapsAround() throws Exception {
+    Tracer.setBufferSize(4);
+    Tracer.setEnabled(true);
+    Thread thread = new Thread(() -> {
+      for(String name : new String[] { "a", "b", "c" }) {
+        Tracer.begin(Tracer.PR, name);
+        Tracer.end(Tracer.PR, name);
+      }
+    }, "tracer \"test\"\n");
+    thread.start();
+    thread.join();
+    JsonNode trace = dump();
+    assertEquals("ms", trace.get("displayTimeUnit").asText());
+    // only the last four of the six events are kept, oldest first
+    assertEquals(Arrays.asList("M thread_name", "B b", "E b", "B c", "E c"),
+            events(trace, thread.getId()));
+    long last = 0;
+    for(JsonNode event : trace.get("traceEvents")) {
+      if(event.get("tid").asLong() != thread.getId()) {
+        continue;
+      }
+      assertEquals(1, event.get("pid").asInt());
+      if(event.get("ph").asText().equals("M")) {
+        // the thread name gets escaped
+        assertEquals("tracer \"test\"\n", event.get("args").get("name").asText());
+      } else {
+        assertEquals(Tracer.PR, event.get("cat").asText());
+        assertTrue(event.get("ts").asLong() >= last);
+        last = event.get("ts").asLong();
+      }
+    }
+    // the buffer of the terminated thread is dropped once it was dumped
+    assertTrue(events(dump(), thread.getId()).isEmpty());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    Thread thread = new Thread(() -> {
+      Tracer.begin(Tracer.PR, "x");
+      Tracer.end(Tracer.PR, "x");
+    });
+    thread.start();
+    thread.join();
+    assertTrue(events(dump(), thread.getId()).isEmpty());
+  }
+}